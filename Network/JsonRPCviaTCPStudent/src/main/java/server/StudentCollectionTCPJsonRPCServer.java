@@ -14,6 +14,8 @@ import java.util.*;
  * @version April 2020
  */
 public class StudentCollectionTCPJsonRPCServer extends Thread {
+   // request threads log through a ring buffer instead of waiting for System.out
+   private static final AsyncLogger LOG = AsyncLogger.LOG;
    private Socket conn;
    private int id;
    private StudentCollectionSkeleton skeleton;
@@ -37,19 +39,19 @@ public class StudentCollectionTCPJsonRPCServer extends Thread {
          if (numr != -1) {
             //System.out.println("read "+numr+" bytes");
             String request = new String(clientInput,0,numr);
-            System.out.println("request is: "+request);
+            LOG.debug("request is: {}", request);
 
             // prep and send response
             String response = skeleton.callMethod(request);
             byte clientOut[] = response.getBytes();
 	         outSock.write(clientOut,0,clientOut.length);
-            System.out.println("response is: "+response);
+            LOG.debug("response is: {}", response);
          }
          inSock.close();
          outSock.close();
          conn.close();
       } catch (IOException e) {
-         System.out.println("I/O exception occurred for the connection:\n"+e.getMessage());
+         LOG.warn("I/O exception occurred for the connection: {}", e.getMessage());
       }
    }
     
@@ -67,10 +69,9 @@ public class StudentCollectionTCPJsonRPCServer extends Thread {
          ServerSocket serv = new ServerSocket(portNo);
          // accept client requests. For each request create a new thread to handle
          while (true) { 
-            System.out.println("Student server waiting for connects on port "
-                               +portNo);
+            LOG.info("Student server waiting for connects on port {}", portNo);
             sock = serv.accept();
-            System.out.println("Student server connected to client: "+id);
+            LOG.info("Student server connected to client: {}", id);
             StudentCollectionTCPJsonRPCServer myServerThread =
                new StudentCollectionTCPJsonRPCServer(sock,id++,studCol);
             myServerThread.start();
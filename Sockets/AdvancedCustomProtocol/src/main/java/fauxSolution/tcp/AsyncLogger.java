@@ -0,0 +1,302 @@
+package fauxSolution.tcp;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Logger that never makes a request thread wait for the console or a file.
+ *
+ * System.out is a synchronized PrintStream that writes every line straight away, so
+ * threads that print take turns and wait for the terminal. Here a log call only checks
+ * the level and puts the format string and its arguments into a free slot of a ring
+ * buffer (one compare-and-set, no lock, no String built). One background thread takes
+ * the messages out in order, formats them and writes them in large batches to a
+ * FileChannel (the log file or stdout).
+ *
+ * If the ring is full, DEBUG and INFO messages are dropped and counted, the writer
+ * reports how many were lost. WARN and ERROR messages wait for a free slot instead.
+ *
+ * Configured with system properties: -Dlog.level=debug|info|warn|error|off (default
+ * info, also for an unknown level), -Dlog.file=server.log (default stdout),
+ * -Dlog.capacity=n (slots, default 8192).
+ *
+ * Arguments are formatted later on the writer thread, so they must not be changed
+ * after the call. Messages use {} as placeholder: LOG.debug("read {} bytes", count).
+ */
+final class AsyncLogger {
+  enum Level {
+    DEBUG, INFO, WARN, ERROR, OFF
+  }
+
+  /** shared logger of the client and server */
+  static final AsyncLogger LOG = new AsyncLogger(
+      level(System.getProperty("log.level", "info")),
+      System.getProperty("log.file"),
+      Integer.getInteger("log.capacity", 8192));
+
+  /**
+   * @return the level named by -Dlog.level, INFO for an unknown name
+   */
+  private static Level level(String name) {
+    try {
+      return Level.valueOf(name.trim().toUpperCase());
+    } catch (IllegalArgumentException e) {
+      System.err.println("Unknown log.level " + name + ", logging at INFO");
+      return Level.INFO;
+    }
+  }
+
+  private static final int BATCH_BYTES = 64 * 1024;
+  private static final DateTimeFormatter TIME =
+      DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+  /**
+   * One slot of the ring, reused for every message that lands in it
+   */
+  private static final class Slot {
+    Level level;
+    long time;
+    String thread;
+    String format;
+    Object[] args;
+  }
+
+  private final Level level;
+  private final Slot[] slots;
+  private final int mask;
+  // per slot: index + 1 once the message at index is written, the next free index when
+  // it was consumed (see put and writeBatch)
+  private final AtomicLongArray sequences;
+  private final AtomicLong tail = new AtomicLong();
+  private long head = 0; // only used by the writer
+  private final AtomicLong dropped = new AtomicLong();
+  private long reported = 0; // dropped messages the writer already reported
+
+  private final FileChannel out;
+  private final ByteBuffer batch = ByteBuffer.allocateDirect(BATCH_BYTES);
+  private final Thread writer;
+  private volatile boolean idle = false;
+
+  /**
+   * @param level messages below this level are ignored
+   * @param file file the log is appended to, null for stdout
+   * @param capacity slots of the ring, rounded up to a power of two
+   */
+  AsyncLogger(Level level, String file, int capacity) {
+    this.level = level;
+    int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+    slots = new Slot[size];
+    sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) {
+      slots[i] = new Slot();
+      sequences.set(i, i);
+    }
+    mask = size - 1;
+
+    FileChannel channel;
+    try {
+      channel = file == null ? new FileOutputStream(FileDescriptor.out).getChannel()
+          : FileChannel.open(Paths.get(file), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    } catch (IOException e) {
+      System.err.println("Cannot open log file " + file + ", logging to stdout: " + e.getMessage());
+      channel = new FileOutputStream(FileDescriptor.out).getChannel();
+    }
+    out = channel;
+
+    writer = new Thread(this::drain, "async-logger");
+    writer.setDaemon(true);
+    writer.start();
+    // write what is still in the ring when the program ends
+    Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "async-logger-flush"));
+  }
+
+  /**
+   * @return true if messages of the level are logged
+   */
+  private boolean isEnabled(Level level) {
+    return level.compareTo(this.level) >= 0 && level != Level.OFF;
+  }
+
+  public void debug(String format, Object... args) {
+    log(Level.DEBUG, format, args);
+  }
+
+  /**
+   * A Throwable as last argument is printed with its stack trace
+   */
+  public void error(String format, Object... args) {
+    log(Level.ERROR, format, args);
+  }
+
+  /**
+   * Queues a message for the writer thread
+   * @param level level of the message
+   * @param format text with {} for each argument
+   * @param args arguments, formatted later with String.valueOf
+   */
+  private void log(Level level, String format, Object... args) {
+    if (!isEnabled(level)) {
+      return; // nothing was built, only the varargs array
+    }
+    while (!put(level, format, args)) {
+      if (level.compareTo(Level.WARN) < 0) {
+        dropped.incrementAndGet();
+        return;
+      }
+      // warnings and errors are not dropped, wait for the writer to make room
+      LockSupport.unpark(writer);
+      LockSupport.parkNanos(100_000);
+    }
+    if (idle) {
+      LockSupport.unpark(writer);
+    }
+  }
+
+  /**
+   * Claims the next slot with one compare-and-set, fills it and publishes it
+   * @return false if the ring is full
+   */
+  private boolean put(Level level, String format, Object[] args) {
+    long index;
+    while (true) {
+      index = tail.get();
+      long sequence = sequences.get((int) index & mask);
+      if (sequence < index) {
+        return false; // the writer did not take the message of the last round yet
+      }
+      // sequence > index: another thread claimed the index meanwhile, try the next one
+      if (sequence == index && tail.compareAndSet(index, index + 1)) {
+        break;
+      }
+    }
+
+    Slot slot = slots[(int) index & mask];
+    slot.level = level;
+    slot.time = System.currentTimeMillis();
+    slot.thread = Thread.currentThread().getName();
+    slot.format = format;
+    slot.args = args;
+    sequences.set((int) index & mask, index + 1); // the writer may read the slot now
+    return true;
+  }
+
+  /**
+   * Loop of the writer thread
+   */
+  private void drain() {
+    while (true) {
+      if (!writeBatch()) {
+        idle = true;
+        // a message may have arrived just before idle was set
+        if (!available()) {
+          LockSupport.parkNanos(100_000_000);
+        }
+        idle = false;
+      }
+    }
+  }
+
+  private boolean available() {
+    return sequences.get((int) head & mask) == head + 1;
+  }
+
+  /**
+   * Formats all messages that are in the ring and writes them with as few writes as
+   * possible
+   * @return false if there was nothing to write
+   */
+  private synchronized boolean writeBatch() {
+    long lost = dropped.get() - reported;
+    if (!available() && lost == 0) {
+      return false;
+    }
+    if (lost > 0) {
+      reported += lost;
+      append(TIME.format(Instant.now()) + " WARN  [async-logger] " + lost + " log messages dropped, the log could not keep up\n");
+    }
+    while (available()) {
+      Slot slot = slots[(int) head & mask];
+      String line = format(slot);
+      slot.format = null;
+      slot.args = null; // do not keep the arguments alive
+      // the slot is free for the producers of the next round
+      sequences.set((int) head & mask, head + slots.length);
+      head++;
+      append(line);
+    }
+    write();
+    return true;
+  }
+
+  private String format(Slot slot) {
+    StringBuilder line = new StringBuilder(128);
+    line.append(TIME.format(Instant.ofEpochMilli(slot.time))).append(' ');
+    line.append(slot.level);
+    for (int i = slot.level.name().length(); i < 6; i++) {
+      line.append(' ');
+    }
+    line.append('[').append(slot.thread).append("] ");
+    Object[] args = slot.args;
+    String format = slot.format;
+    int argument = 0;
+    int from = 0;
+    int at;
+    while (args != null && argument < args.length && (at = format.indexOf("{}", from)) >= 0) {
+      line.append(format, from, at).append(args[argument++]);
+      from = at + 2;
+    }
+    line.append(format, from, format.length()).append('\n');
+    if (args != null && args.length > 0 && args[args.length - 1] instanceof Throwable) {
+      StringWriter trace = new StringWriter();
+      ((Throwable) args[args.length - 1]).printStackTrace(new PrintWriter(trace));
+      line.append(trace);
+    }
+    return line.toString();
+  }
+
+  private void append(String line) {
+    byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+    int offset = 0;
+    while (offset < bytes.length) {
+      if (!batch.hasRemaining()) {
+        write();
+      }
+      int n = Math.min(batch.remaining(), bytes.length - offset);
+      batch.put(bytes, offset, n);
+      offset += n;
+    }
+  }
+
+  private void write() {
+    batch.flip();
+    try {
+      while (batch.hasRemaining()) {
+        out.write(batch);
+      }
+    } catch (IOException e) {
+      // nowhere left to log to, the messages are lost
+    }
+    batch.clear();
+  }
+
+  /**
+   * Writes everything that is in the ring right now, called on shutdown
+   */
+  private void flush() {
+    writeBatch();
+  }
+}
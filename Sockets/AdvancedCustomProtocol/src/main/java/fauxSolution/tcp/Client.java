@@ -20,7 +20,8 @@ import org.json.*;
 public class Client {
   /*
    * request: { "selected": <int: 1=joke, 2=quote, 3=image, 4=random>,
-   * (optional)"min": <int>, (optional)"max":<int> }
+   * (optional)"min": <int>, (optional)"max":<int>,
+   * (optional)"binary": <bool: image as binary message, see NetworkUtils> }
    * 
    * response: {"datatype": <int: 1-string, 2-byte array>, "type": <"joke",
    * "quote", "image"> "data": <thing to return> }
@@ -92,8 +93,14 @@ public class Client {
         }
 
         if (request != null) {
+          request.put("binary", true); // images as raw bytes, see NetworkUtils.toBinary
           NetworkUtils.Send(out, JsonUtils.toByteArray(request));
           byte[] responseBytes = NetworkUtils.Receive(in);
+          byte[] data = null;
+          if (NetworkUtils.isBinary(responseBytes)) {
+            data = NetworkUtils.binaryData(responseBytes);
+            responseBytes = NetworkUtils.binaryHeader(responseBytes);
+          }
           JSONObject response = JsonUtils.fromByteArray(responseBytes);
           if (response.has("error")) {
             System.out.println(response.getString("error"));
@@ -105,8 +112,12 @@ public class Client {
               break;
             case (2): {
               System.out.println("Your image");
-              Base64.Decoder decoder = Base64.getDecoder();
-              byte[] bytes = decoder.decode(response.getString("data"));
+              byte[] bytes = data;
+              if (bytes == null) {
+                // a server without binary messages sends Base64 in the JSON
+                Base64.Decoder decoder = Base64.getDecoder();
+                bytes = decoder.decode(response.getString("data"));
+              }
               ImageIcon icon = null;
               try (ByteArrayInputStream bais = new ByteArrayInputStream(bytes)) {
                 BufferedImage image = ImageIO.read(bais);
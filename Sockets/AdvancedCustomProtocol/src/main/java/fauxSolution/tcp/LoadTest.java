@@ -0,0 +1,149 @@
+package fauxSolution.tcp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONObject;
+
+/**
+ * Many clients at the same time against the Server, to compare the serial and the nio mode.
+ *
+ * Starts all client threads at the same moment, every client connects once and sends its
+ * requests one after the other with NetworkUtils.Send and Receive, like the Client does.
+ * The latency of a request is the time from sending it until the whole answer was read,
+ * with the serial server it includes the time the client waits for the clients before it.
+ * At the end throughput and latency percentiles are printed. With binary the clients ask
+ * for images as binary messages instead of Base64 in JSON.
+ *
+ * Example (server running with: gradle TCPServer -Pmode=nio):
+ *   gradle TCPLoadTest -Pclients=500 -Prequests=20 -Pselected=3 -Pbinary=true
+ */
+class LoadTest {
+  public static void main(String args[]) throws InterruptedException {
+    String host = "localhost";
+    int port = 9000;
+    int clients = 500;
+    int requests = 20;
+    int selected = 1;
+    boolean binary = false;
+
+    try {
+      if (args.length > 0) host = args[0];
+      if (args.length > 1) port = Integer.parseInt(args[1]);
+      if (args.length > 2) clients = Integer.parseInt(args[2]);
+      if (args.length > 3) requests = Integer.parseInt(args[3]);
+      if (args.length > 4) selected = Integer.parseInt(args[4]);
+      if (args.length > 5) binary = Boolean.parseBoolean(args[5]);
+    } catch (NumberFormatException e) {
+      System.out.println("Usage: LoadTest [host] [port(int)] [clients(int)] [requests per client(int)] [selected(int 1-4)] [binary(bool)]");
+      System.exit(1);
+    }
+
+    run(host, port, clients, requests, selected, binary);
+  }
+
+  /**
+   * Runs one load test and prints the results
+   * @param host server host
+   * @param port server port
+   * @param clients number of concurrent clients
+   * @param requests number of requests every client sends
+   * @param selected what every request asks for, 1=joke, 2=quote, 3=image, 4=random
+   * @param binary ask for images as binary messages
+   */
+  public static void run(String host, int port, int clients, int requests, int selected, boolean binary)
+      throws InterruptedException {
+    long[] latencies = new long[clients * requests];
+    AtomicInteger next = new AtomicInteger();
+    AtomicInteger errors = new AtomicInteger();
+    CountDownLatch start = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(clients);
+    JSONObject request = new JSONObject();
+    request.put("selected", selected);
+    if (binary) {
+      request.put("binary", true);
+    }
+    byte[] requestBytes = JsonUtils.toByteArray(request);
+
+    for (int c = 0; c < clients; c++) {
+      Thread client = new Thread(() -> {
+        try {
+          start.await();
+          sendRequests(host, port, requestBytes, requests, latencies, next, errors);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } finally {
+          done.countDown();
+        }
+      });
+      client.setDaemon(true);
+      client.start();
+    }
+
+    long begin = System.nanoTime();
+    start.countDown();
+    done.await();
+    long elapsed = System.nanoTime() - begin;
+
+    int ok = next.get();
+    long[] sorted = Arrays.copyOf(latencies, ok);
+    Arrays.sort(sorted);
+
+    System.out.println("Clients: " + clients + ", requests per client: " + requests + ", selected: " + selected
+        + ", binary: " + binary);
+    System.out.println("Successful: " + ok + ", errors: " + errors.get());
+    System.out.printf("Elapsed: %.2f s, throughput: %.1f req/s%n", elapsed / 1e9, ok / (elapsed / 1e9));
+    if (ok > 0) {
+      System.out.printf("Latency ms  p50: %.2f  p90: %.2f  p99: %.2f  max: %.2f%n",
+          percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99), sorted[ok - 1] / 1e6);
+    }
+  }
+
+  /**
+   * Sends all requests of one client on one connection, an answer counts if it is JSON
+   * without error and its data is decoded (Base64 or binary). A broken connection counts
+   * the rest of the client's requests as errors.
+   */
+  private static void sendRequests(String host, int port, byte[] request, int requests,
+      long[] latencies, AtomicInteger next, AtomicInteger errors) {
+    int sent = 0;
+    try (Socket sock = new Socket(host, port)) {
+      sock.setTcpNoDelay(true);
+      OutputStream out = sock.getOutputStream();
+      InputStream in = sock.getInputStream();
+      for (; sent < requests; sent++) {
+        long begin = System.nanoTime();
+        NetworkUtils.Send(out, request);
+        byte[] answer = NetworkUtils.Receive(in);
+        byte[] data = null;
+        if (NetworkUtils.isBinary(answer)) {
+          data = NetworkUtils.binaryData(answer);
+          answer = NetworkUtils.binaryHeader(answer);
+        }
+        JSONObject response = JsonUtils.fromByteArray(answer);
+        if (data == null && response.optInt("datatype") == 2) {
+          data = Base64.getDecoder().decode(response.getString("data"));
+        }
+        if (response.has("error")) {
+          errors.incrementAndGet();
+        } else {
+          latencies[next.getAndIncrement()] = System.nanoTime() - begin;
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      // refused, closed or not JSON (Receive returns zeros when the server went away)
+      errors.addAndGet(requests - sent);
+    }
+  }
+
+  private static double percentile(long[] sorted, int percent) {
+    int index = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+    return sorted[Math.max(0, index)] / 1e6;
+  }
+}
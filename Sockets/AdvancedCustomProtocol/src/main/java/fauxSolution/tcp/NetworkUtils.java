@@ -3,8 +3,15 @@ package fauxSolution.tcp;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 public class NetworkUtils {
+  // Read runs for every message, System.out would make all connections wait for the console
+  private static final AsyncLogger LOG = AsyncLogger.LOG;
+
+  /** largest message the non-blocking server accepts, change with -Dframe.max=bytes */
+  public static final int MAX_FRAME = Integer.getInteger("frame.max", 1024 * 1024);
+
   // https://mkyong.com/java/java-convert-byte-to-int-and-vice-versa/
   public static byte[] intToBytes(final int data) {
     return new byte[] { (byte) ((data >> 24) & 0xff), (byte) ((data >> 16) & 0xff), (byte) ((data >> 8) & 0xff),
@@ -17,8 +24,8 @@ public class NetworkUtils {
   }
 
   public static void Send(OutputStream out, byte... bytes) throws IOException {
-    out.write(intToBytes(bytes.length));
-    out.write(bytes);
+    // one write, as two the small length waits for the ACK of the peer (Nagle), about 40 ms
+    out.write(frame(bytes).array());
     out.flush();
   }
 
@@ -26,12 +33,12 @@ public class NetworkUtils {
   // read the bytes on the stream
   private static byte[] Read(InputStream in, int length) throws IOException {
     byte[] bytes = new byte[length];
-    System.out.println("Read in bytes: " + length);
+    LOG.debug("Read in bytes: {}", length);
     int bytesRead = 0;
     try {
       bytesRead = in.read(bytes, 0, length);
     } catch (IOException e1) {
-      e1.printStackTrace();
+      LOG.error("Read failed", e1);
     }
     if (bytesRead < length && bytesRead > 0) {
       byte[] newBytes = Read(in, length-bytesRead);
@@ -52,4 +59,113 @@ public class NetworkUtils {
       return new byte[0];
     return message;
   }
+
+  // the same as Send, but as one buffer for a SocketChannel: 4 bytes length, then the message
+  public static ByteBuffer frame(byte[] bytes) {
+    ByteBuffer buffer = ByteBuffer.allocate(4 + bytes.length);
+    buffer.putInt(bytes.length).put(bytes);
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * Receive for a non-blocking channel: a read returns whatever has arrived, maybe half a
+   * length, maybe the end of one message and the start of the next. The decoder is fed
+   * every read and keeps the partial message until it is complete.
+   */
+  public static class FrameDecoder {
+    private final int maxFrame;
+    private final ByteBuffer length = ByteBuffer.allocate(4);
+    private ByteBuffer message = null; // null while the length is read
+
+    public FrameDecoder(int maxFrame) {
+      this.maxFrame = maxFrame;
+    }
+
+    /**
+     * Takes bytes out of the buffer until a message is complete or the buffer is empty
+     * @param in bytes read from the channel, ready to be read (flipped)
+     * @return the next complete message, null if more bytes are needed
+     * @throws IOException if the length is negative or larger than the maximum
+     */
+    public byte[] next(ByteBuffer in) throws IOException {
+      if (message == null) {
+        while (length.hasRemaining() && in.hasRemaining()) {
+          length.put(in.get());
+        }
+        if (length.hasRemaining()) {
+          return null;
+        }
+        int size = length.getInt(0);
+        if (size < 0 || size > maxFrame) {
+          throw new IOException("Message of " + size + " bytes, at most " + maxFrame + " are allowed");
+        }
+        message = ByteBuffer.allocate(size);
+      }
+      int n = Math.min(message.remaining(), in.remaining());
+      message.put(in.array(), in.arrayOffset() + in.position(), n);
+      in.position(in.position() + n);
+      if (message.hasRemaining()) {
+        return null;
+      }
+      byte[] bytes = message.array();
+      message = null;
+      length.clear();
+      return bytes;
+    }
+  }
+
+  /* binary message, sent instead of the JSON message if the request has "binary": true
+   * [
+   *   messageType(1 byte, BINARY), -- a JSON message starts with '{' instead
+   *   headerLength(4-byte int),    -- length of the header
+   *   dataLength(4-byte int),      -- length of the data
+   *   header(byte[]),              -- JSON with what the data is, e.g. {"datatype": 2, "type": "image"}
+   *   data(byte[])                 -- the raw bytes, no Base64
+   * ]
+   */
+  public static final byte BINARY = 2;
+
+  public static byte[] toBinary(byte[] header, byte[] data) {
+    byte[] message = new byte[9 + header.length + data.length];
+    message[0] = BINARY;
+    System.arraycopy(intToBytes(header.length), 0, message, 1, 4);
+    System.arraycopy(intToBytes(data.length), 0, message, 5, 4);
+    System.arraycopy(header, 0, message, 9, header.length);
+    System.arraycopy(data, 0, message, 9 + header.length, data.length);
+    return message;
+  }
+
+  public static boolean isBinary(byte[] message) {
+    return message.length >= 9 && message[0] == BINARY;
+  }
+
+  // the JSON header of a binary message
+  public static byte[] binaryHeader(byte[] message) throws IOException {
+    int headerLength = binaryLength(message, 1);
+    byte[] header = new byte[headerLength];
+    System.arraycopy(message, 9, header, 0, headerLength);
+    return header;
+  }
+
+  // the raw data of a binary message
+  public static byte[] binaryData(byte[] message) throws IOException {
+    int headerLength = binaryLength(message, 1);
+    int dataLength = binaryLength(message, 5);
+    if (9L + headerLength + dataLength != message.length) {
+      throw new IOException("Binary message of " + message.length + " bytes, the lengths say "
+          + (9L + headerLength + dataLength));
+    }
+    byte[] data = new byte[dataLength];
+    System.arraycopy(message, 9 + headerLength, data, 0, dataLength);
+    return data;
+  }
+
+  private static int binaryLength(byte[] message, int offset) throws IOException {
+    int length = bytesToInt(new byte[] { message[offset], message[offset + 1], message[offset + 2], message[offset + 3] });
+    if (length < 0 || length > message.length - 9) {
+      throw new IOException("Broken binary message, length " + length);
+    }
+    return length;
+  }
 }
@@ -0,0 +1,228 @@
+package fauxSolution.tcp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The same protocol as the serial Server, but all clients are served at once.
+ *
+ * One thread runs a Selector: it accepts the connections and does all reads and writes
+ * without blocking. What a read returns goes into the connection's FrameDecoder
+ * (NetworkUtils), which puts the 4 byte length and the message back together. Complete
+ * requests are answered by Server.answer on a pool of worker threads, and the worker hands
+ * the answer back to the selector thread. Most answers come ready from the ResponseCache,
+ * the JSON of the request still has to be parsed.
+ *
+ * A connection has one request at a worker at a time, the answers go out in the order of
+ * the requests. Requests a client sends before it has its answer wait in the connection,
+ * once MAX_WAITING of them wait the server stops reading from that client until they are
+ * answered. So a client that sends without reading cannot fill up the server's memory.
+ */
+class NioServer {
+  private static final AsyncLogger LOG = AsyncLogger.LOG;
+
+  /** requests of one connection that may wait for their answer before reading stops */
+  static final int MAX_WAITING = 16;
+
+  private final int port;
+  private final ExecutorService workers;
+  private final ResponseCache responses;
+  private final Selector selector;
+  private final Queue<Connection> answered = new ConcurrentLinkedQueue<>();
+  private final ByteBuffer readBuffer = ByteBuffer.allocate(16 * 1024);
+
+  /**
+   * State of one connection, only touched by the selector thread (the worker sets answer)
+   */
+  private static class Connection {
+    final SocketChannel channel;
+    final SelectionKey key;
+    final NetworkUtils.FrameDecoder decoder = new NetworkUtils.FrameDecoder(NetworkUtils.MAX_FRAME);
+    final Queue<byte[]> waiting = new ArrayDeque<>(); // complete requests, not yet at a worker
+    ByteBuffer output = null; // answer being written
+    volatile ByteBuffer answer = null; // set by the worker
+    boolean busy = false; // a worker answers a request of this connection
+
+    Connection(SocketChannel channel, SelectionKey key) {
+      this.channel = channel;
+      this.key = key;
+    }
+  }
+
+  /**
+   * @param port port to listen on
+   * @param threads worker threads that answer the requests
+   * @param responses the prepared answers
+   */
+  NioServer(int port, int threads, ResponseCache responses) throws IOException {
+    this.port = port;
+    this.responses = responses;
+    this.workers = Executors.newFixedThreadPool(threads);
+    this.selector = Selector.open();
+  }
+
+  /**
+   * Serves until the process ends
+   */
+  public void run() throws IOException {
+    ServerSocketChannel listener = ServerSocketChannel.open();
+    listener.bind(new InetSocketAddress(port), 1024);
+    listener.configureBlocking(false);
+    listener.register(selector, SelectionKey.OP_ACCEPT);
+    System.out.println("Server ready on port " + port + " (nio)");
+
+    while (true) {
+      selector.select();
+      Connection connection;
+      while ((connection = answered.poll()) != null) {
+        answered(connection);
+      }
+      Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+      while (keys.hasNext()) {
+        SelectionKey key = keys.next();
+        keys.remove();
+        if (!key.isValid()) {
+          continue;
+        }
+        if (key.isAcceptable()) {
+          accept(listener);
+          continue;
+        }
+        connection = (Connection) key.attachment();
+        try {
+          if (key.isReadable()) {
+            read(connection);
+          }
+          if (key.isValid() && key.isWritable()) {
+            write(connection);
+          }
+        } catch (IOException e) {
+          LOG.debug("Client disconnect: {}", e.getMessage());
+          close(connection);
+        }
+      }
+    }
+  }
+
+  private void accept(ServerSocketChannel listener) throws IOException {
+    SocketChannel channel;
+    while ((channel = listener.accept()) != null) {
+      channel.configureBlocking(false);
+      channel.socket().setTcpNoDelay(true);
+      SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+      key.attach(new Connection(channel, key));
+    }
+  }
+
+  private void read(Connection connection) throws IOException {
+    readBuffer.clear();
+    int n = connection.channel.read(readBuffer);
+    if (n < 0) {
+      LOG.debug("Client disconnect");
+      close(connection);
+      return;
+    }
+    readBuffer.flip();
+    byte[] request;
+    while ((request = connection.decoder.next(readBuffer)) != null) {
+      connection.waiting.add(request);
+    }
+    if (connection.waiting.size() >= MAX_WAITING) {
+      connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_READ);
+    }
+    dispatch(connection);
+  }
+
+  /**
+   * Gives the next waiting request to a worker, if the previous answer is out
+   */
+  private void dispatch(Connection connection) {
+    if (connection.busy || connection.output != null || connection.waiting.isEmpty()) {
+      return;
+    }
+    byte[] request = connection.waiting.poll();
+    connection.busy = true;
+    if ((connection.key.interestOps() & SelectionKey.OP_READ) == 0 && connection.waiting.size() < MAX_WAITING) {
+      connection.key.interestOps(connection.key.interestOps() | SelectionKey.OP_READ);
+    }
+    workers.execute(() -> {
+      // the cached frame is shared, every connection writes it through a buffer of its own
+      connection.answer = ByteBuffer.wrap(answer(request));
+      answered.add(connection);
+      selector.wakeup();
+    });
+  }
+
+  /**
+   * Runs on a worker thread
+   */
+  private byte[] answer(byte[] request) {
+    JSONObject error;
+    try {
+      return Server.answer(responses, JsonUtils.fromByteArray(request));
+    } catch (JSONException e) {
+      error = Server.error("Invalid message received");
+    } catch (IOException e) {
+      LOG.error("Answer failed", e);
+      error = Server.error("Unable to answer: " + e.getMessage());
+    }
+    return NetworkUtils.frame(JsonUtils.toByteArray(error)).array();
+  }
+
+  /**
+   * A worker is done, on the selector thread: write the answer and start the next request
+   */
+  private void answered(Connection connection) {
+    connection.busy = false;
+    if (!connection.channel.isOpen()) {
+      return; // the client went away meanwhile
+    }
+    connection.output = connection.answer;
+    connection.answer = null;
+    try {
+      write(connection);
+    } catch (IOException e) {
+      LOG.debug("Client disconnect: {}", e.getMessage());
+      close(connection);
+    }
+  }
+
+  /**
+   * Writes as much of the answer as the socket takes, waits for OP_WRITE for the rest
+   */
+  private void write(Connection connection) throws IOException {
+    if (connection.output != null) {
+      connection.channel.write(connection.output);
+      if (connection.output.hasRemaining()) {
+        connection.key.interestOps(connection.key.interestOps() | SelectionKey.OP_WRITE);
+        return;
+      }
+      connection.output = null;
+    }
+    connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_WRITE);
+    dispatch(connection);
+  }
+
+  private void close(Connection connection) {
+    connection.key.cancel();
+    try {
+      connection.channel.close();
+    } catch (IOException e) {
+      // nothing left to do
+    }
+  }
+}
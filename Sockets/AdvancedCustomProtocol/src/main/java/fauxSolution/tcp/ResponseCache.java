@@ -0,0 +1,134 @@
+package fauxSolution.tcp;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+
+/**
+ * The answers to joke, quote and image, built once as whole frames (4 byte length and the
+ * JSON) the way NetworkUtils.Send puts them on the wire.
+ *
+ * The answers never change between requests, but building one means new JSON every time
+ * and for the image reading the PNG, decoding and encoding it and Base64. Now a request
+ * only writes the bytes of the frame.
+ *
+ * The frames of one build are never changed, a reload builds new ones and swaps them in at
+ * once, so a request gets either all old or all new answers and nobody needs a lock. A
+ * thread watches img/ and reloads when a file in it is created, changed or deleted. If the
+ * reload fails, e.g. on a half copied image, the old answers stay.
+ */
+final class ResponseCache {
+  /** directory of the image, a change in it reloads the answers */
+  static final Path IMAGES = Paths.get("img");
+
+  /** time in ms without further changes in img/ before the reload, a copy changes it several times */
+  private static final long QUIET_TIME = 200;
+
+  /**
+   * One build of all answers
+   */
+  private static final class Frames {
+    final byte[] joke;
+    final byte[] quote;
+    final byte[] image;
+    final byte[] imageBinary; // for clients that asked for binary messages
+
+    Frames() throws IOException {
+      joke = frame(Server.joke());
+      quote = frame(Server.quote());
+      image = frame(Server.image());
+      imageBinary = frame(Server.imageBinary());
+    }
+
+    private static byte[] frame(JSONObject json) {
+      return frame(JsonUtils.toByteArray(json));
+    }
+
+    private static byte[] frame(byte[] message) {
+      return NetworkUtils.frame(message).array();
+    }
+  }
+
+  private volatile Frames frames;
+
+  private ResponseCache(Frames frames) {
+    this.frames = frames;
+  }
+
+  /**
+   * Builds the answers and starts watching img/
+   * @throws IOException if the image cannot be read, the server cannot answer without it
+   */
+  static ResponseCache load() throws IOException {
+    ResponseCache cache = new ResponseCache(new Frames());
+    Thread watcher = new Thread(cache::watch, "img-watcher");
+    watcher.setDaemon(true);
+    watcher.start();
+    return cache;
+  }
+
+  /**
+   * @param selected 1=joke, 2=quote, 3=image, 4=random
+   * @param binary the image as binary message instead of Base64 in JSON
+   * @return the whole frame of the answer, must not be changed, null if selected is none of
+   *         the above
+   */
+  byte[] get(int selected, boolean binary) {
+    Frames current = frames;
+    if (selected == 4) {
+      selected = 1 + ThreadLocalRandom.current().nextInt(3);
+    }
+    switch (selected) {
+    case (1):
+      return current.joke;
+    case (2):
+      return current.quote;
+    case (3):
+      return binary ? current.imageBinary : current.image;
+    default:
+      return null;
+    }
+  }
+
+  /**
+   * Builds new answers, keeps the old ones if that fails
+   */
+  void reload() {
+    try {
+      Frames reloaded = new Frames();
+      frames = reloaded;
+      System.out.println("Answers reloaded, image frame " + reloaded.image.length + " bytes");
+    } catch (IOException | RuntimeException e) {
+      System.out.println("Answers not reloaded, keeping the old ones: " + e);
+    }
+  }
+
+  private void watch() {
+    try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+      IMAGES.register(watcher, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+      while (true) {
+        WatchKey key = watcher.take();
+        do {
+          key.pollEvents();
+          key.reset();
+        } while ((key = watcher.poll(QUIET_TIME, TimeUnit.MILLISECONDS)) != null);
+        reload();
+      }
+    } catch (IOException e) {
+      System.out.println("Not watching " + IMAGES.toAbsolutePath() + ", answers are not reloaded: " + e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
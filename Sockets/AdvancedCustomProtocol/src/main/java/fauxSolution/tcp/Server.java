@@ -18,7 +18,8 @@ import org.json.*;
 
 public class Server {
   /*
-   * request: { "selected": <int: 1=joke, 2=quote, 3=image, 4=random> }
+   * request: { "selected": <int: 1=joke, 2=quote, 3=image, 4=random>,
+   * (optional)"binary": <bool: image as binary message, see NetworkUtils> }
    * 
    * response: {"datatype": <int: 1-string, 2-byte array>, "type": <"joke",
    * "quote", "image">, "data": <thing to return> }
@@ -49,10 +50,33 @@ public class Server {
 
     json.put("type", "image");
 
+    byte[] bytes = imageBytes();
+    if (bytes != null) {
+      Base64.Encoder encoder = Base64.getEncoder();
+      json.put("data", encoder.encodeToString(bytes));
+      return json;
+    }
+    return error("Unable to save image to byte array");
+  }
+
+  // the image as binary message (see NetworkUtils.toBinary), the JSON header only says what the data is
+  public static byte[] imageBinary() throws IOException {
+    byte[] bytes = imageBytes();
+    if (bytes == null) {
+      return JsonUtils.toByteArray(error("Unable to save image to byte array"));
+    }
+    JSONObject header = new JSONObject();
+    header.put("datatype", 2);
+    header.put("type", "image");
+    header.put("format", "png");
+    return NetworkUtils.toBinary(JsonUtils.toByteArray(header), bytes);
+  }
+
+  // the image as PNG
+  public static byte[] imageBytes() throws IOException {
     File file = new File("img/To-Funny-For-Words1.png");
     if (!file.exists()) {
-      System.err.println("Cannot find file: " + file.getAbsolutePath());
-      System.exit(-1);
+      throw new IOException("Cannot find file: " + file.getAbsolutePath());
     }
     // Read in image
     BufferedImage img = ImageIO.read(file);
@@ -61,12 +85,7 @@ public class Server {
       ImageIO.write(img, "png", out);
       bytes = out.toByteArray();
     }
-    if (bytes != null) {
-      Base64.Encoder encoder = Base64.getEncoder();
-      json.put("data", encoder.encodeToString(bytes));
-      return json;
-    }
-    return error("Unable to save image to byte array");
+    return bytes;
   }
 
   public static JSONObject random() throws IOException {
@@ -89,11 +108,88 @@ public class Server {
     return json;
   }
 
+  /**
+   * Answers one request, the same for the serial and the non-blocking server
+   */
+  public static JSONObject respond(JSONObject message) throws IOException {
+    JSONObject returnMessage;
+    if (message.has("selected")) {
+      if (message.get("selected") instanceof Long || message.get("selected") instanceof Integer) {
+        int choice = message.getInt("selected");
+        switch (choice) {
+        case (1):
+          returnMessage = joke();
+          break;
+        case (2):
+          returnMessage = quote();
+          break;
+        case (3):
+          returnMessage = image();
+          break;
+        case (4):
+          returnMessage = random();
+          break;
+        default:
+          returnMessage = error("Invalid selection: " + choice + " is not an option");
+        }
+      } else {
+        returnMessage = error("Selection must be an integer");
+      }
+    } else {
+      returnMessage = error("Invalid message received");
+    }
+    return returnMessage;
+  }
+
+  /**
+   * Answers one request as a whole frame (length and JSON), the usual requests straight
+   * from the cache, only errors are built
+   */
+  static byte[] answer(ResponseCache responses, JSONObject message) throws IOException {
+    if (message.has("selected")
+        && (message.get("selected") instanceof Long || message.get("selected") instanceof Integer)) {
+      // the client says whether it reads binary messages, old clients get Base64 in JSON
+      byte[] frame = responses.get(message.getInt("selected"), message.optBoolean("binary"));
+      if (frame != null) {
+        return frame;
+      }
+    }
+    return NetworkUtils.frame(JsonUtils.toByteArray(respond(message))).array();
+  }
+
+  /**
+   * Server [mode] [threads]
+   * mode: serial (default) serves one connection at a time, nio serves all of them at once
+   * threads: worker threads of the nio mode, default one per core
+   */
   public static void main(String[] args) throws IOException {
+    String mode = args.length > 0 ? args[0] : "serial";
+    ResponseCache responses = null;
+    try {
+      responses = ResponseCache.load();
+    } catch (IOException e) {
+      System.err.println(e.getMessage());
+      System.exit(-1);
+    }
+    if (mode.equals("nio")) {
+      int threads = Runtime.getRuntime().availableProcessors();
+      try {
+        if (args.length > 1) threads = Integer.parseInt(args[1]);
+      } catch (NumberFormatException e) {
+        System.out.println("Usage: Server [serial|nio] [threads(int)]");
+        System.exit(1);
+      }
+      new NioServer(9000, threads, responses).run();
+      return;
+    } else if (!mode.equals("serial")) {
+      System.out.println("Usage: Server [serial|nio] [threads(int)]");
+      System.exit(1);
+    }
+
     ServerSocket serv = null;
     try {
       serv = new ServerSocket(9000);
-      // NOTE: SINGLE-THREADED, only one connection at a time
+      // NOTE: SINGLE-THREADED, only one connection at a time (see NioServer for all at once)
       while (true) {
         Socket sock = null;
         try {
@@ -103,36 +199,10 @@ public class Server {
           while (true) {
             byte[] messageBytes = NetworkUtils.Receive(in);
             JSONObject message = JsonUtils.fromByteArray(messageBytes);
-            JSONObject returnMessage;
-            if (message.has("selected")) {
-              if (message.get("selected") instanceof Long || message.get("selected") instanceof Integer) {
-                int choice = message.getInt("selected");
-                switch (choice) {
-                case (1):
-                  returnMessage = joke();
-                  break;
-                case (2):
-                  returnMessage = quote();
-                  break;
-                case (3):
-                  returnMessage = image();
-                  break;
-                case (4):
-                  returnMessage = random();
-                  break;
-                default:
-                  returnMessage = error("Invalid selection: " + choice + " is not an option");
-                }
-              } else {
-                returnMessage = error("Selection must be an integer");
-              }
-            } else {
-              returnMessage = error("Invalid message received");
-            }
-
-            // we are converting the JSON object we have to a byte[]
-            byte[] output = JsonUtils.toByteArray(returnMessage);
-            NetworkUtils.Send(out, output);
+
+            // the answer is already a whole frame (see ResponseCache), what NetworkUtils.Send would write
+            out.write(answer(responses, message));
+            out.flush();
           }
         } catch (Exception e) {
           System.out.println("Client disconnect");
@@ -22,7 +22,8 @@ import org.json.*;
 public class Client {
 	  /*
 	   * request: { "selected": <int: 1=joke, 2=quote, 3=image, 4=random>,
-	   * (optional)"min": <int>, (optional)"max":<int> }
+	   * (optional)"min": <int>, (optional)"max":<int>,
+	   * (optional)"binary": <bool: image as binary message, see NetworkUtils> }
 	   * 
 	   * response: {"datatype": <int: 1-string, 2-byte array>, "type": <"joke", "quote", "image"> "data": <thing to
 	   * return> }
@@ -59,6 +60,8 @@ public static JSONObject random() {
       InetAddress address = InetAddress.getByName("localhost");
       int port = 9000;
       sock = new DatagramSocket();
+      // lost packets are sent again, the server must run with udp.reliable too
+      ReliableSocket reliable = ReliableSocket.ENABLED ? new ReliableSocket(sock) : null;
 
       Scanner input = new Scanner(System.in);
       int choice;
@@ -88,9 +91,22 @@ public static JSONObject random() {
         }
 
         if (request != null) {
-          NetworkUtils.Send(sock, address, port, JsonUtils.toByteArray(request));
-          NetworkUtils.Tuple responseTuple = NetworkUtils.Receive(sock);
-          JSONObject response = JsonUtils.fromByteArray(responseTuple.Payload);
+          request.put("binary", true); // images as raw bytes, see NetworkUtils.toBinary
+          NetworkUtils.Tuple responseTuple;
+          if (reliable != null) {
+            reliable.send(address, port, JsonUtils.toByteArray(request));
+            responseTuple = reliable.receive();
+          } else {
+            NetworkUtils.Send(sock, address, port, JsonUtils.toByteArray(request));
+            responseTuple = NetworkUtils.Receive(sock);
+          }
+          byte[] responseBytes = responseTuple.Payload;
+          byte[] data = null;
+          if (NetworkUtils.isBinary(responseBytes)) {
+            data = NetworkUtils.binaryData(responseBytes);
+            responseBytes = NetworkUtils.binaryHeader(responseBytes);
+          }
+          JSONObject response = JsonUtils.fromByteArray(responseBytes);
           if (response.has("error")) {
               System.out.println(response.getString("error"));
             } else {
@@ -101,8 +117,12 @@ public static JSONObject random() {
                 break;
               case (2): {
               	  System.out.println("Your image");
-                Base64.Decoder decoder = Base64.getDecoder();
-                byte[] bytes = decoder.decode(response.getString("data"));
+                byte[] bytes = data;
+                if (bytes == null) {
+                  // a server without binary messages sends Base64 in the JSON
+                  Base64.Decoder decoder = Base64.getDecoder();
+                  bytes = decoder.decode(response.getString("data"));
+                }
                 ImageIcon icon = null;
                 try (ByteArrayInputStream bais = new ByteArrayInputStream(bytes)) {
                   BufferedImage image = ImageIO.read(bais);
@@ -0,0 +1,143 @@
+package fauxSolution.udp;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bad network inside the process: drops, delays and reorders the packets a
+ * ReliableSocket sends, so its retransmissions can be tried out on one machine.
+ *
+ * Every packet is lost with the probability loss. The others wait delay ms (the one way
+ * delay of the link), with the probability reorder a packet is held back until the next
+ * packet went out, at most REORDER_DELAY ms, so it is overtaken by one packet.
+ *
+ * Configured with system properties: -Dudp.loss=0.05 -Dudp.reorder=0.05 -Dudp.delay=10
+ */
+final class Impairment {
+  /** longest time in ms a reordered packet waits for the packet that overtakes it */
+  static final long REORDER_DELAY = 5;
+
+  /** a network that delivers everything right away */
+  static final Impairment NONE = new Impairment(0, 0, 0);
+
+  private final double loss;
+  private final double reorder;
+  private final long delay;
+  private final ScheduledExecutorService timer;
+  private final LongAdder dropped = new LongAdder();
+  private final LongAdder reordered = new LongAdder();
+  private DatagramPacket held = null; // reordered packet, goes out after the next one
+
+  /**
+   * @param loss probability that a packet is lost, 0 to 1
+   * @param reorder probability that a packet is overtaken by the next one, 0 to 1
+   * @param delay one way delay in ms of every packet
+   */
+  Impairment(double loss, double reorder, long delay) {
+    this.loss = loss;
+    this.reorder = reorder;
+    this.delay = delay;
+    this.timer = reorder > 0 || delay > 0 ? Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "udp-impairment");
+      thread.setDaemon(true);
+      return thread;
+    }) : null;
+  }
+
+  static Impairment fromProperties() {
+    double loss = Double.parseDouble(System.getProperty("udp.loss", "0"));
+    double reorder = Double.parseDouble(System.getProperty("udp.reorder", "0"));
+    long delay = Long.getLong("udp.delay", 0);
+    if (loss == 0 && reorder == 0 && delay == 0) {
+      return NONE;
+    }
+    System.out.println("Simulating a bad network: loss " + loss + ", reorder " + reorder + ", delay " + delay + " ms");
+    return new Impairment(loss, reorder, delay);
+  }
+
+  /**
+   * Sends the packet, maybe later or not at all
+   * @param packet must not be changed afterwards, it may still wait
+   */
+  void send(DatagramSocket sock, DatagramPacket packet) throws IOException {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    if (loss > 0 && random.nextDouble() < loss) {
+      dropped.increment();
+      return;
+    }
+    if (delay == 0) {
+      deliver(sock, packet);
+      return;
+    }
+    // the timer runs tasks with the same time in the order they were given
+    timer.schedule(() -> deliver(sock, packet), delay, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Sends the packet at the end of the link, or holds it back so the next one overtakes it
+   */
+  private void deliver(DatagramSocket sock, DatagramPacket packet) {
+    DatagramPacket overtaken;
+    synchronized (this) {
+      if (reorder > 0 && held == null && ThreadLocalRandom.current().nextDouble() < reorder) {
+        held = packet;
+        reordered.increment();
+        timer.schedule(() -> release(sock, packet), REORDER_DELAY, TimeUnit.MILLISECONDS);
+        return;
+      }
+      overtaken = held;
+      held = null;
+    }
+    send(sock, packet, overtaken);
+  }
+
+  /**
+   * No packet came to overtake the held one
+   */
+  private void release(DatagramSocket sock, DatagramPacket packet) {
+    synchronized (this) {
+      if (held != packet) {
+        return;
+      }
+      held = null;
+    }
+    send(sock, packet, null);
+  }
+
+  private static void send(DatagramSocket sock, DatagramPacket packet, DatagramPacket overtaken) {
+    try {
+      sock.send(packet);
+      if (overtaken != null) {
+        sock.send(overtaken);
+      }
+    } catch (IOException e) {
+      // socket closed meanwhile, the packet is lost like on a real network
+    }
+  }
+
+  /**
+   * Waits until the delayed packets went out, a real network would still deliver them
+   */
+  void close() {
+    if (timer == null) {
+      return;
+    }
+    timer.shutdown();
+    try {
+      timer.awaitTermination(delay + REORDER_DELAY + 100, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "dropped " + dropped.sum() + ", reordered " + reordered.sum();
+  }
+}
@@ -0,0 +1,160 @@
+package fauxSolution.udp;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONObject;
+
+/**
+ * Many clients at the same time against the Server, to compare the serial and the pool mode.
+ *
+ * Starts all client threads at the same moment, every client has its own socket and sends
+ * its requests one after the other with NetworkUtils.Send and Receive like the Client does
+ * (with ReliableSocket if -Dudp.reliable=true). requestSize pads every request with a
+ * field the server ignores, a request of more than 1012 bytes takes several packets: those
+ * of the clients arrive mixed up at the server. An answer counts if it is JSON without
+ * error, a client that gets no answer within TIMEOUT gives up and its other requests count
+ * as errors. At the end throughput and latency percentiles are printed.
+ *
+ * Example (server running with: gradle UDPServer -Pmode=pool):
+ *   gradle UDPLoadTest -Pclients=100 -Prequests=20 -Pselected=1 -PrequestSize=3000
+ */
+class LoadTest {
+  /** ms a client waits for an answer */
+  static final int TIMEOUT = 2000;
+  /** ms a client of the reliable mode waits, the server sends lost packets again meanwhile */
+  static final long RELIABLE_TIMEOUT = 30000;
+
+  public static void main(String args[]) throws Exception {
+    String host = "localhost";
+    int port = 9000;
+    int clients = 100;
+    int requests = 20;
+    int selected = 1;
+    int requestSize = 0;
+
+    try {
+      if (args.length > 0) host = args[0];
+      if (args.length > 1) port = Integer.parseInt(args[1]);
+      if (args.length > 2) clients = Integer.parseInt(args[2]);
+      if (args.length > 3) requests = Integer.parseInt(args[3]);
+      if (args.length > 4) selected = Integer.parseInt(args[4]);
+      if (args.length > 5) requestSize = Integer.parseInt(args[5]);
+    } catch (NumberFormatException e) {
+      System.out.println("Usage: LoadTest [host] [port(int)] [clients(int)] [requests per client(int)] [selected(int 1-4)] [requestSize(bytes)]");
+      System.exit(1);
+    }
+
+    run(InetAddress.getByName(host), port, clients, requests, selected, requestSize);
+  }
+
+  /**
+   * Runs one load test and prints the results
+   * @param address server address
+   * @param port server port
+   * @param clients number of concurrent clients
+   * @param requests number of requests every client sends
+   * @param selected what every request asks for, 1=joke, 2=quote, 3=image, 4=random
+   * @param requestSize bytes every request is padded to
+   */
+  static void run(InetAddress address, int port, int clients, int requests, int selected, int requestSize)
+      throws InterruptedException {
+    long[] latencies = new long[clients * requests];
+    AtomicInteger next = new AtomicInteger();
+    AtomicInteger errors = new AtomicInteger();
+    CountDownLatch start = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(clients);
+    JSONObject request = new JSONObject();
+    request.put("selected", selected);
+    request.put("binary", true);
+    int padding = requestSize - JsonUtils.toByteArray(request).length - 13; // ,"padding":""
+    if (padding > 0) {
+      char[] filler = new char[padding];
+      Arrays.fill(filler, 'x');
+      request.put("padding", new String(filler));
+    }
+    byte[] requestBytes = JsonUtils.toByteArray(request);
+
+    for (int c = 0; c < clients; c++) {
+      Thread client = new Thread(() -> {
+        try {
+          start.await();
+          sendRequests(address, port, requestBytes, requests, latencies, next, errors);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } finally {
+          done.countDown();
+        }
+      });
+      client.setDaemon(true);
+      client.start();
+    }
+
+    long begin = System.nanoTime();
+    start.countDown();
+    done.await();
+    long elapsed = System.nanoTime() - begin;
+
+    int ok = next.get();
+    long[] sorted = Arrays.copyOf(latencies, ok);
+    Arrays.sort(sorted);
+
+    System.out.println("Clients: " + clients + ", requests per client: " + requests + ", selected: " + selected
+        + ", request: " + requestBytes.length + " bytes, reliable: " + ReliableSocket.ENABLED);
+    System.out.println("Successful: " + ok + ", errors: " + errors.get());
+    System.out.printf("Elapsed: %.2f s, throughput: %.1f req/s%n", elapsed / 1e9, ok / (elapsed / 1e9));
+    if (ok > 0) {
+      System.out.printf("Latency ms  p50: %.2f  p90: %.2f  p99: %.2f  max: %.2f%n",
+          percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99), sorted[ok - 1] / 1e6);
+    }
+  }
+
+  /**
+   * Sends all requests of one client from one socket, a lost or broken answer ends the client
+   * and counts the rest of its requests as errors
+   */
+  private static void sendRequests(InetAddress address, int port, byte[] request, int requests,
+      long[] latencies, AtomicInteger next, AtomicInteger errors) {
+    int sent = 0;
+    try (DatagramSocket sock = new DatagramSocket();
+        ReliableSocket reliable = ReliableSocket.ENABLED ? new ReliableSocket(sock) : null) {
+      if (reliable == null) {
+        sock.setSoTimeout(TIMEOUT); // the reliable mode reads the socket in its own thread
+      }
+      for (; sent < requests; sent++) {
+        long begin = System.nanoTime();
+        NetworkUtils.Tuple answerTuple;
+        if (reliable != null) {
+          reliable.send(address, port, request);
+          answerTuple = reliable.receive(RELIABLE_TIMEOUT);
+        } else {
+          NetworkUtils.Send(sock, address, port, request);
+          answerTuple = NetworkUtils.Receive(sock);
+        }
+        byte[] answer = answerTuple.Payload;
+        if (NetworkUtils.isBinary(answer)) {
+          NetworkUtils.binaryData(answer);
+          answer = NetworkUtils.binaryHeader(answer);
+        }
+        JSONObject response = JsonUtils.fromByteArray(answer);
+        if (response.has("error")) {
+          errors.incrementAndGet();
+        } else {
+          latencies[next.getAndIncrement()] = System.nanoTime() - begin;
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      // timed out (a packet was lost) or not JSON
+      errors.addAndGet(requests - sent);
+    }
+  }
+
+  private static double percentile(long[] sorted, int percent) {
+    int index = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+    return sorted[Math.max(0, index)] / 1e6;
+  }
+}
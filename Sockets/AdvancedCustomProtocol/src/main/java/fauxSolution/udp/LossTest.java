@@ -0,0 +1,100 @@
+package fauxSolution.udp;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Sends large messages with ReliableSocket over a bad network inside this process
+ * (Impairment) and checks that every byte arrives.
+ *
+ * A server thread answers every request with a message of the given size, the client asks
+ * for one after the other. First without loss and reordering (only the delay), that is the
+ * line rate, then with them. Prints the throughput of both, how long a message took and
+ * the counters of the retransmissions. With NetworkUtils.Send and Receive the first lost
+ * packet would make the client wait forever.
+ *
+ *   gradle UDPLossTest -Psize=1000000 -Ptransfers=20 -Ploss=0.05 -Preorder=0.05 -Pdelay=5 -Pwindow=64
+ */
+class LossTest {
+  public static void main(String args[]) throws Exception {
+    int size = 1_000_000;
+    int transfers = 20;
+    double loss = 0.05;
+    double reorder = 0.05;
+    long delay = 0;
+    int window = ReliableSocket.WINDOW;
+
+    try {
+      if (args.length > 0) size = Integer.parseInt(args[0]);
+      if (args.length > 1) transfers = Integer.parseInt(args[1]);
+      if (args.length > 2) loss = Double.parseDouble(args[2]);
+      if (args.length > 3) reorder = Double.parseDouble(args[3]);
+      if (args.length > 4) delay = Long.parseLong(args[4]);
+      if (args.length > 5) window = Integer.parseInt(args[5]);
+    } catch (NumberFormatException e) {
+      System.out.println("Usage: LossTest [size(bytes)] [transfers(int)] [loss(0-1)] [reorder(0-1)] [delay(ms)] [window(packets)]");
+      System.exit(1);
+    }
+
+    System.out.println("Message " + size + " bytes, " + transfers + " transfers, window " + window
+        + " packets, delay " + delay + " ms");
+    run(size, transfers, 0, 0, delay, window); // warm up
+    double line = run(size, transfers, 0, 0, delay, window);
+    double lossy = run(size, transfers, loss, reorder, delay, window);
+    System.out.printf("With loss and reordering %.0f%% of the line rate%n", 100 * lossy / line);
+  }
+
+  /**
+   * @return throughput in MB/s
+   */
+  private static double run(int size, int transfers, double loss, double reorder, long delay, int window)
+      throws Exception {
+    byte[] message = new byte[size];
+    new Random(42).nextBytes(message);
+    InetAddress localhost = InetAddress.getLoopbackAddress();
+    long[] times = new long[transfers];
+
+    try (ReliableSocket server = new ReliableSocket(new DatagramSocket(0, localhost), window,
+            new Impairment(loss, reorder, delay));
+        ReliableSocket client = new ReliableSocket(new DatagramSocket(0, localhost), window,
+            new Impairment(loss, reorder, delay))) {
+      int serverPort = server.getLocalPort();
+      Thread answering = new Thread(() -> {
+        try {
+          while (true) {
+            NetworkUtils.Tuple request = server.receive();
+            server.send(request.Address, request.Port, message);
+          }
+        } catch (IOException e) {
+          // closed at the end
+        }
+      }, "loss-test-server");
+      answering.setDaemon(true);
+      answering.start();
+
+      long begin = System.nanoTime();
+      for (int i = 0; i < transfers; i++) {
+        long start = System.nanoTime();
+        client.send(localhost, serverPort, ByteBuffer.allocate(4).putInt(i).array());
+        NetworkUtils.Tuple answer = client.receive();
+        times[i] = System.nanoTime() - start;
+        if (!Arrays.equals(message, answer.Payload)) {
+          throw new IllegalStateException("Transfer " + i + " arrived broken");
+        }
+      }
+      double seconds = (System.nanoTime() - begin) / 1e9;
+      double rate = (double) size * transfers / seconds / 1e6;
+
+      Arrays.sort(times);
+      System.out.printf("loss %.2f, reorder %.2f: %.1f MB/s, transfer ms p50: %.1f  max: %.1f, all bytes correct%n",
+          loss, reorder, rate, times[transfers / 2] / 1e6, times[transfers - 1] / 1e6);
+      System.out.println("  server: " + server.stats());
+      System.out.println("  client: " + client.stats());
+      return rate;
+    }
+  }
+}
@@ -26,9 +26,25 @@ public class NetworkUtils {
    *   payload(byte[])
    * ]
    */
+  // no ACKs, a lost packet is lost for good (see ReliableSocket for the reliable mode)
   public static void Send(DatagramSocket sock, InetAddress addr, int port, byte... bytes) throws IOException {
+    SendPackets(sock, addr, port, packets(bytes));
+  }
+
+  // sends packets made by packets(), e.g. prepared once and sent to many clients
+  public static void SendPackets(DatagramSocket sock, InetAddress addr, int port, byte[][] packets) throws IOException {
+    for (byte[] buffer : packets) {
+      DatagramPacket packet = new DatagramPacket(buffer, buffer.length, addr, port);
+      sock.send(packet);
+    }
+  }
+
+  // splits the message into the packets described above
+  public static byte[][] packets(byte... bytes) {
     int maxBufferLength = 1024 - 12;
-    int packetsTotal = bytes.length / maxBufferLength + 1;
+    // rounded up, a message of exactly n * maxBufferLength bytes has n packets and not n + 1
+    int packetsTotal = (bytes.length + maxBufferLength - 1) / maxBufferLength;
+    byte[][] packets = new byte[packetsTotal][];
     
     int offset = 0;
     int packetNum = 0;
@@ -45,13 +61,12 @@ public class NetworkUtils {
       System.arraycopy(currentBytes, 0, buffer, 4, 4);
       System.arraycopy(lengthBytes, 0, buffer, 8, 4);
       System.arraycopy(bytes, offset, buffer, 12, length);
-      
-      DatagramPacket packet = new DatagramPacket(buffer, buffer.length, addr, port);
-      sock.send(packet);
+      packets[packetNum] = buffer;
       
       packetNum++;
       offset += length;
     }
+    return packets;
   }
 
   static class Packet {
@@ -110,6 +125,8 @@ public class NetworkUtils {
   }
  
   // reading in all the packets and adding them to "packets"
+  // NOTE: every packet read is taken as part of the same message, with several senders at once
+  // use a ReassemblyTable (see PooledServer)
   // collecting packets as long as the size of the packets is smaller then the total ones we are supposed to receice
   public static Tuple Receive(DatagramSocket sock) throws IOException {
     ArrayList<Packet> packets = new ArrayList<Packet>();
@@ -130,4 +147,58 @@ public class NetworkUtils {
     DatagramPacket first = packets.get(0).Packet;
     return new Tuple(first.getAddress(), first.getPort(), buffer);
   }
+
+  /* binary message, sent instead of the JSON message if the request has "binary": true
+   * [
+   *   messageType(1 byte, BINARY), -- a JSON message starts with '{' instead
+   *   headerLength(4-byte int),    -- length of the header
+   *   dataLength(4-byte int),      -- length of the data
+   *   header(byte[]),              -- JSON with what the data is, e.g. {"datatype": 2, "type": "image"}
+   *   data(byte[])                 -- the raw bytes, no Base64
+   * ]
+   */
+  public static final byte BINARY = 2;
+
+  public static byte[] toBinary(byte[] header, byte[] data) {
+    byte[] message = new byte[9 + header.length + data.length];
+    message[0] = BINARY;
+    System.arraycopy(intToBytes(header.length), 0, message, 1, 4);
+    System.arraycopy(intToBytes(data.length), 0, message, 5, 4);
+    System.arraycopy(header, 0, message, 9, header.length);
+    System.arraycopy(data, 0, message, 9 + header.length, data.length);
+    return message;
+  }
+
+  public static boolean isBinary(byte[] message) {
+    return message.length >= 9 && message[0] == BINARY;
+  }
+
+  // the JSON header of a binary message
+  public static byte[] binaryHeader(byte[] message) throws IOException {
+    int headerLength = binaryLength(message, 1);
+    byte[] header = new byte[headerLength];
+    System.arraycopy(message, 9, header, 0, headerLength);
+    return header;
+  }
+
+  // the raw data of a binary message
+  public static byte[] binaryData(byte[] message) throws IOException {
+    int headerLength = binaryLength(message, 1);
+    int dataLength = binaryLength(message, 5);
+    if (9L + headerLength + dataLength != message.length) {
+      throw new IOException("Binary message of " + message.length + " bytes, the lengths say "
+          + (9L + headerLength + dataLength));
+    }
+    byte[] data = new byte[dataLength];
+    System.arraycopy(message, 9 + headerLength, data, 0, dataLength);
+    return data;
+  }
+
+  private static int binaryLength(byte[] message, int offset) throws IOException {
+    int length = bytesToInt(new byte[] { message[offset], message[offset + 1], message[offset + 2], message[offset + 3] });
+    if (length < 0 || length > message.length - 9) {
+      throw new IOException("Broken binary message, length " + length);
+    }
+    return length;
+  }
 }
@@ -0,0 +1,191 @@
+package fauxSolution.udp;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import fauxSolution.udp.ReassemblyTable.Key;
+
+/**
+ * The same protocol as the single-threaded Server, but many clients at once.
+ *
+ * The Server reads with NetworkUtils.Receive, which takes the next datagrams as the
+ * packets of one message, whoever sent them. When two clients send requests of several
+ * packets at the same time their packets end up in one broken message. Here one thread
+ * reads every datagram and puts it into a ReassemblyTable under (address, port, 0): the
+ * packets of NetworkUtils.Send have no message number, but a client sends one request at a
+ * time and waits for the answer. A packet number that is already there, or another total,
+ * means the client started a new request after the old one lost a packet (nothing is sent
+ * again), the old one is dropped then.
+ *
+ * Complete requests are answered by Server.answer on a pool of worker threads, which send
+ * the packets of the answer themselves (DatagramSocket.send can be called by several
+ * threads at once). Requests that find all workers busy wait, beyond MAX_QUEUED they are
+ * dropped like on a full network.
+ *
+ * In the reliable mode the ReliableSocket has its own table with message numbers, the
+ * workers answer what its receive returns. There a send waits for the ACKs of the client,
+ * so the pool lets the answers to slow clients go out at the same time.
+ */
+class PooledServer {
+  /** requests waiting for a worker, change with -Dudp.maxQueued=n */
+  static final int MAX_QUEUED = Integer.getInteger("udp.maxQueued", 1024);
+  /** requests of several packets received at the same time, change with -Dudp.maxMessages=n */
+  static final int MAX_MESSAGES = Integer.getInteger("udp.maxMessages", 1024);
+  /** bytes of all of them together, change with -Dudp.maxMessageBytes=n */
+  static final long MAX_MESSAGE_BYTES = Long.getLong("udp.maxMessageBytes", 16 * 1024 * 1024);
+  /** time in ms a request waits for its next packet, change with -Dudp.messageTimeout=ms */
+  static final long MESSAGE_TIMEOUT = Long.getLong("udp.messageTimeout", 5000);
+  /** packets of the largest request, 64 KB, the requests are small JSON */
+  static final int MAX_REQUEST_PACKETS = 64;
+  /**
+   * bytes the system may hold for the socket until the reader gets to them, change with
+   * -Dudp.receiveBuffer=n (the usual 208 KB overflow when many clients send at once)
+   */
+  static final int RECEIVE_BUFFER = Integer.getInteger("udp.receiveBuffer", 4 * 1024 * 1024);
+
+  private final DatagramSocket sock;
+  private final int threads;
+  private final ExecutorService workers;
+  private final ResponseCache responses;
+  // a client that stopped sending is dropped for a new one, nothing was promised to it
+  private final ReassemblyTable messages = new ReassemblyTable(MAX_MESSAGES, MAX_MESSAGE_BYTES, MESSAGE_TIMEOUT, true);
+
+  private final LongAdder broken = new LongAdder();
+  private final LongAdder dropped = new LongAdder();
+
+  /**
+   * @param sock bound socket
+   * @param threads worker threads that answer the requests
+   * @param responses the prepared answers
+   */
+  PooledServer(DatagramSocket sock, int threads, ResponseCache responses) {
+    this.sock = sock;
+    this.threads = threads;
+    this.responses = responses;
+    this.workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(MAX_QUEUED));
+  }
+
+  /**
+   * Serves the packets of NetworkUtils.Send until the socket is closed
+   */
+  void run() throws IOException {
+    sock.setReceiveBufferSize(RECEIVE_BUFFER);
+    System.out.println("Pool mode, " + threads + " worker threads, receive buffer " + sock.getReceiveBufferSize()
+        + " bytes");
+    byte[] buffer = new byte[1024];
+    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+    long lastSweep = System.currentTimeMillis();
+    while (true) {
+      packet.setLength(buffer.length);
+      sock.receive(packet);
+      long now = System.currentTimeMillis();
+      byte[] request = reassemble(packet, now);
+      if (request != null) {
+        InetAddress address = packet.getAddress();
+        int port = packet.getPort();
+        submit(() -> answer(address, port, request));
+      }
+      if (now - lastSweep >= 1000) {
+        messages.expire(now);
+        lastSweep = now;
+      }
+    }
+  }
+
+  /**
+   * Serves the messages of the reliable mode until the socket is closed
+   */
+  void runReliable(ReliableSocket reliable) throws IOException {
+    sock.setReceiveBufferSize(RECEIVE_BUFFER);
+    System.out.println("Pool mode, " + threads + " worker threads, reliable, window " + ReliableSocket.WINDOW
+        + " packets");
+    while (true) {
+      NetworkUtils.Tuple request = reliable.receive();
+      submit(() -> {
+        try {
+          JSONObject message = JsonUtils.fromByteArray(request.Payload);
+          reliable.send(request.Address, request.Port, Server.answer(responses, message).message);
+        } catch (IOException | JSONException e) {
+          System.out.println("Client " + request.Address + ":" + request.Port + ": " + e.getMessage());
+        }
+      });
+    }
+  }
+
+  /**
+   * @return counters of the dropped packets and requests
+   */
+  String stats() {
+    return "broken packets " + broken.sum() + ", requests dropped " + dropped.sum() + ", table "
+        + messages.stats();
+  }
+
+  /**
+   * Puts the packet into its request
+   * @return the request once all of its packets are there, else null
+   */
+  private byte[] reassemble(DatagramPacket packet, long now) {
+    ByteBuffer in = ByteBuffer.wrap(packet.getData(), 0, packet.getLength());
+    if (in.remaining() < 12) {
+      broken.increment();
+      return null;
+    }
+    int total = in.getInt();
+    int current = in.getInt();
+    int length = in.getInt();
+    if (total <= 0 || total > MAX_REQUEST_PACKETS || current < 0 || current >= total || length != in.remaining()) {
+      broken.increment(); // e.g. a packet of the reliable mode
+      return null;
+    }
+    byte[] part = new byte[length];
+    in.get(part);
+
+    Key key = new Key(packet.getAddress(), packet.getPort(), 0);
+    if (total == 1) {
+      messages.remove(key); // a request before lost a packet
+      return part;
+    }
+    ReassemblyTable.Entry entry = messages.get(key, now);
+    if (entry == null || entry.total() != total || entry.has(current)) {
+      entry = messages.open(key, total, now);
+      if (entry == null) {
+        return null;
+      }
+    }
+    if (!messages.add(entry, current, part, now) || !entry.complete()) {
+      return null;
+    }
+    messages.remove(key);
+    return entry.assemble();
+  }
+
+  private void answer(InetAddress address, int port, byte[] request) {
+    try {
+      JSONObject message = JsonUtils.fromByteArray(request);
+      NetworkUtils.SendPackets(sock, address, port, Server.answer(responses, message).packets);
+    } catch (IOException | JSONException e) {
+      System.out.println("Client " + address + ":" + port + ": " + e.getMessage());
+    }
+  }
+
+  private void submit(Runnable task) {
+    try {
+      workers.execute(task);
+    } catch (RejectedExecutionException e) {
+      dropped.increment(); // all workers busy and the queue full, the client asks again or gives up
+    }
+  }
+}
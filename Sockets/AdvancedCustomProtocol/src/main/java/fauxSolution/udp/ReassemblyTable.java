@@ -0,0 +1,241 @@
+package fauxSolution.udp;
+
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The messages being received, one entry per (address, port, messageId), so the packets of
+ * several senders can arrive mixed up and still end up in the right message.
+ *
+ * The memory is bounded: at most maxEntries messages and maxBytes bytes (the parts and a
+ * slot for every packet of a message). A message that got no packet for timeout ms is
+ * dropped by expire. When a new packet does not fit, the entries that timed out go first,
+ * then, if evictOldest, the ones that got a packet the longest time ago. Otherwise the
+ * packet is refused, e.g. for ReliableSocket, which acknowledged the parts it has and
+ * could not know that they are gone.
+ *
+ * Not thread safe, only the thread that reads the socket uses it.
+ */
+final class ReassemblyTable {
+  /**
+   * A message: who sent it and its number
+   */
+  static final class Key {
+    final InetAddress address;
+    final int port;
+    final int messageId;
+
+    Key(InetAddress address, int port, int messageId) {
+      this.address = address;
+      this.port = port;
+      this.messageId = messageId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return port == other.port && messageId == other.messageId && address.equals(other.address);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(address, port, messageId);
+    }
+
+    @Override
+    public String toString() {
+      return address.getHostAddress() + ":" + port + "#" + messageId;
+    }
+  }
+
+  /**
+   * A message being received
+   */
+  static final class Entry {
+    final byte[][] parts;
+    int received = 0;
+    int cumulative = 0; // all parts below arrived
+    int highest = -1;
+    long bytes; // counted against maxBytes
+    long lastActive;
+
+    private Entry(int total, long now) {
+      this.parts = new byte[total][];
+      this.bytes = slotBytes(total);
+      this.lastActive = now;
+    }
+
+    int total() {
+      return parts.length;
+    }
+
+    boolean has(int seq) {
+      return parts[seq] != null;
+    }
+
+    boolean complete() {
+      return received == parts.length;
+    }
+
+    byte[] assemble() {
+      int length = 0;
+      for (byte[] part : parts) {
+        length += part.length;
+      }
+      byte[] message = new byte[length];
+      int offset = 0;
+      for (byte[] part : parts) {
+        System.arraycopy(part, 0, message, offset, part.length);
+        offset += part.length;
+      }
+      return message;
+    }
+
+    private static long slotBytes(int total) {
+      return 16 + 8L * total;
+    }
+  }
+
+  private final int maxEntries;
+  private final long maxBytes;
+  private final long timeout;
+  private final boolean evictOldest;
+  // in the order of the last packet (get and open), the first one is idle the longest
+  private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long bytes = 0;
+
+  private final LongAdder expired = new LongAdder();
+  private final LongAdder evicted = new LongAdder();
+  private final LongAdder refused = new LongAdder();
+
+  /**
+   * @param maxEntries messages received at the same time
+   * @param maxBytes bytes of all of them together
+   * @param timeout ms a message waits for its next packet
+   * @param evictOldest drop the message idle the longest when full instead of the new packet
+   */
+  ReassemblyTable(int maxEntries, long maxBytes, long timeout, boolean evictOldest) {
+    this.maxEntries = maxEntries;
+    this.maxBytes = maxBytes;
+    this.timeout = timeout;
+    this.evictOldest = evictOldest;
+  }
+
+  /**
+   * A packet of the message arrived, it is not idle anymore
+   * @return the message, null if none of its packets is here
+   */
+  Entry get(Key key, long now) {
+    Entry entry = entries.get(key);
+    if (entry != null) {
+      entry.lastActive = now;
+    }
+    return entry;
+  }
+
+  /**
+   * Starts a message, a message with the same key is dropped
+   * @param total number of packets of the message
+   * @return the new entry, null if the table is full
+   */
+  Entry open(Key key, int total, long now) {
+    remove(key);
+    long needed = Entry.slotBytes(total);
+    if (!makeRoom(1, needed, null, now)) {
+      refused.increment();
+      return null;
+    }
+    Entry entry = new Entry(total, now);
+    entries.put(key, entry);
+    bytes += entry.bytes;
+    return entry;
+  }
+
+  /**
+   * Stores a part of the message, the caller checked that it is not there yet
+   * @return false if there is no room for it, the packet is dropped then
+   */
+  boolean add(Entry entry, int seq, byte[] part, long now) {
+    if (!makeRoom(0, part.length, entry, now)) {
+      refused.increment();
+      return false;
+    }
+    entry.parts[seq] = part;
+    entry.bytes += part.length;
+    bytes += part.length;
+    entry.received++;
+    entry.highest = Math.max(entry.highest, seq);
+    while (entry.cumulative < entry.parts.length && entry.parts[entry.cumulative] != null) {
+      entry.cumulative++;
+    }
+    return true;
+  }
+
+  /**
+   * Drops the message, e.g. once it is complete
+   */
+  void remove(Key key) {
+    Entry entry = entries.remove(key);
+    if (entry != null) {
+      bytes -= entry.bytes;
+    }
+  }
+
+  /**
+   * Drops the messages that got no packet for the timeout
+   */
+  void expire(long now) {
+    Iterator<Entry> idle = entries.values().iterator();
+    while (idle.hasNext()) {
+      Entry entry = idle.next();
+      if (now - entry.lastActive <= timeout) {
+        break; // the ones after it got a packet later
+      }
+      idle.remove();
+      bytes -= entry.bytes;
+      expired.increment();
+    }
+  }
+
+  int size() {
+    return entries.size();
+  }
+
+  /**
+   * @return what is in the table and how many messages were dropped
+   */
+  String stats() {
+    return entries.size() + " messages, " + bytes + " bytes, expired " + expired.sum() + ", evicted "
+        + evicted.sum() + ", packets refused " + refused.sum();
+  }
+
+  /**
+   * @param keep entry that must stay, the packet is for it
+   * @return whether more entries and needed bytes fit now
+   */
+  private boolean makeRoom(int more, long needed, Entry keep, long now) {
+    if (entries.size() + more <= maxEntries && bytes + needed <= maxBytes) {
+      return true;
+    }
+    expire(now);
+    if (evictOldest) {
+      Iterator<Entry> idle = entries.values().iterator();
+      while ((entries.size() + more > maxEntries || bytes + needed > maxBytes) && idle.hasNext()) {
+        Entry entry = idle.next();
+        if (entry == keep) {
+          continue;
+        }
+        idle.remove();
+        bytes -= entry.bytes;
+        evicted.increment();
+      }
+    }
+    return entries.size() + more <= maxEntries && bytes + needed <= maxBytes;
+  }
+}
@@ -0,0 +1,547 @@
+package fauxSolution.udp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import fauxSolution.udp.ReassemblyTable.Key;
+
+/**
+ * Reliable messages over UDP, for the packets NetworkUtils.Send loses without noticing.
+ *
+ * A message is split into numbered data packets, the receiver answers every data packet
+ * with an ACK that says what arrived so far, and the sender sends again what is missing.
+ *
+ *   data [ 1 (1 byte), messageId (4-byte int), seq (4-byte int), total (4-byte int), payload ]
+ *   ack  [ 2 (1 byte), messageId (4-byte int), cumulative (4-byte int), blocks (1 byte),
+ *          blocks x ( first (4-byte int), end (4-byte int) ) ]
+ *
+ * cumulative: all packets below it arrived. A block (selective ACK): the packets first to
+ * end - 1 arrived too, so the sender knows exactly which ones are missing. The first byte
+ * tells the packets apart from the ones of NetworkUtils.Send, whose first byte is always 0.
+ *
+ * Sender (selective repeat): at most window packets are on their way, sent and not yet
+ * acknowledged. Packets acknowledged in a block do not count, so new packets keep going
+ * out while a lost one is sent again (like TCP with SACK, RFC 6675). A packet is sent again
+ * - when DUP_THRESH packets sent after it were acknowledged (fast retransmit, a loss is
+ *   much more likely than such a reordering), and again when that copy is lost too: a
+ *   packet sent after it was acknowledged and a round trip and a quarter have passed
+ *   (like RACK, RFC 8985)
+ * - when it is not acknowledged within the RTO, which is measured from the round trip
+ *   times like TCP does it (RFC 6298, only packets sent once give a sample), and doubled
+ *   after every timeout
+ * After MAX_TRANSMISSIONS of one packet send gives up with an IOException.
+ *
+ * A thread reads the socket: it puts complete messages into the queue of receive, answers
+ * data packets and hands ACKs to the sending threads, so several threads can send at once.
+ * Messages that were received are remembered for a while, when the last ACK was lost and
+ * the sender tries again it gets the ACK again.
+ */
+class ReliableSocket implements Closeable {
+  /** Server and Client use the reliable mode, change with -Dudp.reliable=true */
+  static final boolean ENABLED = Boolean.getBoolean("udp.reliable");
+
+  static final byte DATA = 1;
+  static final byte ACK = 2;
+  static final int DATA_HEADER = 13;
+  /** payload of a data packet, the packet has 1024 bytes like the ones of NetworkUtils.Send */
+  static final int MAX_PAYLOAD = 1024 - DATA_HEADER;
+  static final int MAX_SACK_BLOCKS = 16;
+
+  /** packets on their way (sent, not acknowledged), change with -Dudp.window=n */
+  static final int WINDOW = Integer.getInteger("udp.window", 64);
+  /** windows the newest packet may be ahead of the first missing one, keeps the ACK work small */
+  static final int MAX_AHEAD = 8;
+  /**
+   * least time in ms the RTO waits longer than the round trip, change with -Dudp.rtoMargin=ms
+   * (on a steady link the variance goes to 0 and the smallest delay would look like a loss)
+   */
+  static final long RTO_MARGIN = Long.getLong("udp.rtoMargin", 10);
+  static final long INITIAL_RTO = 200;
+  static final long MAX_RTO = 2000;
+  /** sends of one packet before giving up, change with -Dudp.maxTries=n */
+  static final int MAX_TRANSMISSIONS = Integer.getInteger("udp.maxTries", 10);
+  /** packets acknowledged after a missing one that make it lost */
+  static final int DUP_THRESH = 3;
+
+  /** largest message is MAX_PACKETS * MAX_PAYLOAD, about 16 MB */
+  static final int MAX_PACKETS = 16 * 1024;
+  /** messages received at the same time, packets of more are dropped */
+  static final int MAX_INCOMING = 256;
+  /** bytes of all messages received at the same time, change with -Dudp.maxIncomingBytes=n */
+  static final long MAX_INCOMING_BYTES = Long.getLong("udp.maxIncomingBytes", 64 * 1024 * 1024);
+  /** time in ms an incomplete message waits for more packets, and a received one is remembered */
+  static final long INCOMING_TIMEOUT = 30000;
+  private static final int MAX_REMEMBERED = 4096;
+
+  private final DatagramSocket sock;
+  private final int window;
+  private final Impairment impairment;
+  private final AtomicInteger nextMessageId = new AtomicInteger(new Random().nextInt());
+  private final BlockingQueue<NetworkUtils.Tuple> received = new LinkedBlockingQueue<>(1024);
+  private final Map<Key, Transfer> sending = new ConcurrentHashMap<>();
+  private final Map<InetSocketAddress, Rtt> rtts = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<InetSocketAddress, Rtt> eldest) {
+      return size() > 1024;
+    }
+  });
+  // only used by the receiver thread
+  // the receiver has acknowledged the parts it has, a message is never evicted for a new one
+  private final ReassemblyTable incoming = new ReassemblyTable(MAX_INCOMING, MAX_INCOMING_BYTES, INCOMING_TIMEOUT, false);
+  private final LinkedHashMap<Key, Long> remembered = new LinkedHashMap<>();
+  private final Thread receiver;
+
+  private final LongAdder dataSent = new LongAdder();
+  private final LongAdder timeouts = new LongAdder();
+  private final LongAdder fastRetransmits = new LongAdder();
+  private final LongAdder acksSent = new LongAdder();
+  private final LongAdder duplicates = new LongAdder();
+
+  /**
+   * Uses the window and bad network of the system properties
+   */
+  ReliableSocket(DatagramSocket sock) {
+    this(sock, WINDOW, Impairment.fromProperties());
+  }
+
+  /**
+   * @param sock bound socket, from now on only read by this object
+   * @param window packets on their way (sent, not acknowledged)
+   * @param impairment bad network for tests, Impairment.NONE for a real one
+   */
+  ReliableSocket(DatagramSocket sock, int window, Impairment impairment) {
+    this.sock = sock;
+    this.window = window;
+    this.impairment = impairment;
+    this.receiver = new Thread(this::receiveLoop, "udp-receiver");
+    receiver.setDaemon(true);
+    receiver.start();
+  }
+
+  /**
+   * Sends the message and waits until the receiver has all of it
+   * @throws IOException if a packet was not acknowledged after MAX_TRANSMISSIONS sends
+   */
+  public void send(InetAddress address, int port, byte[] message) throws IOException {
+    int messageId = nextMessageId.getAndIncrement();
+    Key key = new Key(address, port, messageId);
+    Transfer transfer = new Transfer(key, packets(messageId, message), rtt(address, port));
+    sending.put(key, transfer);
+    try {
+      transfer.run();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Send interrupted");
+    } finally {
+      sending.remove(key);
+    }
+  }
+
+  /**
+   * Waits for the next complete message
+   * @throws IOException if the socket was closed
+   */
+  public NetworkUtils.Tuple receive() throws IOException {
+    return receive(Long.MAX_VALUE);
+  }
+
+  /**
+   * Waits for the next complete message at most timeout ms
+   * @throws SocketTimeoutException if none came in time
+   * @throws IOException if the socket was closed
+   */
+  public NetworkUtils.Tuple receive(long timeout) throws IOException {
+    long deadline = timeout == Long.MAX_VALUE ? Long.MAX_VALUE : System.currentTimeMillis() + timeout;
+    try {
+      while (true) {
+        NetworkUtils.Tuple message = received.poll(100, TimeUnit.MILLISECONDS);
+        if (message != null) {
+          return message;
+        }
+        if (!receiver.isAlive()) {
+          throw new IOException("Socket closed");
+        }
+        if (System.currentTimeMillis() >= deadline) {
+          throw new SocketTimeoutException("No message within " + timeout + " ms");
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Receive interrupted");
+    }
+  }
+
+  public int getLocalPort() {
+    return sock.getLocalPort();
+  }
+
+  @Override
+  public void close() {
+    impairment.close(); // lets the delayed packets, e.g. the last ACK, go out first
+    sock.close();
+  }
+
+  /**
+   * @return counters of the sent and received packets
+   */
+  String stats() {
+    return "data sent " + dataSent.sum() + ", timeouts " + timeouts.sum() + ", fast retransmits "
+        + fastRetransmits.sum() + ", acks sent " + acksSent.sum() + ", duplicates received " + duplicates.sum()
+        + (impairment == Impairment.NONE ? "" : ", network " + impairment);
+  }
+
+  private static byte[][] packets(int messageId, byte[] message) {
+    // an empty message still needs a packet
+    int total = Math.max(1, (message.length + MAX_PAYLOAD - 1) / MAX_PAYLOAD);
+    if (total > MAX_PACKETS) {
+      throw new IllegalArgumentException("Message of " + message.length + " bytes is too large");
+    }
+    byte[][] packets = new byte[total][];
+    for (int seq = 0; seq < total; seq++) {
+      int offset = seq * MAX_PAYLOAD;
+      int length = Math.min(MAX_PAYLOAD, message.length - offset);
+      ByteBuffer packet = ByteBuffer.allocate(DATA_HEADER + length);
+      packet.put(DATA).putInt(messageId).putInt(seq).putInt(total).put(message, offset, length);
+      packets[seq] = packet.array();
+    }
+    return packets;
+  }
+
+  private Rtt rtt(InetAddress address, int port) {
+    return rtts.computeIfAbsent(new InetSocketAddress(address, port), a -> new Rtt());
+  }
+
+  private void sendPacket(Key key, byte[] packet) throws IOException {
+    impairment.send(sock, new DatagramPacket(packet, packet.length, key.address, key.port));
+  }
+
+  /**
+   * Round trip time and retransmission timeout of one peer (RFC 6298), in ns
+   */
+  private static class Rtt {
+    private long srtt = -1;
+    private long rttvar = 0;
+    private long rto = TimeUnit.MILLISECONDS.toNanos(INITIAL_RTO);
+
+    synchronized void sample(long rtt) {
+      if (srtt < 0) {
+        srtt = rtt;
+        rttvar = rtt / 2;
+      } else {
+        rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4;
+        srtt = (7 * srtt + rtt) / 8;
+      }
+      rto = Math.min(TimeUnit.MILLISECONDS.toNanos(MAX_RTO),
+          srtt + Math.max(TimeUnit.MILLISECONDS.toNanos(RTO_MARGIN), 4 * rttvar));
+    }
+
+    synchronized void backOff() {
+      rto = Math.min(TimeUnit.MILLISECONDS.toNanos(MAX_RTO), 2 * rto);
+    }
+
+    synchronized long rto() {
+      return rto;
+    }
+
+    /**
+     * @return smoothed round trip time, the RTO before the first sample
+     */
+    synchronized long srtt() {
+      return srtt < 0 ? rto : srtt;
+    }
+  }
+
+  /**
+   * One message being sent, run by the sending thread, acked by the receiver thread
+   */
+  private class Transfer {
+    final Key key;
+    final byte[][] packets;
+    final Rtt rtt;
+    final boolean[] acked;
+    final long[] sentAt;
+    final int[] transmissions;
+    final boolean[] fastRetransmitted;
+    final int[] resend;
+    int base = 0; // first packet not acknowledged
+    int next = 0; // first packet never sent
+    int ackedCount = 0;
+    long deliveredSentAt = Long.MIN_VALUE; // latest send time of an acknowledged packet
+    boolean closed = false;
+
+    Transfer(Key key, byte[][] packets, Rtt rtt) {
+      this.key = key;
+      this.packets = packets;
+      this.rtt = rtt;
+      this.acked = new boolean[packets.length];
+      this.sentAt = new long[packets.length];
+      this.transmissions = new int[packets.length];
+      this.fastRetransmitted = new boolean[packets.length];
+      this.resend = new int[Math.min(packets.length, MAX_AHEAD * window)];
+    }
+
+    synchronized void run() throws IOException, InterruptedException {
+      while (ackedCount < packets.length) {
+        if (closed) {
+          throw new IOException("Socket closed");
+        }
+        long now = System.nanoTime();
+        long rto = rtt.rto();
+        long srtt = rtt.srtt();
+        long deadline = Long.MAX_VALUE;
+
+        // missing packets, from the top so the acknowledged ones above each are counted
+        int count = 0;
+        boolean timedOut = false;
+        int ackedAbove = 0;
+        for (int i = next - 1; i >= base; i--) {
+          if (acked[i]) {
+            ackedAbove++;
+          } else if (!fastRetransmitted[i] && ackedAbove >= DUP_THRESH) {
+            fastRetransmitted[i] = true;
+            fastRetransmits.increment();
+            resend[count++] = i;
+          } else if (fastRetransmitted[i] && deliveredSentAt > sentAt[i] && now - sentAt[i] >= srtt + srtt / 4) {
+            // the fast retransmit got lost as well, a packet sent after it got through
+            fastRetransmits.increment();
+            resend[count++] = i;
+          } else if (now - sentAt[i] >= rto) {
+            timedOut = true;
+            timeouts.increment();
+            resend[count++] = i;
+          } else {
+            deadline = Math.min(deadline, sentAt[i] + rto);
+          }
+        }
+        if (timedOut) {
+          rtt.backOff();
+          rto = rtt.rto();
+        }
+        for (int j = count - 1; j >= 0; j--) {
+          transmit(resend[j], now);
+          deadline = Math.min(deadline, now + rto);
+        }
+        // packets below next that are not acknowledged are on their way
+        while (next < packets.length && next - ackedCount < window && next < base + MAX_AHEAD * window) {
+          transmit(next++, now);
+          deadline = Math.min(deadline, now + rto);
+        }
+
+        long wait = deadline - System.nanoTime();
+        if (wait > 0) {
+          wait(wait / 1_000_000, (int) (wait % 1_000_000));
+        }
+      }
+    }
+
+    private void transmit(int seq, long now) throws IOException {
+      if (++transmissions[seq] > MAX_TRANSMISSIONS) {
+        throw new IOException("No ACK from " + key.address.getHostAddress() + ":" + key.port + " after "
+            + MAX_TRANSMISSIONS + " tries");
+      }
+      sentAt[seq] = now;
+      dataSent.increment();
+      sendPacket(key, packets[seq]);
+    }
+
+    /**
+     * An ACK arrived
+     * @param blocks first, end, first, end, ... of the selective ACKs
+     */
+    synchronized void acked(int cumulative, int[] blocks) {
+      long now = System.nanoTime();
+      int newest = -1;
+      for (int i = base; i < Math.min(cumulative, next); i++) {
+        newest = mark(i, newest);
+      }
+      for (int b = 0; b < blocks.length; b += 2) {
+        for (int i = Math.max(blocks[b], base); i < Math.min(blocks[b + 1], next); i++) {
+          newest = mark(i, newest);
+        }
+      }
+      while (base < packets.length && acked[base]) {
+        base++;
+      }
+      // Karn: the ACK of a packet sent again may belong to any of its sends
+      if (newest >= 0 && transmissions[newest] == 1) {
+        rtt.sample(now - sentAt[newest]);
+      }
+      notifyAll();
+    }
+
+    private int mark(int seq, int newest) {
+      if (acked[seq]) {
+        return newest;
+      }
+      acked[seq] = true;
+      ackedCount++;
+      deliveredSentAt = Math.max(deliveredSentAt, sentAt[seq]);
+      return Math.max(newest, seq);
+    }
+
+    synchronized void close() {
+      closed = true;
+      notifyAll();
+    }
+  }
+
+  private void receiveLoop() {
+    byte[] buffer = new byte[2048];
+    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+    long lastSweep = System.currentTimeMillis();
+    try {
+      while (true) {
+        packet.setLength(buffer.length);
+        sock.receive(packet);
+        ByteBuffer in = ByteBuffer.wrap(buffer, 0, packet.getLength());
+        if (in.remaining() >= 9) {
+          byte kind = in.get();
+          Key key = new Key(packet.getAddress(), packet.getPort(), in.getInt());
+          if (kind == DATA && in.remaining() >= 8) {
+            data(key, in);
+          } else if (kind == ACK && in.remaining() >= 5) {
+            ack(key, in);
+          }
+          // anything else, e.g. a packet of NetworkUtils.Send, is not for us
+        }
+        long now = System.currentTimeMillis();
+        if (now - lastSweep >= 1000) {
+          sweep(now);
+          lastSweep = now;
+        }
+      }
+    } catch (IOException e) {
+      // socket closed
+    } finally {
+      for (Transfer transfer : sending.values()) {
+        transfer.close();
+      }
+    }
+  }
+
+  private void data(Key key, ByteBuffer in) throws IOException {
+    int seq = in.getInt();
+    int total = in.getInt();
+    if (total <= 0 || total > MAX_PACKETS || seq < 0 || seq >= total) {
+      return;
+    }
+    if (remembered.containsKey(key)) {
+      // received before, our last ACK was lost
+      duplicates.increment();
+      sendAck(key, total, null);
+      return;
+    }
+    long now = System.currentTimeMillis();
+    ReassemblyTable.Entry message = incoming.get(key, now);
+    if (message == null) {
+      message = incoming.open(key, total, now);
+      if (message == null) {
+        return; // full, no ACK, the sender tries again later
+      }
+    } else if (message.total() != total) {
+      return;
+    }
+    if (message.has(seq)) {
+      duplicates.increment();
+    } else {
+      byte[] part = new byte[in.remaining()];
+      in.get(part);
+      if (!incoming.add(message, seq, part, now)) {
+        return;
+      }
+    }
+    if (!message.complete()) {
+      sendAck(key, message.cumulative, message);
+      return;
+    }
+    if (received.remainingCapacity() == 0) {
+      return; // nobody takes the messages, no ACK so the sender tries again later
+    }
+    // the ACK goes out before receive returns the message, a receiver that closes right
+    // after it would otherwise leave the sender trying until MAX_TRANSMISSIONS
+    sendAck(key, message.cumulative, message);
+    received.add(new NetworkUtils.Tuple(key.address, key.port, message.assemble()));
+    incoming.remove(key);
+    remembered.put(key, now);
+    if (remembered.size() > MAX_REMEMBERED) {
+      Iterator<Key> eldest = remembered.keySet().iterator();
+      eldest.next();
+      eldest.remove();
+    }
+  }
+
+  /**
+   * @param message the parts that arrived, null if all did
+   */
+  private void sendAck(Key key, int cumulative, ReassemblyTable.Entry message) throws IOException {
+    ByteBuffer ack = ByteBuffer.allocate(10 + 8 * MAX_SACK_BLOCKS);
+    ack.put(ACK).putInt(key.messageId).putInt(cumulative).put((byte) 0);
+    int blocks = 0;
+    if (message != null) {
+      int i = cumulative;
+      while (i <= message.highest && blocks < MAX_SACK_BLOCKS) {
+        while (i <= message.highest && !message.has(i)) {
+          i++;
+        }
+        int first = i;
+        while (i <= message.highest && message.has(i)) {
+          i++;
+        }
+        if (i > first) {
+          ack.putInt(first).putInt(i);
+          blocks++;
+        }
+      }
+    }
+    ack.put(9, (byte) blocks);
+    acksSent.increment();
+    sendPacket(key, Arrays.copyOf(ack.array(), ack.position()));
+  }
+
+  private void ack(Key key, ByteBuffer in) {
+    Transfer transfer = sending.get(key);
+    if (transfer == null) {
+      return; // late ACK of a message that is done
+    }
+    int cumulative = in.getInt();
+    int count = in.get() & 0xff;
+    if (in.remaining() < 8 * count) {
+      return;
+    }
+    int[] blocks = new int[2 * count];
+    for (int i = 0; i < blocks.length; i++) {
+      blocks[i] = in.getInt();
+    }
+    transfer.acked(cumulative, blocks);
+  }
+
+  /**
+   * Drops incomplete messages nobody sends anymore and forgets old received ones
+   */
+  private void sweep(long now) {
+    incoming.expire(now);
+    Iterator<Long> times = remembered.values().iterator();
+    while (times.hasNext() && now - times.next() > INCOMING_TIMEOUT) {
+      times.remove();
+    }
+  }
+}
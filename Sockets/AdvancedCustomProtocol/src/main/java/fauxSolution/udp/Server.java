@@ -15,7 +15,8 @@ import org.json.*;
 public class Server {
   /*
    * request: { "selected": <int: 1=joke, 2=quote, 3=image, 4=random>,
-   * (optional)"min": <int>, (optional)"max":<int> }
+   * (optional)"min": <int>, (optional)"max":<int>,
+   * (optional)"binary": <bool: image as binary message, see NetworkUtils> }
    * 
    * response: {"datatype": <int: 1-string, 2-byte array>, "type": <"joke",
    * "quote", "image"> "data": <thing to return> }
@@ -46,10 +47,33 @@ public class Server {
 
     json.put("type", "image");
 
+    byte[] bytes = imageBytes();
+    if (bytes != null) {
+      Base64.Encoder encoder = Base64.getEncoder();
+      json.put("data", encoder.encodeToString(bytes));
+      return json;
+    }
+    return error("Unable to save image to byte array");
+  }
+
+  // the image as binary message (see NetworkUtils.toBinary), the JSON header only says what the data is
+  public static byte[] imageBinary() throws IOException {
+    byte[] bytes = imageBytes();
+    if (bytes == null) {
+      return JsonUtils.toByteArray(error("Unable to save image to byte array"));
+    }
+    JSONObject header = new JSONObject();
+    header.put("datatype", 2);
+    header.put("type", "image");
+    header.put("format", "png");
+    return NetworkUtils.toBinary(JsonUtils.toByteArray(header), bytes);
+  }
+
+  // the image as PNG
+  public static byte[] imageBytes() throws IOException {
     File file = new File("img/To-Funny-For-Words1.png");
     if (!file.exists()) {
-      System.err.println("Cannot find file: " + file.getAbsolutePath());
-      System.exit(-1);
+      throw new IOException("Cannot find file: " + file.getAbsolutePath());
     }
     // Read in image
     BufferedImage img = ImageIO.read(file);
@@ -58,12 +82,7 @@ public class Server {
       ImageIO.write(img, "png", out);
       bytes = out.toByteArray();
     }
-    if (bytes != null) {
-      Base64.Encoder encoder = Base64.getEncoder();
-      json.put("data", encoder.encodeToString(bytes));
-      return json;
-    }
-    return error("Unable to save image to byte array");
+    return bytes;
   }
 
   public static JSONObject random() throws IOException {
@@ -86,45 +105,122 @@ public class Server {
     return json;
   }
 
+  /**
+   * Builds the answer to one request, the cache has the usual ones ready
+   */
+  public static JSONObject respond(JSONObject message) throws IOException {
+    JSONObject returnMessage;
+    if (message.has("selected")) {
+      if (message.get("selected") instanceof Long || message.get("selected") instanceof Integer) {
+        int choice = message.getInt("selected");
+        switch (choice) {
+        case (1):
+          returnMessage = joke();
+          break;
+        case (2):
+          returnMessage = quote();
+          break;
+        case (3):
+          returnMessage = image();
+          break;
+        case (4):
+          returnMessage = random();
+          break;
+        default:
+          returnMessage = error("Invalid selection: " + choice + " is not an option");
+        }
+      } else {
+        returnMessage = error("Selection must be an integer");
+      }
+    } else {
+      returnMessage = error("Invalid message received");
+    }
+    return returnMessage;
+  }
+
+  /**
+   * Answers one request, the usual requests straight from the cache, only errors are built
+   */
+  static ResponseCache.Answer answer(ResponseCache responses, JSONObject message) throws IOException {
+    if (message.has("selected")
+        && (message.get("selected") instanceof Long || message.get("selected") instanceof Integer)) {
+      // the client says whether it reads binary messages, old clients get Base64 in JSON
+      ResponseCache.Answer answer = responses.get(message.getInt("selected"), message.optBoolean("binary"));
+      if (answer != null) {
+        return answer;
+      }
+    }
+    return new ResponseCache.Answer(respond(message));
+  }
+
+  // reliable mode (see ReliableSocket): a lost packet is sent again instead of making the server wait forever
+  private static void serveReliable(ReliableSocket sock, ResponseCache responses) throws IOException {
+    System.out.println("Reliable mode, window " + ReliableSocket.WINDOW + " packets");
+    while (true) {
+      NetworkUtils.Tuple messageTuple = sock.receive();
+      try {
+        JSONObject message = JsonUtils.fromByteArray(messageTuple.Payload);
+        sock.send(messageTuple.Address, messageTuple.Port, answer(responses, message).message);
+      } catch (IOException | JSONException e) {
+        System.out.println("Client " + messageTuple.Address + ":" + messageTuple.Port + ": " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Server [mode] [threads]
+   * mode: serial (default) serves one request at a time, pool serves many clients at once
+   * threads: worker threads of the pool mode, default one per core (reliable mode 32, a
+   * send there waits for the ACKs and not for the CPU)
+   */
   public static void main(String[] args) throws IOException {
+    String mode = args.length > 0 ? args[0] : "serial";
+    int threads = ReliableSocket.ENABLED ? 32 : Runtime.getRuntime().availableProcessors();
+    try {
+      if (args.length > 1) threads = Integer.parseInt(args[1]);
+    } catch (NumberFormatException e) {
+      System.out.println("Usage: Server [serial|pool] [threads(int)]");
+      System.exit(1);
+    }
+    if (!mode.equals("serial") && !mode.equals("pool")) {
+      System.out.println("Usage: Server [serial|pool] [threads(int)]");
+      System.exit(1);
+    }
+
+    ResponseCache responses = null;
+    try {
+      responses = ResponseCache.load();
+    } catch (IOException e) {
+      System.err.println(e.getMessage());
+      System.exit(-1);
+    }
+
     DatagramSocket sock = null;
     try {
       sock = new DatagramSocket(9000);
-      // NOTE: SINGLE-THREADED, only one connection at a time
+      if (mode.equals("pool")) {
+        PooledServer server = new PooledServer(sock, threads, responses);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.println(server.stats())));
+        if (ReliableSocket.ENABLED) {
+          server.runReliable(new ReliableSocket(sock));
+        } else {
+          server.run();
+        }
+        return;
+      }
+      if (ReliableSocket.ENABLED) {
+        serveReliable(new ReliableSocket(sock), responses);
+        return;
+      }
+      // NOTE: SINGLE-THREADED, only one connection at a time, and the packets of two clients
+      // sending at once are mixed up by Receive (see PooledServer for many clients)
       while (true) {
         try {
           while (true) {
             NetworkUtils.Tuple messageTuple = NetworkUtils.Receive(sock);
             JSONObject message = JsonUtils.fromByteArray(messageTuple.Payload);
-            JSONObject returnMessage;
-            if (message.has("selected")) {
-              if (message.get("selected") instanceof Long || message.get("selected") instanceof Integer) {
-                int choice = message.getInt("selected");
-                switch (choice) {
-                case (1):
-                  returnMessage = joke();
-                  break;
-                case (2):
-                  returnMessage = quote();
-                  break;
-                case (3):
-                  returnMessage = image();
-                  break;
-                case (4):
-                  returnMessage = random();
-                  break;
-                default:
-                  returnMessage = error("Invalid selection: " + choice + " is not an option");
-                }
-              } else {
-                returnMessage = error("Selection must be an integer");
-              }
-            } else {
-              returnMessage = error("Invalid message received");
-            }
-
-            byte[] output = JsonUtils.toByteArray(returnMessage);
-            NetworkUtils.Send(sock, messageTuple.Address, messageTuple.Port, output);
+            ResponseCache.Answer output = answer(responses, message);
+            NetworkUtils.SendPackets(sock, messageTuple.Address, messageTuple.Port, output.packets);
           }
         } catch (IOException e) {
           e.printStackTrace();
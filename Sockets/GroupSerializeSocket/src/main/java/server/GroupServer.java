@@ -26,7 +26,8 @@ import java.io.*;
  * 
  */
 public class GroupServer extends Thread {
-  private static final boolean debugOn = true;
+  // debug output goes through a ring buffer, see AsyncLogger (-Dlog.level=debug)
+  private static final AsyncLogger LOG = AsyncLogger.LOG;
   private Socket conn;
   private int id;
   private int byteCount;
@@ -45,16 +46,15 @@ public class GroupServer extends Thread {
       long byteCount = 0;
       if (clientInput.length > 0) {
         String clientString = new String(clientInput);
-        GroupServer.debug("Read from client number " + Integer.toString(id) + ", " + Integer.toString(clientInput.length)
-            + " bytes as the string: " + clientString + "\n");
+        LOG.debug("Read from client number {}, {} bytes as the string: {}", id, clientInput.length, clientString);
         if (clientString.equalsIgnoreCase("filetoclient^")) {
-          System.out.println("Request to download group file");
+          LOG.info("Request to download group file");
           byteCount = this.downloadToClient();
-          System.out.println("Download complete. Transferred " + byteCount + " bytes.");
+          LOG.info("Download complete. Transferred {} bytes.", byteCount);
         }
       }
     } catch (Exception e) {
-      e.printStackTrace();
+      LOG.error("Request failed", e);
     }
   }
 
@@ -62,7 +62,7 @@ public class GroupServer extends Thread {
     long byteCount = 0;
     try {
       // string request: filetoclient comes from client
-      GroupServer.debug("Download file admin.ser to client");
+      LOG.debug("Download file admin.ser to client");
 
       // get the connections streams
       OutputStream outStream = conn.getOutputStream();
@@ -83,25 +83,25 @@ public class GroupServer extends Thread {
       // many bytes
       byte[] buf = new byte[4096];
       int bufCount = fis.read(buf);
-      GroupServer.debug("read " + bufCount + " bytes from the file");
+      LOG.debug("read {} bytes from the file", bufCount);
 
       // send two integer byte counts: bufLengthThisRead^fileLength
       String thisBuf = String.valueOf(bufCount);
       String numStr = thisBuf + "^" + String.valueOf(len) + "^";
-      GroupServer.debug("sending number of data bytes to client " + numStr);
+      LOG.debug("sending number of data bytes to client {}", numStr);
       // send
       outStream.write(numStr.getBytes(), 0, numStr.getBytes().length);
       outStream.flush();
 
       // wait to be sure the client got it, by waiting for an OK.
       byte clientOK[] = socket.IO.read(inStream);
-      GroupServer.debug("tried to read ok. Got " + clientOK.length + " bytes");
+      LOG.debug("tried to read ok. Got {} bytes", clientOK.length);
       String okStr = new String(clientOK);
       if (okStr.contains("OK")) {
         // if client got byte counts and replied OK then send buf
         outStream.write(buf, 0, bufCount);
         outStream.flush();
-        GroupServer.debug("I sent bytes:" + Integer.toString(bufCount));
+        LOG.debug("I sent bytes: {}", bufCount);
         byteCount = byteCount + bufCount;
       }
 
@@ -109,12 +109,12 @@ public class GroupServer extends Thread {
       byte gotIT[] = socket.IO.read(inStream);
       String gotStr = new String(gotIT);
       if (gotStr.contains("OK")) {
-        GroupServer.debug("got OK");
+        LOG.debug("got OK");
       } else {
-        GroupServer.debug("breaking because did not get OK. Got " + gotStr);
+        LOG.debug("breaking because did not get OK. Got {}", gotStr);
       }
       if (bufCount <= 0) {
-        GroupServer.debug("sending Done to client");
+        LOG.debug("sending Done to client");
         outStream.write("Done".getBytes(), 0, "Done".getBytes().length);
         outStream.flush();
       }
@@ -123,17 +123,11 @@ public class GroupServer extends Thread {
       outStream.close();
       conn.close();
     } catch (Exception e) {
-      System.out.println("exception uploading to server: " + e.getMessage());
-      e.printStackTrace();
+      LOG.error("exception uploading to server: {}", e.getMessage(), e);
     }
     return byteCount;
   }
 
-  private static void debug(String message) {
-    if (debugOn)
-      System.out.println("debug: " + message);
-  }
-
   /**
    * main method provides an infinte loop to accept connections from clients. when
    * a client connects, a new download thread is created to read the file and send
@@ -156,11 +150,10 @@ public class GroupServer extends Thread {
         portNo = 3030;
       serv = new ServerSocket(portNo);
       while (true) {
-        System.out.println(
-            "GroupServer waiting for client connect " + connects + " on port " + Integer.toString(portNo) + "\n");
+        LOG.info("GroupServer waiting for client connect {} on port {}", connects, portNo);
         sock = serv.accept();
         connects = connects + 1;
-        System.out.println("GroupServer connected to client: " + connects);
+        LOG.info("GroupServer connected to client: {}", connects);
         GroupServer aServer = new GroupServer(sock, connects++);
         aServer.start();
       }
@@ -0,0 +1,109 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides whether the server takes on one more request or answers 503 right away.
+ *
+ * A fixed number of threads can only finish so many requests per second. Requests
+ * beyond that wait in queues, every one of them makes all later ones slower, and in the
+ * end nobody gets an answer in time. Rejecting the excess quickly keeps the latency of
+ * the admitted requests bounded, and the rejected clients know to come back later
+ * (Retry-After).
+ *
+ * The number of requests in flight is capped by an adaptive limit between 1 and
+ * maxInFlight, adjusted like TCP congestion control (AIMD): every request that finishes
+ * within the target latency raises the limit by 1/limit (about +1 per round of
+ * requests), a slower one cuts it to 90% of the requests in flight, at most once per
+ * target interval. So the limit settles where the server still answers within the target.
+ */
+class AdmissionController {
+    /** seconds a rejected client is asked to wait */
+    static final int RETRY_AFTER = 1;
+
+    private final int maxInFlight;
+    private final long targetNanos;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile double limit;
+    private long lastDecrease = 0;
+
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * @param maxInFlight most requests in flight, the limit never grows above it
+     * @param targetMillis latency a request should not exceed, slower ones lower the limit
+     */
+    AdmissionController(int maxInFlight, long targetMillis) {
+        this.maxInFlight = maxInFlight;
+        this.targetNanos = targetMillis * 1_000_000;
+        this.limit = maxInFlight;
+    }
+
+    /**
+     * Takes a place for a request, it must be given back with release
+     * @return false if the server is at its limit and the request should get a 503
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= (int) limit) {
+                rejected.increment();
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                admitted.increment();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Gives the place of a finished request back and adapts the limit
+     * @param latencyNanos time from admission until the response was done
+     */
+    public void release(long latencyNanos) {
+        inFlight.decrementAndGet();
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (latencyNanos > targetNanos) {
+                // one slow round lowers the limit once, not once for every request in it
+                if (now - lastDecrease > targetNanos) {
+                    // cut from the requests really in flight, a limit far above them rejects nothing
+                    limit = Math.max(1, Math.min(limit, inFlight.get() + 1) * 0.9);
+                    lastDecrease = now;
+                }
+            } else {
+                limit = Math.min(maxInFlight, limit + 1 / limit);
+            }
+        }
+    }
+
+    /**
+     * Gives the place back without a latency sample, e.g. when the request never ran
+     */
+    public void cancel() {
+        inFlight.decrementAndGet();
+    }
+
+    public int getLimit() {
+        return (int) limit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public long getAdmitted() {
+        return admitted.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "AdmissionController[limit=" + getLimit() + ", inFlight=" + getInFlight() + ", admitted=" + getAdmitted()
+                + ", rejected=" + getRejected() + "]";
+    }
+}
@@ -0,0 +1,232 @@
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The byte ranges of a file asked for with the Range header (RFC 9110, section 14).
+ *
+ * A client that resumes a download or seeks in a video asks for a part of the file only,
+ * e.g. "Range: bytes=1000-1999", "bytes=5000-" (from 5000 to the end) or "bytes=-500" (the
+ * last 500 bytes), and gets 206 Partial Content with these bytes and a Content-Range. More
+ * than one range is sent as multipart/byteranges, every part with a head of its own. With
+ * If-Range the client only wants the part if the file is still the version it has,
+ * otherwise it gets the whole file.
+ *
+ * Overlapping and adjacent ranges are merged, and more than MAX_RANGES ranges are ignored
+ * (the whole file is sent), so a request cannot make the server send the same bytes over
+ * and over.
+ */
+final class ByteRanges {
+    /** most ranges in one request, more are answered with the whole file */
+    static final int MAX_RANGES = 16;
+
+    private final long[] first;
+    private final long[] last;
+    private final long length;
+    private final String boundary;
+
+    private ByteRanges(List<long[]> ranges, long length) {
+        this.first = new long[ranges.size()];
+        this.last = new long[ranges.size()];
+        for (int i = 0; i < first.length; i++) {
+            first[i] = ranges.get(i)[0];
+            last[i] = ranges.get(i)[1];
+        }
+        this.length = length;
+        this.boundary = Long.toHexString(ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE);
+    }
+
+    /**
+     * Parses the Range header
+     * @param header value of the Range header, may be null
+     * @param length length of the file
+     * @return the ranges, null if there is no valid Range header and the whole file should be
+     *         sent, no ranges at all (isSatisfiable() false) if none lies within the file
+     */
+    static ByteRanges parse(String header, long length) {
+        if (header == null || !header.trim().regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null; // other units are not known, the header is ignored
+        }
+        String[] specs = header.trim().substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<long[]> ranges = new ArrayList<>();
+        boolean valid = false;
+        for (String spec : specs) {
+            spec = spec.trim();
+            if (spec.isEmpty()) {
+                continue; // empty list elements are allowed
+            }
+            int dash = spec.indexOf('-');
+            String from = dash < 0 ? "" : spec.substring(0, dash).trim();
+            String to = dash < 0 ? "" : spec.substring(dash + 1).trim();
+            if (dash < 0 || (!from.isEmpty() && !isDigits(from)) || (!to.isEmpty() && !isDigits(to))
+                    || (from.isEmpty() && to.isEmpty())) {
+                return null; // one broken range makes the whole header invalid
+            }
+            valid = true;
+            if (from.isEmpty()) {
+                // suffix range, the last n bytes
+                long suffix = number(to);
+                if (suffix > 0 && length > 0) {
+                    ranges.add(new long[] { Math.max(0, length - suffix), length - 1 });
+                }
+            } else {
+                long start = number(from);
+                long end = to.isEmpty() ? Long.MAX_VALUE : number(to);
+                if (end < start) {
+                    return null;
+                }
+                if (start < length) {
+                    ranges.add(new long[] { start, Math.min(end, length - 1) });
+                }
+            }
+        }
+        if (!valid) {
+            return null;
+        }
+        return new ByteRanges(merge(ranges), length);
+    }
+
+    /**
+     * @return the digits as number, Long.MAX_VALUE if they do not fit (no file is that large)
+     */
+    private static long number(String digits) {
+        try {
+            return Long.parseLong(digits);
+        } catch (NumberFormatException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    private static boolean isDigits(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) < '0' || s.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sorts the ranges and merges the ones that overlap or touch
+     */
+    private static List<long[]> merge(List<long[]> ranges) {
+        if (ranges.size() < 2) {
+            return ranges;
+        }
+        ranges.sort((a, b) -> Long.compare(a[0], b[0]));
+        List<long[]> merged = new ArrayList<>();
+        long[] current = ranges.get(0);
+        for (int i = 1; i < ranges.size(); i++) {
+            long[] next = ranges.get(i);
+            if (next[0] <= current[1] + 1) {
+                current = new long[] { current[0], Math.max(current[1], next[1]) };
+            } else {
+                merged.add(current);
+                current = next;
+            }
+        }
+        merged.add(current);
+        return merged;
+    }
+
+    /**
+     * Decides whether an If-Range condition allows a partial response
+     * @param ifRange value of the If-Range header, may be null
+     * @param etag strong ETag of the file
+     * @param lastModified modification time of the file in ms
+     * @return true if there is no If-Range or it names the current version of the file
+     */
+    static boolean ifRange(String ifRange, String etag, long lastModified) {
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            // strong comparison, a weak tag never matches
+            return ifRange.equals(etag);
+        }
+        try {
+            long date = ZonedDateTime.parse(ifRange, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+            // HTTP dates have whole seconds, only the exact date of the file counts
+            return date / 1000 == lastModified / 1000;
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return Content-Range of a 416 answer, when no range lies within the file
+     */
+    static String unsatisfied(long length) {
+        return "bytes */" + length;
+    }
+
+    /**
+     * @return false if no range lies within the file, the answer is 416
+     */
+    boolean isSatisfiable() {
+        return first.length > 0;
+    }
+
+    int size() {
+        return first.length;
+    }
+
+    long first(int i) {
+        return first[i];
+    }
+
+    long length(int i) {
+        return last[i] - first[i] + 1;
+    }
+
+    /**
+     * @return value of the Content-Range header of range i, e.g. bytes 0-499/1234
+     */
+    String contentRange(int i) {
+        return "bytes " + first[i] + "-" + last[i] + "/" + length;
+    }
+
+    /**
+     * @return Content-Type of a multipart answer with all ranges
+     */
+    String multipartType() {
+        return "multipart/byteranges; boundary=" + boundary;
+    }
+
+    /**
+     * @return the head of part i: boundary, Content-Type and Content-Range
+     */
+    byte[] partHead(int i, String contentType) {
+        return ((i == 0 ? "" : "\r\n") + "--" + boundary + "\r\n"
+                + "Content-Type: " + contentType + "\r\n"
+                + "Content-Range: " + contentRange(i) + "\r\n"
+                + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @return the closing boundary after the last part
+     */
+    byte[] tail() {
+        return ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @param contentType type of the file, every part carries it
+     * @return Content-Length of the multipart/byteranges body with all ranges
+     */
+    long multipartLength(String contentType) {
+        long total = tail().length;
+        for (int i = 0; i < first.length; i++) {
+            total += partHead(i, contentType).length + length(i);
+        }
+        return total;
+    }
+}
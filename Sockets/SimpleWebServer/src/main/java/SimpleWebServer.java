@@ -1,9 +1,56 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 public class SimpleWebServer {
 
+    // the request threads log through the ring buffer, System.out would make them wait
+    // for each other (see AsyncLogger)
+    private static final AsyncLogger LOG = AsyncLogger.LOG;
+
+    // threads that handle the connections, change with -Dadmission.threads=n
+    static final int THREADS = Integer.getInteger("admission.threads", 32);
+    // connections that may wait for a thread, change with -Dadmission.queue=n
+    static final int QUEUE = Integer.getInteger("admission.queue", 64);
+    // connections in the queue or a thread at the same time, change with -Dadmission.max=n
+    static final int MAX_IN_FLIGHT = Integer.getInteger("admission.max", THREADS + QUEUE);
+    // latency in ms above which fewer connections are let in, change with -Dadmission.latency=ms
+    static final long TARGET_LATENCY = Long.getLong("admission.latency", 1000);
+
+    // listening sockets on the port, each with its own accept thread, change with -Dacceptors=n
+    static final int ACCEPTORS = Integer.getInteger("acceptors", 1);
+
+    // a thread per connection would let a burst of clients create thousands of
+    // threads, a fixed pool with a bounded queue turns the excess away instead
+    private final ExecutorService workers = new ThreadPoolExecutor(THREADS, THREADS,
+            0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(QUEUE));
+    private final AdmissionController admission =
+            new AdmissionController(MAX_IN_FLIGHT, TARGET_LATENCY);
+
     // 
     public static void main(String args[]) {
         int port = 9099; // default port
@@ -26,8 +73,7 @@ try {
 
     public SimpleWebServer(int port) {
 
-        ServerSocket server = null;
-        Socket sock = null;
+        ServerSocketChannel[] listeners = null;
 
         try {
 
@@ -37,33 +83,103 @@ try {
             //***   Write the bytes to the socket's output stream
             //***   close streams and socket appropriately
 
-            server = new ServerSocket(port);
+            listeners = listen(port, ACCEPTORS);
 
         } catch (IOException ex) {
             ex.printStackTrace();
+            return;
+        }
+
+        // one accept loop per listening socket, the first one runs on this thread
+        for (int i = 1; i < listeners.length; i++) {
+            ServerSocketChannel listener = listeners[i];
+            new Thread(() -> acceptLoop(listener), "acceptor-" + i).start();
         }
+        acceptLoop(listeners[0]);
+    }
 
-        while (server.isBound() && !server.isClosed()) {
-            System.out.println("Ready...");
+    /**
+     * Opens the listening sockets. With SO_REUSEPORT every socket has an
+     * accept queue of its own on the same port and the kernel spreads the new
+     * connections over them, so the accept threads do not wait for each other.
+     * Where the option is missing (e.g. Windows) all accept threads share one
+     * socket.
+     *
+     * @param port
+     * @param count number of accept threads
+     * @return count sockets, all the same one without SO_REUSEPORT
+     */
+    static ServerSocketChannel[] listen(int port, int count) throws IOException {
+        ServerSocketChannel[] listeners = new ServerSocketChannel[Math.max(1, count)];
+        boolean reusePort = false;
+        for (int i = 0; i < listeners.length; i++) {
+            if (i > 0 && !reusePort) {
+                listeners[i] = listeners[0];
+                continue;
+            }
+            // a channel instead of a ServerSocket, so every accepted socket has a
+            // SocketChannel the files can be transferred to without copying
+            ServerSocketChannel listener = ServerSocketChannel.open();
+            if (listeners.length > 1
+                    && listener.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                // has to be set on every socket before the bind
+                listener.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                reusePort = true;
+            }
+            listener.bind(new InetSocketAddress(port));
+            listeners[i] = listener;
+        }
+        if (listeners.length > 1 && !reusePort) {
+            System.out.println("SO_REUSEPORT is not supported, "
+                    + listeners.length + " accept threads share one socket");
+        }
+        return listeners;
+    }
+
+    /**
+     * Accepts connections on one listening socket until it is closed
+     *
+     * @param server
+     */
+    private void acceptLoop(ServerSocketChannel server) {
+        while (server.isOpen()) {
+            LOG.debug("Ready...");
             try {
-                sock = server.accept();
-                createClientThread(sock);
+                SocketChannel sock = server.accept();
+                admit(sock);
             } catch (IOException ex) {
-                ex.printStackTrace();
+                LOG.error("Accept failed", ex);
             }
         }
     }
 
     /**
-     * Take the newly accepted socket and make it a thread by passing it to
-     * inner class ClientHandler which implements Runnable; subsequently start
-     * the thread up so it can be processed.
+     * Take the newly accepted socket and hand it to the worker pool as a
+     * ClientHandler, or answer 503 right away if the server is at its limit
+     * (see AdmissionController) or the queue of the pool is full. The time
+     * from the accept until the response was sent adapts the limit.
      *
      * @param sock
      */
-    private void createClientThread(Socket sock) {
-        Thread thread = new Thread(new ClientHandler(sock));
-        thread.start();
+    private void admit(SocketChannel sock) {
+        long accepted = System.nanoTime();
+        if (!admission.tryAcquire()) {
+            ClientHandler.reject(sock);
+            return;
+        }
+        ClientHandler handler = new ClientHandler(sock);
+        try {
+            workers.execute(() -> {
+                try {
+                    handler.run();
+                } finally {
+                    admission.release(System.nanoTime() - accepted);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            admission.cancel();
+            ClientHandler.reject(sock);
+        }
     }
 }
 
@@ -76,113 +192,465 @@ try {
  */
 class ClientHandler implements Runnable {
 
+    private static final AsyncLogger LOG = AsyncLogger.LOG;
+
     //establish a new socket to read client input from (via BufferedReader)
+    SocketChannel channel = null;
     InputStream in = null;
-    OutputStream out = null;
+
+    // smaller files are not worth compressing, larger ones are sent as they are
+    private static final long MIN_COMPRESS = 1024;
+    private static final long MAX_COMPRESS = 1024 * 1024;
+    private static final int MAX_COMPRESSED_FILES = 64;
+
+    /**
+     * Compressed text files, keyed by path, size, modification time and coding
+     * so a changed file is compressed again. The least recently used ones are
+     * dropped once there are more than MAX_COMPRESSED_FILES.
+     */
+    private static final Map<String, byte[]> compressed = Collections.synchronizedMap(
+            new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+                    return size() > MAX_COMPRESSED_FILES;
+                }
+            });
+
+    // seconds a client may use a file without asking again, change with -Dcache.maxAge=s
+    static final int MAX_AGE = Integer.getInteger("cache.maxAge", 60);
+    private static final int MAX_ETAGS = 1024;
+
+    /**
+     * ETags of the files, keyed by path, size and modification time like the
+     * compressed files, so every version of a file is hashed only once
+     */
+    private static final Map<String, String> etags = Collections.synchronizedMap(
+            new LinkedHashMap<String, String>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                    return size() > MAX_ETAGS;
+                }
+            });
+
+    // HTTP-date, e.g. Sun, 06 Nov 1994 08:49:37 GMT
+    private static final DateTimeFormatter HTTP_DATE =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
 
     /**
      * ClientHandler is the constructor that accepts a client socket & chains it
-     * to an input and output stream. These are used by the run method to create
-     * a response for the client.
+     * to an input stream. The response is written to the socket's channel by the
+     * run method.
      *
      * @param clientSocket
      */
-    public ClientHandler(Socket clientSocket) {
+    public ClientHandler(SocketChannel clientSocket) {
         try {
             //Set local socket to clientSocket received via constructor
-            in = clientSocket.getInputStream();
-            out = clientSocket.getOutputStream();
+            channel = clientSocket;
+            in = clientSocket.socket().getInputStream();
 
         } catch (Exception ex) {
-            ex.printStackTrace();
+            LOG.error("Cannot open the client socket", ex);
         }
     }//end constructor
 
-    public byte[] createResponse(InputStream inStream) {
+    /**
+     * Reads the request and sends the response. Files are never read into a
+     * byte[], they are streamed with FileChannel.transferTo (sendfile on Linux)
+     * from disk to the socket, so even very large files need no heap.
+     */
+    public void sendResponse(InputStream inStream, SocketChannel out) throws IOException {
 
-        byte[] response = null;
         BufferedReader in = null;
 
-        try {
+        // Read from socket's input stream.  Must use an
+        // InputStreamReader to bridge from streams to a reader
+        in = new BufferedReader(
+                new InputStreamReader(inStream, "UTF-8"));
+
+        // Get header and save the filename from the GET line:
+        //    example GET format: GET /index.html HTTP/1.1
 
-            // Read from socket's input stream.  Must use an
-            // InputStreamReader to bridge from streams to a reader
-            in = new BufferedReader(
-                    new InputStreamReader(inStream, "UTF-8"));
-
-            // Get header and save the filename from the GET line:
-            //    example GET format: GET /index.html HTTP/1.1
-
-            String filename = null;
-            String line = in.readLine();
-            System.out.println("Received: " + line);
-            if (line != null && !line.trim().equals("")) {
-                StringTokenizer st = new StringTokenizer(line);
-                if (st.nextToken().equals("GET") && st.hasMoreTokens()) {
-                    filename = st.nextToken();
-                    if (filename.startsWith("/")) {
-                        filename = filename.substring(1);
-                    }
+        String filename = null;
+        String line = in.readLine();
+        LOG.debug("Received: {}", line);
+        if (line != null && !line.trim().equals("")) {
+            StringTokenizer st = new StringTokenizer(line);
+            if (st.nextToken().equals("GET") && st.hasMoreTokens()) {
+                filename = st.nextToken();
+                if (filename.startsWith("/")) {
+                    filename = filename.substring(1);
                 }
             }
-            System.out.println("FINISHED REQUEST, STARTING RESPONSE\n");
+        }
+
+        // read the rest of the header, the names in lower case
+        Map<String, String> headers = new HashMap<>();
+        while (line != null && !line.isEmpty()) {
+            line = in.readLine();
+            int colon = line == null ? -1 : line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(),
+                        line.substring(colon + 1).trim());
+            }
+        }
+        LOG.debug("FINISHED REQUEST, STARTING RESPONSE");
 
-            // Generate an appropriate response to the user
-            if (filename == null) {
-                response =
-                        "<html>Illegal request: no GET</html>".getBytes();
+        // Generate an appropriate response to the user
+        if (filename == null) {
+            sendText(out, "400 Bad Request",
+                    "<html>Illegal request: no GET</html>");
+        } else {
+            File file = new File(filename);
+            if (!file.isFile()) {
+                sendText(out, "404 Not Found",
+                        "<html>File not found: " + filename + "</html>");
             } else {
-                File file = new File(filename);
-                if (!file.exists()) {
-                    response = ("<html>File not found: "
-                            + filename + "</html>").getBytes();
-                } else {
-                    response = readFileInBytes(file);
-                }
+                sendFile(out, file, headers);
             }
-        } catch (IOException e) {
-            e.printStackTrace();
-            response = ("<html>ERROR: "
-                    + e.getMessage() + "</html").getBytes();
         }
-        System.out.println("RESPONSE GENERATED!");
-        return response;
+        LOG.debug("RESPONSE SENT!");
     }
 
     /**
-     * Read bytes from a file and return them in the byte array. We read in
-     * blocks of 512 bytes for efficiency.
+     * Sends the header and then the file with transferTo, the kernel copies the
+     * bytes from the page cache to the socket. Text files are sent gzip or
+     * deflate compressed if the client accepts it, compressed once and then
+     * taken from memory.
+     *
+     * Every response carries an ETag, Last-Modified and Cache-Control. A client
+     * that already has this version of the file (If-None-Match, or
+     * If-Modified-Since without If-None-Match) gets 304 Not Modified without
+     * the body.
+     *
+     * @param headers request headers, names in lower case
      */
-    public static byte[] readFileInBytes(File f)
+    public static void sendFile(SocketChannel out, File file, Map<String, String> headers)
             throws IOException {
 
-        byte[] result = new byte[(int) f.length()];
+        String type = contentType(file.getName());
+        String encoding = negotiate(headers.get("accept-encoding"));
+        boolean compressible = type.startsWith("text/")
+                && file.length() >= MIN_COMPRESS && file.length() <= MAX_COMPRESS;
+        boolean compress = compressible && encoding != null;
+
+        // the compressed bytes are a different representation and need their own tag
+        String identityTag = etag(file);
+        String etag = compress
+                ? identityTag.substring(0, identityTag.length() - 1) + "-" + encoding + "\""
+                : identityTag;
+        long lastModified = file.lastModified();
+        String validators = "ETag: " + etag + "\r\n"
+                + "Last-Modified: " + httpDate(lastModified) + "\r\n"
+                + "Cache-Control: public, max-age=" + MAX_AGE + "\r\n"
+                + (compressible ? "Vary: Accept-Encoding\r\n" : "");
+
+        if (notModified(headers, etag, lastModified)) {
+            writeFully(out, ("HTTP/1.1 304 Not Modified\r\n"
+                    + validators
+                    + "Connection: close\r\n"
+                    + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            return;
+        }
+
+        // ranges count the bytes of the file, they are never compressed
+        ByteRanges ranges = ByteRanges.ifRange(headers.get("if-range"), identityTag, lastModified)
+                ? ByteRanges.parse(headers.get("range"), file.length()) : null;
+        if (ranges != null) {
+            sendRanges(out, file, type, ranges, validators.replace(etag, identityTag));
+            return;
+        }
+
+        if (compress) {
+            String key = file.getCanonicalPath() + ":" + file.length() + ":"
+                    + lastModified + ";" + encoding;
+            byte[] body = compressed.get(key);
+            if (body == null) {
+                body = compress(file, encoding);
+                compressed.put(key, body);
+            }
+            writeFully(out, header("200 OK", type, body.length,
+                    "Content-Encoding: " + encoding + "\r\n" + validators));
+            writeFully(out, body);
+            return;
+        }
+
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            long length = channel.size();
+            writeFully(out, header("200 OK", type, length,
+                    validators + "Accept-Ranges: bytes\r\n"));
+            transfer(channel, 0, length, out);
+        }
+    }
+
+    /**
+     * Answers a Range request (see ByteRanges) with 206 Partial Content. Every
+     * range is sent with transferTo from its position, so it costs its own
+     * length and not the file's, several ranges as multipart/byteranges. 416
+     * if no range lies within the file.
+     */
+    private static void sendRanges(SocketChannel out, File file, String type,
+            ByteRanges ranges, String validators) throws IOException {
+
+        long size = file.length();
+        if (!ranges.isSatisfiable()) {
+            byte[] body = "<html>Range not satisfiable</html>".getBytes(StandardCharsets.UTF_8);
+            writeFully(out, header("416 Range Not Satisfiable", "text/html; charset=utf-8",
+                    body.length, "Content-Range: " + ByteRanges.unsatisfied(size) + "\r\n"));
+            writeFully(out, body);
+            return;
+        }
+        validators += "Accept-Ranges: bytes\r\n";
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            if (ranges.size() == 1) {
+                writeFully(out, header("206 Partial Content", type, ranges.length(0),
+                        "Content-Range: " + ranges.contentRange(0) + "\r\n" + validators));
+                transfer(channel, ranges.first(0), ranges.length(0), out);
+                return;
+            }
+            writeFully(out, header("206 Partial Content", ranges.multipartType(),
+                    ranges.multipartLength(type), validators));
+            for (int i = 0; i < ranges.size(); i++) {
+                writeFully(out, ranges.partHead(i, type));
+                transfer(channel, ranges.first(i), ranges.length(i), out);
+            }
+            writeFully(out, ranges.tail());
+        }
+    }
+
+    /**
+     * Sends length bytes of the file from position with transferTo
+     */
+    private static void transfer(FileChannel channel, long position, long length,
+            SocketChannel out) throws IOException {
+
+        long end = position + length;
+        while (position < end) {
+            long sent = channel.transferTo(position, end - position, out);
+            if (sent <= 0 && position >= channel.size()) {
+                throw new IOException("File got shorter while it was sent");
+            }
+            position += sent;
+        }
+    }
 
+    /**
+     * Evaluates the conditional headers like RFC 9110: If-None-Match decides if
+     * it is there, If-Modified-Since is only looked at without it
+     *
+     * @return true if the client's copy is current and a 304 is enough
+     */
+    static boolean notModified(Map<String, String> headers, String etag, long lastModified) {
+        String ifNoneMatch = headers.get("if-none-match");
+        if (ifNoneMatch != null) {
+            if (ifNoneMatch.equals("*")) {
+                return true;
+            }
+            // weak comparison, a W/ in front of the client's tag does not matter
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        String ifModifiedSince = headers.get("if-modified-since");
+        if (ifModifiedSince != null) {
+            try {
+                long since = ZonedDateTime.parse(ifModifiedSince,
+                        DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+                // HTTP dates have whole seconds
+                return lastModified / 1000 <= since / 1000;
+            } catch (DateTimeParseException ex) {
+                // an invalid date is ignored
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Strong ETag of the file: the first 128 bits of its SHA-256, so it only
+     * changes when the content does. Hashed once per version of the file.
+     */
+    static String etag(File file) throws IOException {
+        String key = file.getCanonicalPath() + ":" + file.length() + ":" + file.lastModified();
+        String etag = etags.get(key);
+        if (etag == null) {
+            etag = hash(file);
+            etags.put(key, etag);
+        }
+        return etag;
+    }
+
+    private static String hash(File file) throws IOException {
+        MessageDigest digest;
         try {
-            new FileInputStream(f).read(result);
-        } catch (Exception ex) {
-            ex.printStackTrace();
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is part of every JDK", ex);
+        }
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
         }
+        StringBuilder etag = new StringBuilder("\"");
+        byte[] sum = digest.digest();
+        for (int i = 0; i < 16; i++) {
+            etag.append(Character.forDigit((sum[i] >> 4) & 0xf, 16))
+                    .append(Character.forDigit(sum[i] & 0xf, 16));
+        }
+        return etag.append('"').toString();
+    }
+
+    /**
+     * @return the time as HTTP-date, e.g. Sun, 06 Nov 1994 08:49:37 GMT
+     */
+    static String httpDate(long millis) {
+        return HTTP_DATE.format(ZonedDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneOffset.UTC));
+    }
 
+    /**
+     * Picks gzip or deflate from the Accept-Encoding header, gzip if both are
+     * accepted. Codings with q=0 are refused.
+     *
+     * @return the coding or null to send the file as it is
+     */
+    static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        String result = null;
+        for (String part : acceptEncoding.toLowerCase().split(",")) {
+            String coding = part.split(";")[0].trim();
+            if (part.replace(" ", "").matches(".*;q=0(\\.0*)?")) {
+                continue;
+            }
+            if (coding.equals("gzip")) {
+                return "gzip";
+            }
+            if (coding.equals("deflate")) {
+                result = "deflate";
+            }
+        }
         return result;
     }
 
+    /**
+     * Reads and compresses the whole file
+     */
+    private static byte[] compress(File file, String encoding) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (InputStream fileIn = new FileInputStream(file);
+             OutputStream zip = encoding.equals("gzip")
+                     ? new GZIPOutputStream(bytes) : new DeflaterOutputStream(bytes)) {
+            fileIn.transferTo(zip);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Sends a small HTML response
+     */
+    private static void sendText(SocketChannel out, String status, String html)
+            throws IOException {
+
+        byte[] body = html.getBytes(StandardCharsets.UTF_8);
+        writeFully(out, header(status, "text/html; charset=utf-8", body.length));
+        writeFully(out, body);
+    }
+
+    /**
+     * Answers 503 Service Unavailable with Retry-After on the accept thread
+     * without reading the request, for connections the server has no room for
+     */
+    static void reject(SocketChannel channel) {
+        LOG.debug("Rejected a connection, the server is busy");
+        byte[] body = "<html>The server is busy, please try again later</html>"
+                .getBytes(StandardCharsets.UTF_8);
+        try (SocketChannel out = channel) {
+            out.configureBlocking(false);
+            // a fresh socket buffer takes the whole response, the write does not block
+            out.write(ByteBuffer.wrap(header("503 Service Unavailable",
+                    "text/html; charset=utf-8", body.length,
+                    "Retry-After: " + AdmissionController.RETRY_AFTER + "\r\n")));
+            out.write(ByteBuffer.wrap(body));
+            out.shutdownOutput();
+            // closing with unread request bytes would send a reset, which may
+            // discard the 503 before the client read it
+            out.read(ByteBuffer.allocate(4096));
+        } catch (IOException ex) {
+            // the client is gone, nothing to tell it
+        }
+    }
+
+    /**
+     * Builds the status line and headers, the connection is closed after the
+     * response
+     */
+    private static byte[] header(String status, String contentType, long length) {
+        return header(status, contentType, length, "");
+    }
+
+    /**
+     * @param extra more header lines, each ending with CRLF
+     */
+    private static byte[] header(String status, String contentType, long length,
+            String extra) {
+        return ("HTTP/1.1 " + status + "\r\n"
+                + "Content-Type: " + contentType + "\r\n"
+                + "Content-Length: " + length + "\r\n"
+                + extra
+                + "Connection: close\r\n"
+                + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static void writeFully(SocketChannel out, byte[] bytes)
+            throws IOException {
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    /**
+     * Guesses the Content-Type from the file name
+     */
+    public static String contentType(String filename) {
+        String type = URLConnection.guessContentTypeFromName(filename);
+        if (type == null) {
+            return "application/octet-stream";
+        }
+        if (type.startsWith("text/")) {
+            type += "; charset=utf-8";
+        }
+        return type;
+    }
+
     @Override
     public void run() {
-        System.out.println("Starting thread");
+        LOG.debug("Starting thread");
         try {
-            out.write(createResponse(in));
+            sendResponse(in, channel);
         } catch (IOException ex) {
-            ex.printStackTrace();
+            LOG.error("Request failed", ex);
         } finally {
             try {
                 in.close();
-                out.close();
+                channel.close();
             } catch (IOException ex) {
-                ex.printStackTrace();
+                LOG.error("Close failed", ex);
             }
         }
 
-        System.out.println("Ending thread");
+        LOG.debug("Ending thread");
     }
 }
@@ -0,0 +1,170 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures how many new connections per second a server takes with 1, 2, 4, ... accept
+ * threads on one port (see WebServer.listen).
+ *
+ * Every accept thread runs the loop of the serial mode in small: accept, read the request,
+ * write a short response, close. The clients open a new connection for every request, so
+ * the accept path (accept queue, accept lock, socket setup) is what is measured and not
+ * the routes. With SO_REUSEPORT every accept thread has a socket and accept queue of its
+ * own, without it they all wait for the lock of one socket.
+ *
+ * Scaling needs free cores: run it on a machine with at least as many cores as accept
+ * threads plus some for the clients.
+ *
+ *   gradle AcceptBenchmark -Pport=9300 -Pseconds=3 -Pclients=32 -Pacceptors=1,2,4,8
+ */
+class AcceptBenchmark {
+  private static final byte[] REQUEST = "GET / HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n"
+      .getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] RESPONSE = "HTTP/1.1 200 OK\r\nContent-Length: 2\r\nConnection: close\r\n\r\nok"
+      .getBytes(StandardCharsets.US_ASCII);
+
+  public static void main(String args[]) throws Exception {
+    int port = 9300;
+    int seconds = 3;
+    int clients = 32;
+    List<Integer> acceptors = new ArrayList<>();
+
+    try {
+      if (args.length > 0) port = Integer.parseInt(args[0]);
+      if (args.length > 1) seconds = Integer.parseInt(args[1]);
+      if (args.length > 2) clients = Integer.parseInt(args[2]);
+      if (args.length > 3) {
+        for (String n : args[3].split(",")) {
+          acceptors.add(Integer.parseInt(n.trim()));
+        }
+      }
+    } catch (NumberFormatException e) {
+      System.out.println("Usage: AcceptBenchmark [port(int)] [seconds(int)] [clients(int)] [acceptors(e.g. 1,2,4)]");
+      System.exit(1);
+    }
+    if (acceptors.isEmpty()) {
+      // 1, 2, 4, ... up to the number of cores, at least up to 4
+      int cores = Runtime.getRuntime().availableProcessors();
+      for (int n = 1; n <= Math.max(4, cores); n *= 2) {
+        acceptors.add(n);
+      }
+    }
+
+    boolean reusePort;
+    try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+      reusePort = probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+    }
+    System.out.println("Cores: " + Runtime.getRuntime().availableProcessors() + ", clients: " + clients
+        + ", SO_REUSEPORT: " + (reusePort ? "yes" : "no, the accept threads share one socket"));
+
+    run(port, 1, clients, 1); // warm up
+    double base = 0;
+    for (int n : acceptors) {
+      double rate = run(port, n, clients, seconds);
+      if (base == 0) {
+        base = rate;
+      }
+      System.out.printf("acceptors: %3d   %10.0f connections/s   %5.2fx%n", n, rate, rate / base);
+    }
+  }
+
+  /**
+   * Runs the accept threads and the clients for the given time
+   * @return connections per second that got their response
+   */
+  private static double run(int port, int acceptors, int clients, int seconds) throws Exception {
+    ServerSocketChannel[] listeners = WebServer.listen(port, acceptors);
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < listeners.length; i++) {
+      ServerSocketChannel listener = listeners[i];
+      Thread acceptor = new Thread(() -> serve(listener), "acceptor-" + i);
+      acceptor.setDaemon(true);
+      acceptor.start();
+      threads.add(acceptor);
+    }
+
+    LongAdder done = new LongAdder();
+    long end = System.nanoTime() + seconds * 1_000_000_000L;
+    List<Thread> clientThreads = new ArrayList<>();
+    for (int i = 0; i < clients; i++) {
+      Thread client = new Thread(() -> connectLoop(port, end, done), "client-" + i);
+      client.start();
+      clientThreads.add(client);
+    }
+    long start = System.nanoTime();
+    for (Thread client : clientThreads) {
+      client.join();
+    }
+    double rate = done.sum() / ((System.nanoTime() - start) / 1e9);
+
+    for (ServerSocketChannel listener : listeners) {
+      listener.close();
+    }
+    for (Thread acceptor : threads) {
+      acceptor.join(1000);
+    }
+    return rate;
+  }
+
+  /**
+   * Accept loop of one accept thread, until its socket is closed
+   */
+  private static void serve(ServerSocketChannel listener) {
+    ByteBuffer in = ByteBuffer.allocate(1024);
+    ByteBuffer out = ByteBuffer.wrap(RESPONSE);
+    while (listener.isOpen()) {
+      try (SocketChannel channel = listener.accept()) {
+        in.clear();
+        while (!endOfHeaders(in) && channel.read(in) > 0) {
+          // the request is tiny, one read is almost always enough
+        }
+        out.rewind();
+        while (out.hasRemaining()) {
+          channel.write(out);
+        }
+      } catch (IOException e) {
+        // closed socket ends the loop, a client that went away is not our problem
+      }
+    }
+  }
+
+  private static boolean endOfHeaders(ByteBuffer in) {
+    int n = in.position();
+    return n >= 4 && in.get(n - 4) == '\r' && in.get(n - 3) == '\n' && in.get(n - 2) == '\r' && in.get(n - 1) == '\n';
+  }
+
+  /**
+   * One client, opens a new connection per request until the end time
+   */
+  private static void connectLoop(int port, long end, LongAdder done) {
+    InetSocketAddress address = new InetSocketAddress("localhost", port);
+    ByteBuffer in = ByteBuffer.allocate(1024);
+    while (System.nanoTime() < end) {
+      try (SocketChannel channel = SocketChannel.open()) {
+        // the server closes first, the reset of the client then ends its side without
+        // TIME_WAIT, otherwise a few seconds of this use up the local ports
+        channel.setOption(StandardSocketOptions.SO_LINGER, 0);
+        channel.connect(address);
+        channel.write(ByteBuffer.wrap(REQUEST));
+        in.clear();
+        while (channel.read(in) >= 0) {
+          // until the server closes
+        }
+        if (in.position() == RESPONSE.length) {
+          done.increment();
+        }
+      } catch (IOException e) {
+        // refused while the accept queues were full, try again
+      }
+    }
+  }
+}
@@ -0,0 +1,40 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A route whose response is completed later, e.g. when an upstream server answered.
+ *
+ * The nio engine hands the future back to its event loop, so no worker thread waits for
+ * the upstream. The blocking engines call handle() which waits for the future.
+ */
+@FunctionalInterface
+interface AsyncHandler extends Handler {
+  /**
+   * Reads what it needs from the request right away, the request is reused afterwards
+   * @param request the parsed request
+   * @return completes with the response to send
+   */
+  CompletableFuture<HttpResponse> handleAsync(HttpRequest request);
+
+  @Override
+  default HttpResponse handle(HttpRequest request) throws IOException {
+    try {
+      return handleAsync(request).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the response");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+  }
+}
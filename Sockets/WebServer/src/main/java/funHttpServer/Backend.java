@@ -0,0 +1,247 @@
+package funHttpServer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One WebServer behind the ReverseProxy: its idle keep-alive connections, the requests it is
+ * working on, its latency and whether it is healthy.
+ *
+ * Health is checked passively, from the real requests: after EJECT_FAILURES gateway failures
+ * in a row (connection refused or broken, timeout, 502/503/504) the backend gets no requests
+ * for EJECT_TIME, then for twice as long after the next ejection and so on, at most 60 s.
+ * When the time is over the next request tries it again, one more failure ejects it right
+ * away, one success makes it healthy.
+ */
+class Backend {
+  private static final AsyncLogger LOG = AsyncLogger.LOG;
+
+  /** idle connections kept per backend, change with -Dproxy.idle=n */
+  static final int MAX_IDLE = Integer.getInteger("proxy.idle", 32);
+  /** gateway failures in a row that eject a backend, change with -Dproxy.ejectFailures=n */
+  static final int EJECT_FAILURES = Integer.getInteger("proxy.ejectFailures", 3);
+  /** time in ms a backend is ejected the first time, change with -Dproxy.ejectTime=ms */
+  static final long EJECT_TIME = Long.getLong("proxy.ejectTime", 5000);
+  static final long MAX_EJECT_TIME = 60000;
+  /** time in ms to connect and to wait for an answer, change with -Dproxy.timeout=ms */
+  static final int TIMEOUT = Integer.getInteger("proxy.timeout", 10000);
+  /** idle connections older than this are not used, the WebServer closes them after 5 s */
+  static final long IDLE_TIME = WebServer.KEEP_ALIVE_TIMEOUT - 1000;
+
+  /**
+   * A connection to the backend with its buffered streams, which belong to it for its life
+   * (the input buffer may hold bytes of the next response)
+   */
+  static class Connection {
+    final Socket socket;
+    final InputStream in;
+    final OutputStream out;
+    long lastUsed = System.currentTimeMillis();
+    boolean reused = false; // came from the pool, may have been closed by the backend meanwhile
+
+    Connection(Socket socket) throws IOException {
+      this.socket = socket;
+      this.in = new BufferedInputStream(socket.getInputStream(), 16 * 1024);
+      this.out = new BufferedOutputStream(socket.getOutputStream(), 16 * 1024);
+    }
+
+    void close() {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // nothing left to do
+      }
+    }
+  }
+
+  private final String name;
+  private final InetSocketAddress address;
+  private final ConcurrentLinkedDeque<Connection> idle = new ConcurrentLinkedDeque<>();
+  private final AtomicInteger idleCount = new AtomicInteger();
+  private final AtomicInteger outstanding = new AtomicInteger();
+
+  private final Histogram latency = new Histogram();
+  private final LongAdder requests = new LongAdder();
+  private final LongAdder failures = new LongAdder();
+  private final LongAdder connects = new LongAdder();
+  private int failuresInRow = 0;
+  private int ejections = 0;
+  private volatile long ejectedUntil = 0;
+  private final LongAdder ejected = new LongAdder();
+
+  /**
+   * @param hostAndPort e.g. localhost:9001
+   */
+  Backend(String hostAndPort) {
+    int colon = hostAndPort.lastIndexOf(':');
+    if (colon < 0) {
+      throw new IllegalArgumentException("Backend needs host:port, not " + hostAndPort);
+    }
+    this.name = hostAndPort;
+    this.address = new InetSocketAddress(hostAndPort.substring(0, colon),
+        Integer.parseInt(hostAndPort.substring(colon + 1)));
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @return false while the backend is ejected
+   */
+  public boolean isAvailable(long now) {
+    return now >= ejectedUntil;
+  }
+
+  public int getOutstanding() {
+    return outstanding.get();
+  }
+
+  /**
+   * Takes the most recently used idle connection (the one most likely still open) or
+   * connects a new one
+   */
+  Connection acquire() throws IOException {
+    long now = System.currentTimeMillis();
+    Connection connection;
+    while ((connection = idle.pollFirst()) != null) {
+      idleCount.decrementAndGet();
+      if (now - connection.lastUsed < IDLE_TIME) {
+        connection.reused = true;
+        return connection;
+      }
+      connection.close();
+    }
+    Socket socket = new Socket();
+    try {
+      socket.connect(address, TIMEOUT);
+      socket.setSoTimeout(TIMEOUT);
+      socket.setTcpNoDelay(true);
+      connects.increment();
+      return new Connection(socket);
+    } catch (IOException e) {
+      socket.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Gives a connection back after a complete response
+   * @param reusable false if the backend closes it or the response was not read to its end
+   */
+  void release(Connection connection, boolean reusable) {
+    if (reusable && idleCount.incrementAndGet() <= MAX_IDLE) {
+      connection.lastUsed = System.currentTimeMillis();
+      idle.offerFirst(connection);
+      return;
+    }
+    if (reusable) {
+      idleCount.decrementAndGet();
+    }
+    connection.close();
+  }
+
+  /**
+   * A request was sent to the backend, must be followed by succeeded, failed or aborted
+   */
+  void begin() {
+    outstanding.incrementAndGet();
+  }
+
+  /**
+   * The backend answered
+   * @param nanos time from sending the request until the response was passed on
+   */
+  void succeeded(long nanos) {
+    outstanding.decrementAndGet();
+    requests.increment();
+    latency.record(nanos);
+    synchronized (this) {
+      failuresInRow = 0;
+      ejections = 0;
+    }
+  }
+
+  /**
+   * The backend did not answer or answered with a gateway error, ejects it after too
+   * many in a row
+   */
+  void failed(long nanos) {
+    outstanding.decrementAndGet();
+    requests.increment();
+    failures.increment();
+    latency.record(nanos);
+    synchronized (this) {
+      failuresInRow++;
+      long now = System.currentTimeMillis();
+      // requests that were already on their way when it was ejected do not eject it again
+      if (failuresInRow >= EJECT_FAILURES && now >= ejectedUntil) {
+        ejections++;
+        long time = Math.min(MAX_EJECT_TIME, EJECT_TIME << Math.min(ejections - 1, 16));
+        ejectedUntil = now + time;
+        // after the ejection one more failure is enough to eject it again
+        failuresInRow = EJECT_FAILURES - 1;
+        ejected.increment();
+        closeIdle();
+        LOG.warn("Backend {} ejected for {} ms", name, time);
+      }
+    }
+  }
+
+  /**
+   * The request was given up for a reason that says nothing about the backend's health:
+   * a pooled connection the backend had closed or a client that went away
+   */
+  void aborted() {
+    outstanding.decrementAndGet();
+  }
+
+  private void closeIdle() {
+    Connection connection;
+    while ((connection = idle.pollFirst()) != null) {
+      idleCount.decrementAndGet();
+      connection.close();
+    }
+  }
+
+  /**
+   * Appends the backend's values in the Prometheus text format, latency in seconds
+   */
+  void appendMetrics(StringBuilder text) {
+    String label = "{backend=\"" + name + "\"";
+    text.append("proxy_backend_up").append(label).append("} ")
+        .append(isAvailable(System.currentTimeMillis()) ? 1 : 0).append('\n');
+    text.append("proxy_backend_outstanding").append(label).append("} ").append(outstanding.get()).append('\n');
+    text.append("proxy_backend_requests_total").append(label).append("} ").append(requests.sum()).append('\n');
+    text.append("proxy_backend_failures_total").append(label).append("} ").append(failures.sum()).append('\n');
+    text.append("proxy_backend_ejections_total").append(label).append("} ").append(ejected.sum()).append('\n');
+    text.append("proxy_backend_connects_total").append(label).append("} ").append(connects.sum()).append('\n');
+    text.append("proxy_backend_idle_connections").append(label).append("} ").append(idleCount.get()).append('\n');
+    if (latency.getCount() > 0) {
+      for (double quantile : new double[] { 0.5, 0.9, 0.99 }) {
+        text.append("proxy_backend_seconds").append(label).append(",quantile=\"").append(quantile).append("\"} ")
+            .append(seconds(latency.getPercentile(quantile * 100))).append('\n');
+      }
+      text.append("proxy_backend_seconds_max").append(label).append("} ").append(seconds(latency.getMax())).append('\n');
+      text.append("proxy_backend_seconds_count").append(label).append("} ").append(latency.getCount()).append('\n');
+    }
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+
+  private static String seconds(long nanos) {
+    return String.format(Locale.ROOT, "%.6f", nanos / 1e9);
+  }
+}
@@ -0,0 +1,615 @@
+package funHttpServer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Batch variants of /multiply, /currentGrade and /cashier: POST /multiply/batch (and
+ * /currentGrade/batch, /cashier/batch) with many inputs in one body, answered with all
+ * results in one response instead of one request per input.
+ *
+ * The body is a JSON array of objects with the names of the query parameters of the
+ * single route, or one such object per line (NDJSON):
+ *
+ *   [{"num1":3,"num2":4},{"num1":5,"num2":"x"}]
+ *
+ * The results come in the same form and order. An input that cannot be computed gets an
+ * error in its place, the others are computed anyway:
+ *
+ *   [{"result":12},{"error":"num2 is not a number"}]
+ *
+ * The items are parsed straight from the receive buffer into primitive fields, numbers
+ * are read as fixed point (the digits and the count of decimals) and written back as
+ * digits, so the loop over the items creates no objects. Points and money are computed in
+ * integer hundredths, without the rounding errors of the repeated double subtractions in
+ * the single /cashier.
+ */
+final class Batch {
+  /** most digits of a number, so sums of values scaled to hundredths cannot overflow */
+  private static final int MAX_DIGITS = 15;
+
+  private static final byte[] RESULT = ascii("result");
+  private static final byte[] GRADE = ascii("grade");
+  private static final byte[] LETTER = ascii("letter");
+  private static final byte[] CHANGE = ascii("change");
+  private static final byte[] QUARTERS = ascii("quarters");
+  private static final byte[] DIMES = ascii("dimes");
+  private static final byte[] NICKELS = ascii("nickels");
+  private static final byte[] PENNIES = ascii("pennies");
+  private static final byte[] ERROR = ascii("error");
+
+  private static final byte[] NOT_AN_OBJECT = ascii("expected an object");
+  private static final byte[] BAD_OBJECT = ascii("malformed object");
+  private static final byte[] NOT_ENOUGH = ascii("The payment is not enough");
+
+  /** lowest grade in thousandths of a point for each letter, see currentGrade */
+  private static final long[] GRADE_LIMITS = {97000, 93000, 90000, 87000, 83000, 80000, 77000, 73000, 70000, 67000,
+      63000, 60000, Long.MIN_VALUE};
+  private static final byte[][] LETTERS = {ascii("A+"), ascii("A"), ascii("A-"), ascii("B+"), ascii("B"), ascii("B-"),
+      ascii("C+"), ascii("C"), ascii("C-"), ascii("D+"), ascii("D"), ascii("D-"), ascii("F")};
+
+  static final Schema MULTIPLY = new Schema("[{\"num1\":3,\"num2\":4}]", "num1", "num2");
+  static final Schema CURRENT_GRADE = new Schema("[{\"assign\":540,\"quiz\":85,\"exam\":250}]", "assign", "quiz", "exam");
+  static final Schema CASHIER = new Schema("[{\"price\":21.50,\"paid\":22.00}]", "price", "paid");
+
+  private Batch() {
+  }
+
+  /**
+   * Computes the result of one item
+   */
+  @FunctionalInterface
+  interface Operation {
+    /**
+     * @param item the parsed fields of the item, without a parse error
+     * @param out appends the result object or the error of the item
+     */
+    void compute(Reader item, Output out);
+  }
+
+  /**
+   * Names of the fields of a route and their error messages, made once
+   */
+  static final class Schema {
+    final String example;
+    final byte[][] names;
+    final byte[][] missing;
+    final byte[][] notANumber;
+    final byte[][] notAnInteger;
+    final byte[][] outOfRange;
+    final byte[][] tooPrecise;
+    final byte[][] tooLarge;
+
+    Schema(String example, String... names) {
+      this.example = example;
+      int n = names.length;
+      this.names = new byte[n][];
+      missing = new byte[n][];
+      notANumber = new byte[n][];
+      notAnInteger = new byte[n][];
+      outOfRange = new byte[n][];
+      tooPrecise = new byte[n][];
+      tooLarge = new byte[n][];
+      for (int i = 0; i < n; i++) {
+        this.names[i] = ascii(names[i]);
+        missing[i] = ascii("missing " + names[i]);
+        notANumber[i] = ascii(names[i] + " is not a number");
+        notAnInteger[i] = ascii(names[i] + " must be an integer");
+        outOfRange[i] = ascii(names[i] + " is out of range");
+        tooPrecise[i] = ascii(names[i] + " has too many decimals");
+        tooLarge[i] = ascii(names[i] + " is too large");
+      }
+    }
+  }
+
+  /**
+   * Runs the operation for every item in the body of the request
+   * @return 200 with one result per item, 400 if the body holds no item at all
+   */
+  static HttpResponse run(HttpRequest request, Schema schema, Operation operation) {
+    Reader items = new Reader(schema, request.getBuffer(), request.getBodyOffset(), request.getBodyLength());
+    Output out = new Output(request.getBodyLength() * 2 + 256, items.array);
+    while (items.next()) {
+      if (items.error != null) {
+        out.error(items.error);
+      } else {
+        operation.compute(items, out);
+      }
+    }
+    if (out.items == 0) {
+      return HttpResponse.html(400, "Bad Request",
+          "Please send a JSON array or one JSON object per line, e.g. " + schema.example + "\n");
+    }
+    out.finish();
+    HttpResponse response = new HttpResponse(200, "OK", items.array ? "application/json" : "application/x-ndjson");
+    return response.setBody(out.toByteArray());
+  }
+
+  /**
+   * num1 * num2 in int like /multiply, so both give the same result, also when it overflows
+   */
+  static void multiply(Reader item, Output out) {
+    if (item.requireInt(0, out) && item.requireInt(1, out)) {
+      out.begin().number(RESULT, (int) item.fixed(0, 0) * (int) item.fixed(1, 0)).end();
+    }
+  }
+
+  /**
+   * Grade and letter like /currentGrade, exam is optional. assign/600*60 + quiz/100*10 +
+   * exam/300*30 is (assign + quiz + exam) / 10, so with the points in hundredths the sum
+   * is the grade in thousandths, exactly.
+   */
+  static void currentGrade(Reader item, Output out) {
+    if (!item.require(0, 2, out) || !item.require(1, 2, out) || (item.has(2) && !item.require(2, 2, out))) {
+      return;
+    }
+    long grade = item.fixed(0, 2) + item.fixed(1, 2) + (item.has(2) ? item.fixed(2, 2) : 0);
+    int letter = 0;
+    while (grade < GRADE_LIMITS[letter]) {
+      letter++;
+    }
+    out.begin().fixed(GRADE, grade, 3).string(LETTER, LETTERS[letter]).end();
+  }
+
+  /**
+   * Change and coins like /cashier, in cents
+   */
+  static void cashier(Reader item, Output out) {
+    if (!item.require(0, 2, out) || !item.require(1, 2, out)) {
+      return;
+    }
+    long price = item.fixed(0, 2);
+    long paid = item.fixed(1, 2);
+    long change = paid - price;
+    if (price < 0 || paid < 0 || change < 0) {
+      out.error(NOT_ENOUGH);
+      return;
+    }
+    int coins = (int) (change % 100);
+    out.begin().fixed(CHANGE, change, 2)
+        .number(QUARTERS, coins / 25)
+        .number(DIMES, coins % 25 / 10)
+        .number(NICKELS, coins % 25 % 10 / 5)
+        .number(PENNIES, coins % 5)
+        .end();
+  }
+
+  /**
+   * Walks the items of a body, JSON array or NDJSON, and parses the fields of one item at
+   * a time into primitive values
+   */
+  static final class Reader {
+    private final Schema schema;
+    private final byte[] bytes;
+    private final int end;
+    private int pos;
+    final boolean array;
+
+    private final long[] values;
+    private final int[] decimals;
+    private int present; // bit per field
+    /** parse error of the current item, null if it was parsed */
+    byte[] error;
+
+    Reader(Schema schema, byte[] bytes, int offset, int length) {
+      this.schema = schema;
+      this.bytes = bytes;
+      this.pos = offset;
+      this.end = offset + length;
+      values = new long[schema.names.length];
+      decimals = new int[schema.names.length];
+      skipWhitespace();
+      array = pos < end && bytes[pos] == '[';
+      if (array) {
+        pos++;
+      }
+    }
+
+    /**
+     * Parses the next item
+     * @return false if there are no more items
+     */
+    boolean next() {
+      present = 0;
+      error = null;
+      while (pos < end && (isWhitespace(bytes[pos]) || bytes[pos] == ',')) {
+        pos++;
+      }
+      if (pos >= end) {
+        return false;
+      }
+      if (bytes[pos] == ']' && array) {
+        pos = end; // whatever follows the array is ignored
+        return false;
+      }
+      if (bytes[pos] != '{') {
+        error = NOT_AN_OBJECT;
+        skipItem(0);
+        return true;
+      }
+      pos++;
+      while (true) {
+        skipWhitespace();
+        if (pos >= end) {
+          error = BAD_OBJECT;
+          return true;
+        }
+        byte c = bytes[pos];
+        if (c == '}') {
+          pos++;
+          return true;
+        }
+        if (c == ',') {
+          pos++;
+          continue;
+        }
+        if (c != '"') {
+          fail(BAD_OBJECT);
+          return true;
+        }
+        int field = readKey();
+        skipWhitespace();
+        if (pos >= end || bytes[pos] != ':') {
+          fail(BAD_OBJECT);
+          return true;
+        }
+        pos++;
+        skipWhitespace();
+        if (field < 0) {
+          skipValue(); // a field the route does not use
+        } else {
+          byte[] problem = readNumber(field);
+          if (problem != null) {
+            fail(problem);
+            return true;
+          }
+        }
+      }
+    }
+
+    boolean has(int field) {
+      return (present & (1 << field)) != 0;
+    }
+
+    /**
+     * @return the value of the field in units of 10^-scale, e.g. 21.5 with scale 2 is 2150
+     */
+    long fixed(int field, int scale) {
+      long value = values[field];
+      for (int i = decimals[field]; i < scale; i++) {
+        value *= 10;
+      }
+      return value;
+    }
+
+    /**
+     * Checks that the field is there and has at most the given decimals, otherwise the
+     * error of the item is appended
+     */
+    boolean require(int field, int scale, Output out) {
+      byte[] problem = !has(field) ? schema.missing[field]
+          : decimals[field] > scale ? (scale == 0 ? schema.notAnInteger[field] : schema.tooPrecise[field]) : null;
+      if (problem != null) {
+        out.error(problem);
+      }
+      return problem == null;
+    }
+
+    /**
+     * Checks that the field is there and fits into an int like Integer.parseInt wants it
+     */
+    boolean requireInt(int field, Output out) {
+      if (!require(field, 0, out)) {
+        return false;
+      }
+      if (values[field] < Integer.MIN_VALUE || values[field] > Integer.MAX_VALUE) {
+        out.error(schema.outOfRange[field]);
+        return false;
+      }
+      return true;
+    }
+
+    /**
+     * @return the index of the field the key names, -1 for other keys
+     */
+    private int readKey() {
+      int start = ++pos;
+      while (pos < end && bytes[pos] != '"') {
+        if (bytes[pos] == '\\') {
+          skipString(start - 1);
+          return -1; // our names have no escapes
+        }
+        pos++;
+      }
+      int length = pos - start;
+      pos++;
+      byte[][] names = schema.names;
+      for (int i = 0; i < names.length; i++) {
+        if (names[i].length == length && Arrays.equals(names[i], 0, length, bytes, start, start + length)) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    /**
+     * Reads a plain number, also in quotes: -12, 21.50, "3"
+     * @return null or the error of the item
+     */
+    private byte[] readNumber(int field) {
+      int start = pos;
+      boolean quoted = bytes[pos] == '"';
+      if (quoted) {
+        pos++;
+      }
+      boolean negative = pos < end && bytes[pos] == '-';
+      if (negative) {
+        pos++;
+      }
+      long value = 0;
+      int digits = 0;
+      int scale = -1; // no decimal point yet
+      while (pos < end) {
+        byte c = bytes[pos];
+        if (c >= '0' && c <= '9') {
+          digits++;
+          value = value * 10 + (c - '0'); // wrong once too large, but then it is not used
+          if (scale >= 0) {
+            scale++;
+          }
+        } else if (c == '.' && scale < 0) {
+          scale = 0;
+        } else {
+          break;
+        }
+        pos++;
+      }
+      if (quoted && pos < end && bytes[pos] == '"') {
+        pos++;
+      } else if (quoted) {
+        skipString(start); // the rest of the string must not be taken for JSON
+        return schema.notANumber[field];
+      }
+      if (digits == 0 || scale == 0 || (pos < end && !isWhitespace(bytes[pos]) && bytes[pos] != ','
+          && bytes[pos] != '}')) {
+        return schema.notANumber[field];
+      }
+      if (digits > MAX_DIGITS) {
+        return schema.tooLarge[field];
+      }
+      values[field] = negative ? -value : value;
+      decimals[field] = Math.max(scale, 0);
+      present |= 1 << field;
+      return null;
+    }
+
+    private void fail(byte[] message) {
+      error = message;
+      skipItem(1);
+    }
+
+    /**
+     * Skips the rest of a broken item: to the end of its object, to the comma before the
+     * next item, to the end of the array or (NDJSON) to the end of the line
+     * @param depth 1 inside of the object, 0 before the item
+     */
+    private void skipItem(int depth) {
+      while (pos < end) {
+        byte c = bytes[pos];
+        if (c == '"') {
+          skipString(pos);
+          continue;
+        }
+        if ((c == '\n' && !array) || (depth == 0 && (c == ',' || c == ']'))) {
+          return;
+        }
+        pos++;
+        if (c == '{' || c == '[') {
+          depth++;
+        } else if ((c == '}' || c == ']') && --depth <= 0) {
+          return;
+        }
+      }
+    }
+
+    /**
+     * Skips a value of a field the route does not use
+     */
+    private void skipValue() {
+      if (pos >= end) {
+        return;
+      }
+      byte c = bytes[pos];
+      if (c == '"') {
+        skipString(pos);
+      } else if (c == '{' || c == '[') {
+        int depth = 0;
+        do {
+          c = bytes[pos];
+          if (c == '"') {
+            skipString(pos);
+            continue;
+          }
+          if (c == '{' || c == '[') {
+            depth++;
+          } else if (c == '}' || c == ']') {
+            depth--;
+          }
+          pos++;
+        } while (depth > 0 && pos < end);
+      } else {
+        while (pos < end && !isWhitespace(bytes[pos]) && bytes[pos] != ',' && bytes[pos] != '}') {
+          pos++;
+        }
+      }
+    }
+
+    private void skipString(int start) {
+      pos = start + 1;
+      while (pos < end) {
+        byte c = bytes[pos++];
+        if (c == '\\') {
+          pos++;
+        } else if (c == '"') {
+          return;
+        }
+      }
+    }
+
+    private void skipWhitespace() {
+      while (pos < end && isWhitespace(bytes[pos])) {
+        pos++;
+      }
+    }
+
+    private static boolean isWhitespace(byte c) {
+      return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+    }
+  }
+
+  /**
+   * The results as JSON array or NDJSON, written as bytes into one growing array
+   */
+  static final class Output {
+    private byte[] bytes;
+    private int length = 0;
+    private final boolean array;
+    private boolean firstField;
+    int items = 0;
+
+    Output(int capacity, boolean array) {
+      bytes = new byte[capacity];
+      this.array = array;
+      if (array) {
+        append((byte) '[');
+      }
+    }
+
+    /**
+     * Starts the result object of the next item
+     */
+    Output begin() {
+      if (array && items > 0) {
+        append((byte) ',');
+      }
+      items++;
+      append((byte) '{');
+      firstField = true;
+      return this;
+    }
+
+    Output end() {
+      append((byte) '}');
+      if (!array) {
+        append((byte) '\n');
+      }
+      return this;
+    }
+
+    /**
+     * Appends {"error":"message"} as the result of the item
+     */
+    void error(byte[] message) {
+      begin().string(ERROR, message).end();
+    }
+
+    Output number(byte[] name, long value) {
+      name(name);
+      appendLong(value);
+      return this;
+    }
+
+    /**
+     * Appends a fixed point value without trailing zeros, e.g. 2150 with scale 2 as 21.5
+     */
+    Output fixed(byte[] name, long value, int scale) {
+      name(name);
+      long unit = 1;
+      for (int i = 0; i < scale; i++) {
+        unit *= 10;
+      }
+      if (value < 0) {
+        append((byte) '-');
+        value = -value;
+      }
+      appendLong(value / unit);
+      long fraction = value % unit;
+      if (fraction != 0) {
+        append((byte) '.');
+        for (unit /= 10; fraction != 0; unit /= 10) {
+          append((byte) ('0' + fraction / unit));
+          fraction %= unit;
+        }
+      }
+      return this;
+    }
+
+    /**
+     * @param value ASCII text without quotes or backslashes
+     */
+    Output string(byte[] name, byte[] value) {
+      name(name);
+      append((byte) '"');
+      ensure(value.length);
+      System.arraycopy(value, 0, bytes, length, value.length);
+      length += value.length;
+      append((byte) '"');
+      return this;
+    }
+
+    void finish() {
+      if (array) {
+        append((byte) ']');
+      }
+    }
+
+    byte[] toByteArray() {
+      return Arrays.copyOf(bytes, length);
+    }
+
+    private void name(byte[] name) {
+      if (!firstField) {
+        append((byte) ',');
+      }
+      firstField = false;
+      append((byte) '"');
+      ensure(name.length + 2);
+      System.arraycopy(name, 0, bytes, length, name.length);
+      length += name.length;
+      bytes[length++] = '"';
+      bytes[length++] = ':';
+    }
+
+    private void appendLong(long value) {
+      if (value < 0) {
+        append((byte) '-');
+        value = -value; // values are at most MAX_DIGITS digits squared, far from Long.MIN_VALUE
+      }
+      ensure(20);
+      int digits = 1;
+      for (long rest = value / 10; rest != 0; rest /= 10) {
+        digits++;
+      }
+      for (int i = length + digits - 1; i >= length; i--) {
+        bytes[i] = (byte) ('0' + value % 10);
+        value /= 10;
+      }
+      length += digits;
+    }
+
+    private void append(byte b) {
+      ensure(1);
+      bytes[length++] = b;
+    }
+
+    private void ensure(int more) {
+      if (length + more > bytes.length) {
+        bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + more));
+      }
+    }
+  }
+
+  private static byte[] ascii(String text) {
+    return text.getBytes(StandardCharsets.US_ASCII);
+  }
+}
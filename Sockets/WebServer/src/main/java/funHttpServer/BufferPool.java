@@ -0,0 +1,70 @@
+package funHttpServer;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of equally sized byte arrays, so streamed responses do not allocate a new buffer
+ * for every chunk. At most maxPooled free arrays are kept, more are left to the garbage
+ * collector.
+ */
+class BufferPool {
+  private final int bufferSize;
+  private final int maxPooled;
+  private final ConcurrentLinkedQueue<byte[]> free = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger pooled = new AtomicInteger();
+  private final AtomicLong allocated = new AtomicLong();
+
+  /**
+   * @param bufferSize size of every array
+   * @param maxPooled most free arrays kept for reuse
+   */
+  BufferPool(int bufferSize, int maxPooled) {
+    this.bufferSize = bufferSize;
+    this.maxPooled = maxPooled;
+  }
+
+  /**
+   * @return a free array or a new one if the pool is empty
+   */
+  public byte[] acquire() {
+    byte[] buffer = free.poll();
+    if (buffer != null) {
+      pooled.decrementAndGet();
+      return buffer;
+    }
+    allocated.incrementAndGet();
+    return new byte[bufferSize];
+  }
+
+  /**
+   * Gives an array back, it must not be used by the caller afterwards
+   */
+  public void release(byte[] buffer) {
+    if (buffer.length != bufferSize) {
+      return;
+    }
+    if (pooled.incrementAndGet() <= maxPooled) {
+      free.offer(buffer);
+    } else {
+      pooled.decrementAndGet();
+    }
+  }
+
+  public int getBufferSize() {
+    return bufferSize;
+  }
+
+  /**
+   * @return number of arrays that had to be allocated because the pool was empty
+   */
+  public long getAllocated() {
+    return allocated.get();
+  }
+
+  @Override
+  public String toString() {
+    return "BufferPool[bufferSize=" + bufferSize + ", pooled=" + pooled.get() + ", allocated=" + getAllocated() + "]";
+  }
+}
@@ -0,0 +1,163 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Own threads and queue for one route, so a slow route cannot take the threads of the
+ * others (like the watertight compartments of a ship).
+ *
+ * /github waits up to seconds for GitHub, /multiply needs microseconds. If they share the
+ * workers, a few hundred GitHub requests fill every worker and the queue and the cheap
+ * requests wait behind them. In its bulkhead a route gets a fixed number of threads and
+ * a bounded queue, requests beyond that and requests that take longer than the timeout
+ * are answered with 503 right away. The other routes do not notice.
+ *
+ * Configured per route with system properties, e.g. -Dbulkhead.github.threads=8
+ * -Dbulkhead.github.queue=16 -Dbulkhead.github.timeout=12000 (ms).
+ */
+class Bulkhead implements BulkheadMXBean {
+  private final String name;
+  private final int threads;
+  private final int queueCapacity;
+  private final long timeout;
+  private final ThreadPoolExecutor executor;
+  private final LongAdder rejected = new LongAdder();
+  private final LongAdder timeouts = new LongAdder();
+
+  /**
+   * @param name name of the route, used for the threads and the metrics
+   * @param threads threads that run the requests of the route
+   * @param queue requests that may wait for one of the threads
+   * @param timeout time in ms a request may take in the bulkhead, waiting included
+   */
+  Bulkhead(String name, int threads, int queue, long timeout) {
+    this.name = name;
+    this.threads = threads;
+    this.queueCapacity = queue;
+    this.timeout = timeout;
+    AtomicInteger count = new AtomicInteger();
+    this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queue),
+        task -> new Thread(task, "bulkhead-" + name + "-" + count.incrementAndGet()));
+  }
+
+  /**
+   * Creates the bulkhead of a route, the defaults can be changed with the system
+   * properties bulkhead.NAME.threads, bulkhead.NAME.queue and bulkhead.NAME.timeout
+   */
+  static Bulkhead configured(String name, int threads, int queue, long timeout) {
+    return new Bulkhead(name,
+        Integer.getInteger("bulkhead." + name + ".threads", threads),
+        Integer.getInteger("bulkhead." + name + ".queue", queue),
+        Long.getLong("bulkhead." + name + ".timeout", timeout));
+  }
+
+  /**
+   * A route that runs in a bulkhead. Blocking engines wait for it, the nio engine gets the
+   * future. A bulkhead thread still waits for every request, also for an AsyncHandler like
+   * /github, whose handle blocks until the answer is there.
+   */
+  final class Isolated implements AsyncHandler {
+    private final Handler handler;
+
+    private Isolated(Handler handler) {
+      this.handler = handler;
+    }
+
+    @Override
+    public CompletableFuture<HttpResponse> handleAsync(HttpRequest request) {
+      return submit(handler, request);
+    }
+  }
+
+  /**
+   * @return a handler that runs the given one in this bulkhead
+   */
+  Isolated wrap(Handler handler) {
+    return new Isolated(handler);
+  }
+
+  /**
+   * Queues the route for one of the threads
+   * @return completes with the response of the route, or a 503 if the queue is full or
+   *         the timeout passed first
+   */
+  CompletableFuture<HttpResponse> submit(Handler handler, HttpRequest request) {
+    CompletableFuture<HttpResponse> response = new CompletableFuture<>();
+    // after a timeout the connection has its 503 and parses the next request into its
+    // buffer, the route may still run and must not see that one
+    HttpRequest own = request.copy();
+    try {
+      executor.execute(() -> {
+        if (response.isDone()) {
+          return; // timed out while queued, the client has its 503
+        }
+        try {
+          // an AsyncHandler waits here, so the threads limit how many requests of the
+          // route are open at the same time
+          response.complete(handler.handle(own));
+        } catch (IOException | RuntimeException e) {
+          response.completeExceptionally(e);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      rejected.increment();
+      return CompletableFuture.completedFuture(WebServer.overloaded());
+    }
+    return response.orTimeout(timeout, TimeUnit.MILLISECONDS).exceptionally(e -> {
+      Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+      if (cause instanceof TimeoutException) {
+        timeouts.increment();
+        return WebServer.overloaded();
+      }
+      throw e instanceof CompletionException ? (CompletionException) e : new CompletionException(e);
+    });
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  public int getThreads() {
+    return threads;
+  }
+
+  @Override
+  public int getQueueCapacity() {
+    return queueCapacity;
+  }
+
+  @Override
+  public int getActive() {
+    return executor.getActiveCount();
+  }
+
+  @Override
+  public int getQueued() {
+    return executor.getQueue().size();
+  }
+
+  @Override
+  public long getCompleted() {
+    return executor.getCompletedTaskCount();
+  }
+
+  @Override
+  public long getRejected() {
+    return rejected.sum();
+  }
+
+  @Override
+  public long getTimeouts() {
+    return timeouts.sum();
+  }
+}
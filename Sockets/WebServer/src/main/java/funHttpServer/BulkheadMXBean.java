@@ -0,0 +1,26 @@
+package funHttpServer;
+
+/**
+ * Saturation of one bulkhead under funHttpServer:type=Bulkhead,name=ROUTE (see Bulkhead).
+ * A bulkhead is saturated when Active equals Threads and Queued equals QueueCapacity,
+ * from then on its requests are rejected.
+ */
+public interface BulkheadMXBean {
+  int getThreads();
+
+  int getQueueCapacity();
+
+  /** threads running a request right now */
+  int getActive();
+
+  /** requests waiting for a thread */
+  int getQueued();
+
+  long getCompleted();
+
+  /** requests answered with 503 because the queue was full */
+  long getRejected();
+
+  /** requests answered with 503 because they took longer than the timeout */
+  long getTimeouts();
+}
@@ -0,0 +1,174 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Output stream for streamed response bodies (Transfer-Encoding: chunked).
+ *
+ * Bytes are collected in one pooled buffer of CHUNK_SIZE bytes. Whenever it is full (or
+ * flushed) it goes out as one chunk and a fresh buffer is taken from the pool, so a body
+ * of any size needs the same memory and the first bytes are sent as soon as the first
+ * chunk is full. The buffer has room in front of and behind the data for the chunk size
+ * line and the CRLF, so a chunk is handed to the sink as one piece of one array.
+ *
+ * Without chunking (for HTTP/1.0 clients) the data is sent as is and the end of the body
+ * is the end of the connection.
+ */
+class ChunkedOutputStream extends OutputStream {
+  /**
+   * Gets every full buffer, takes it over and gives it back to POOL once it was written
+   */
+  interface Sink {
+    void write(byte[] buffer, int start, int end) throws IOException;
+
+    default void flush() throws IOException {
+    }
+  }
+
+  /** data bytes per chunk */
+  static final int CHUNK_SIZE = 8192;
+  // room for the size in hex and CRLF in front of the data
+  private static final int HEAD_ROOM = 10;
+  // room for CRLF behind the data and the last chunk 0 CRLF CRLF
+  private static final int TAIL_ROOM = 7;
+  private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+  /** buffers of all streamed responses */
+  static final BufferPool POOL = new BufferPool(HEAD_ROOM + CHUNK_SIZE + TAIL_ROOM, 256);
+
+  private final Sink sink;
+  private final boolean chunked;
+  private byte[] buffer = POOL.acquire();
+  private int count = 0;
+  private long written = 0;
+
+  /**
+   * @param sink where the chunks go
+   * @param chunked false to send the data without chunk framing
+   */
+  ChunkedOutputStream(Sink sink, boolean chunked) {
+    this.sink = sink;
+    this.chunked = chunked;
+  }
+
+  /**
+   * Sink that writes the chunks to a stream, the buffer is back in the pool right away
+   */
+  static Sink to(OutputStream out) {
+    return new Sink() {
+      @Override
+      public void write(byte[] buffer, int start, int end) throws IOException {
+        try {
+          out.write(buffer, start, end - start);
+        } finally {
+          POOL.release(buffer);
+        }
+      }
+
+      @Override
+      public void flush() throws IOException {
+        out.flush();
+      }
+    };
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    ensureOpen();
+    if (count == CHUNK_SIZE) {
+      emit(false);
+    }
+    buffer[HEAD_ROOM + count++] = (byte) b;
+  }
+
+  @Override
+  public void write(byte[] bytes, int offset, int length) throws IOException {
+    ensureOpen();
+    while (length > 0) {
+      if (count == CHUNK_SIZE) {
+        emit(false);
+      }
+      int n = Math.min(length, CHUNK_SIZE - count);
+      System.arraycopy(bytes, offset, buffer, HEAD_ROOM + count, n);
+      count += n;
+      offset += n;
+      length -= n;
+    }
+  }
+
+  /**
+   * Sends what is buffered as a chunk right away
+   */
+  @Override
+  public void flush() throws IOException {
+    ensureOpen();
+    if (count > 0) {
+      emit(false);
+    }
+    sink.flush();
+  }
+
+  /**
+   * Sends the rest of the data and the last chunk, which ends the body
+   */
+  @Override
+  public void close() throws IOException {
+    if (buffer != null) {
+      emit(true);
+    }
+  }
+
+  /**
+   * Drops the buffered data without ending the body, used when the body could not be
+   * written completely. The connection has to be closed, so the client sees the error.
+   */
+  public void abort() {
+    if (buffer != null) {
+      POOL.release(buffer);
+      buffer = null;
+    }
+  }
+
+  private void emit(boolean last) throws IOException {
+    int start = HEAD_ROOM;
+    int end = HEAD_ROOM + count;
+    if (chunked && count > 0) {
+      byte[] size = Integer.toHexString(count).getBytes(StandardCharsets.ISO_8859_1);
+      start = HEAD_ROOM - size.length - 2;
+      System.arraycopy(size, 0, buffer, start, size.length);
+      buffer[HEAD_ROOM - 2] = '\r';
+      buffer[HEAD_ROOM - 1] = '\n';
+      buffer[end++] = '\r';
+      buffer[end++] = '\n';
+    }
+    if (chunked && last) {
+      System.arraycopy(LAST_CHUNK, 0, buffer, end, LAST_CHUNK.length);
+      end += LAST_CHUNK.length;
+    }
+
+    byte[] full = buffer;
+    buffer = last ? null : POOL.acquire();
+    count = 0;
+    if (start == end) {
+      POOL.release(full); // nothing to send
+    } else {
+      written += end - start;
+      sink.write(full, start, end);
+    }
+  }
+
+  /**
+   * @return bytes handed to the sink so far, including the chunk framing
+   */
+  public long getBytesWritten() {
+    return written;
+  }
+
+  private void ensureOpen() throws IOException {
+    if (buffer == null) {
+      throw new IOException("Stream closed");
+    }
+  }
+}
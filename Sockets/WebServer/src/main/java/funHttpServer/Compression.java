@@ -0,0 +1,166 @@
+package funHttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * gzip/deflate content coding of response bodies.
+ *
+ * negotiate() picks the coding from the Accept-Encoding header of the request. Static
+ * pages are compressed once and cached next to the plain version (see WebServer.cachedPage),
+ * other text bodies (e.g. JSON) are compressed on the fly by encode() once they are larger
+ * than THRESHOLD bytes, below that the gzip header costs more than it saves.
+ */
+final class Compression {
+  /** smallest body that is compressed, change with -Dcompression.threshold=bytes */
+  static final int THRESHOLD = Integer.getInteger("compression.threshold", 1024);
+  /** largest file that is compressed and cached, larger ones are sent as they are */
+  static final long MAX_FILE = Long.getLong("compression.maxfile", 1024 * 1024);
+
+  static final String GZIP = "gzip";
+  static final String DEFLATE = "deflate";
+
+  private Compression() {
+  }
+
+  /**
+   * Picks the coding for a response, gzip is preferred if the client takes both equally
+   * @param acceptEncoding value of the Accept-Encoding header, may be null
+   * @return "gzip", "deflate" or null for an uncompressed body
+   */
+  static String negotiate(String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return null;
+    }
+    double gzip = -1; // -1 while not listed
+    double deflate = -1;
+    double any = 0;
+    // e.g. "gzip, deflate, br" or "deflate;q=1.0, gzip;q=0.5, *;q=0"
+    for (String part : acceptEncoding.split(",")) {
+      String[] params = part.split(";");
+      String coding = params[0].trim().toLowerCase();
+      double q = 1;
+      for (int i = 1; i < params.length; i++) {
+        String param = params[i].trim();
+        if (param.startsWith("q=")) {
+          try {
+            q = Double.parseDouble(param.substring(2));
+          } catch (NumberFormatException e) {
+            q = 0;
+          }
+        }
+      }
+      if (coding.equals(GZIP) || coding.equals("x-gzip")) {
+        gzip = q;
+      } else if (coding.equals(DEFLATE)) {
+        deflate = q;
+      } else if (coding.equals("*")) {
+        any = q;
+      }
+    }
+    // * stands for every coding that is not listed
+    gzip = gzip < 0 ? any : gzip;
+    deflate = deflate < 0 ? any : deflate;
+    if (gzip > 0 && gzip >= deflate) {
+      return GZIP;
+    }
+    return deflate > 0 ? DEFLATE : null;
+  }
+
+  /**
+   * @return true for text types that shrink well, images and archives are compressed already
+   */
+  static boolean isCompressible(String contentType) {
+    if (contentType == null) {
+      return false;
+    }
+    String type = contentType.toLowerCase();
+    return type.startsWith("text/") || type.startsWith("application/json") || type.startsWith("application/x-ndjson") || type.startsWith("application/javascript")
+        || type.startsWith("application/xml") || type.startsWith("image/svg+xml");
+  }
+
+  /**
+   * @return the body compressed with the coding
+   */
+  static byte[] compress(byte[] body, String encoding) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length / 3 + 64);
+    try (OutputStream out = wrap(bytes, encoding)) {
+      out.write(body);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e); // cannot happen when writing to memory
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * @return a stream that compresses into out, close() it to write the end of the data and
+   *         free its Deflater
+   */
+  static DeflaterOutputStream wrap(OutputStream out, String encoding) throws IOException {
+    // syncFlush, so a flush of a streamed body sends everything written so far
+    if (GZIP.equals(encoding)) {
+      return new GZIPOutputStream(out, 8192, true);
+    }
+    return new DeflaterOutputStream(out, true);
+  }
+
+  /**
+   * Compresses the body of a response on the fly if the client accepts it and it is worth it.
+   * Responses that already have a Content-Encoding (e.g. cached static pages) and file
+   * bodies are left alone.
+   * @param response the response of a route
+   * @param encoding negotiated coding or null
+   * @return the response
+   */
+  static HttpResponse encode(HttpResponse response, String encoding) {
+    if (response.hasFileBody() || response.getHeaders().containsKey("Content-Encoding")
+        || !isCompressible(response.getHeaders().get("Content-Type"))) {
+      return response;
+    }
+    // caches in between must not give a compressed body to a client that cannot read it
+    response.setHeader("Vary", "Accept-Encoding");
+    if (encoding == null) {
+      return response;
+    }
+    if (response.hasStreamBody()) {
+      HttpResponse.BodyWriter writer = response.getBodyWriter();
+      response.setBody(out -> {
+        // close() finishes the data and frees the native zlib buffers right away instead of
+        // at some GC, out is closed by the caller
+        try (DeflaterOutputStream compressed = wrap(new KeepOpen(out), encoding)) {
+          writer.writeBody(compressed);
+        }
+      });
+    } else if (response.getBody().length >= THRESHOLD) {
+      response.setBody(compress(response.getBody(), encoding));
+    } else {
+      return response;
+    }
+    response.setHeader("Content-Encoding", encoding);
+    return response;
+  }
+
+  /**
+   * Passes everything on to out but does not close it
+   */
+  private static final class KeepOpen extends FilterOutputStream {
+    KeepOpen(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+    }
+
+    @Override
+    public void close() {
+      // the caller ends the body, e.g. with the last chunk
+    }
+  }
+}
@@ -0,0 +1,65 @@
+package funHttpServer;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How the WebServer runs the work for an accepted connection.
+ *
+ * SERIAL  - the accept thread creates and writes the response itself, so only one
+ *           client is served at a time (this is how the server started out)
+ * POOLED  - a fixed number of platform threads handle connections, extra connections
+ *           wait in the pool's queue (bounded, connections beyond it get a 503)
+ * VIRTUAL - every connection gets its own virtual thread (needs Java 21+)
+ * NIO     - non-blocking event loops (one per core) do all socket work, the pool only
+ *           runs the route handlers, idle connections do not hold a thread
+ */
+enum ExecutionMode {
+  SERIAL, POOLED, VIRTUAL, NIO;
+
+  /**
+   * Parses the mode given on the command line, case does not matter
+   * @param name serial, pooled, virtual or nio
+   * @return the matching mode
+   * @throws IllegalArgumentException if the name is not a known mode
+   */
+  public static ExecutionMode fromString(String name) {
+    for (ExecutionMode mode : values()) {
+      if (mode.name().equalsIgnoreCase(name)) {
+        return mode;
+      }
+    }
+    throw new IllegalArgumentException("Unknown mode: " + name + " (use serial, pooled, virtual or nio)");
+  }
+
+  /**
+   * Creates the executor that connections are handed to
+   * @param threads number of worker threads, used for POOLED and NIO
+   * @param queue tasks that may wait for a thread in POOLED and NIO, execute throws a
+   *              RejectedExecutionException when they are all taken
+   * @return the executor or null for SERIAL (run on the accept thread)
+   */
+  public ExecutorService createExecutor(int threads, int queue) {
+    switch (this) {
+    case POOLED:
+    case NIO:
+      // an unbounded queue would only make every waiting client wait longer
+      return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queue));
+    case VIRTUAL:
+      // looked up by reflection so the server still compiles and runs on JDKs before 21
+      try {
+        Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        return (ExecutorService) factory.invoke(null);
+      } catch (ReflectiveOperationException e) {
+        System.out.println("Virtual threads need Java 21+, falling back to a pool of " + threads + " threads");
+        return POOLED.createExecutor(threads, queue);
+      }
+    default:
+      return null;
+    }
+  }
+}
@@ -0,0 +1,105 @@
+package funHttpServer;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stands in for api.github.com so the /github route can be tried and load tested without
+ * the network and without running into GitHub's rate limit.
+ *
+ * Answers GET /users/NAME/repos with a generated list of repositories (users called
+ * "empty" have none, "missing" gives a 404, "manyN" have N for large bodies). Every
+ * answer has an ETag and a matching If-None-Match gets a 304, like GitHub does. An
+ * optional delay simulates a slow upstream. Each request is counted and printed, so you
+ * can see which requests reach the upstream.
+ *
+ *   gradle GitHubStub -Pport=9200 -Pdelay=200
+ *   gradle FunWebServer -Pmode=nio -PgithubUrl=http://localhost:9200/
+ */
+class GitHubStub {
+  private static final AtomicLong requests = new AtomicLong();
+
+  public static void main(String args[]) throws IOException {
+    int port = args.length > 0 ? Integer.parseInt(args[0]) : 9200;
+    long delay = args.length > 1 ? Long.parseLong(args[1]) : 0;
+
+    HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.createContext("/users/", exchange -> {
+      try (exchange) {
+        handle(exchange, delay);
+      }
+    });
+    server.start();
+    System.out.println("GitHub stub on port " + port + " with " + delay + " ms delay");
+  }
+
+  private static void handle(HttpExchange exchange, long delay) throws IOException {
+    long count = requests.incrementAndGet();
+    String path = exchange.getRequestURI().getPath(); // /users/NAME/repos
+    String[] parts = path.split("/");
+    String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+    System.out.println("#" + count + " " + exchange.getRequestMethod() + " " + path
+        + (ifNoneMatch != null ? " If-None-Match: " + ifNoneMatch : ""));
+
+    if (delay > 0) {
+      try {
+        Thread.sleep(delay);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    if (parts.length != 4 || !parts[3].equals("repos") || parts[2].equals("missing")) {
+      send(exchange, 404, "{\"message\":\"Not Found\"}");
+      return;
+    }
+
+    String login = parts[2];
+    String body = repos(login);
+    // the body only depends on the login, so the hash of the body is a stable ETag
+    String etag = "\"" + Integer.toHexString(body.hashCode()) + "\"";
+    exchange.getResponseHeaders().set("ETag", etag);
+    if (etag.equals(ifNoneMatch)) {
+      exchange.sendResponseHeaders(304, -1);
+      return;
+    }
+    send(exchange, 200, body);
+  }
+
+  /**
+   * @return a JSON array of repositories with the fields the /github route reads
+   */
+  private static String repos(String login) {
+    int count = login.equals("empty") ? 0 : 3 + Math.abs(login.hashCode() % 8);
+    if (login.matches("many[0-9]+")) {
+      count = Integer.parseInt(login.substring(4));
+    }
+    StringBuilder json = new StringBuilder("[");
+    for (int i = 0; i < count; i++) {
+      if (i > 0) {
+        json.append(',');
+      }
+      json.append("{\"id\":").append(1000 + i)
+          .append(",\"name\":\"repo").append(i).append('"')
+          .append(",\"full_name\":\"").append(login).append("/repo").append(i).append('"')
+          .append(",\"owner\":{\"login\":\"").append(login).append("\"}}");
+    }
+    return json.append(']').toString();
+  }
+
+  private static void send(HttpExchange exchange, int status, String body) throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+    exchange.sendResponseHeaders(status, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+}
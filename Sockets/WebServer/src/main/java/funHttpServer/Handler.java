@@ -0,0 +1,16 @@
+package funHttpServer;
+
+import java.io.IOException;
+
+/**
+ * Creates the response for the requests of one route, registered in the Router
+ */
+@FunctionalInterface
+interface Handler {
+  /**
+   * @param request the parsed request
+   * @return the response to send
+   * @throws IOException if the route cannot read what it needs, answered with a 500
+   */
+  HttpResponse handle(HttpRequest request) throws IOException;
+}
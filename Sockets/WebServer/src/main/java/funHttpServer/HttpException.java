@@ -0,0 +1,28 @@
+package funHttpServer;
+
+import java.io.IOException;
+
+/**
+ * Thrown while reading a request that cannot be handled. Carries the status
+ * that is sent back to the client before the connection is closed.
+ */
+class HttpException extends IOException {
+  private static final long serialVersionUID = 1L;
+
+  private final int status;
+  private final String reason;
+
+  HttpException(int status, String reason, String message) {
+    super(message);
+    this.status = status;
+    this.reason = reason;
+  }
+
+  public int getStatus() {
+    return status;
+  }
+
+  public String getReason() {
+    return reason;
+  }
+}
@@ -0,0 +1,515 @@
+package funHttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * One parsed HTTP request: request line, headers and (if Content-Length is given) the body.
+ *
+ * The request is a flyweight over the receive buffer of its connection. Parsing only
+ * records where the method, path, query, headers and body start and end, no String or
+ * map is created. Strings are built when a handler asks for them, e.g. getHeader("Accept")
+ * or getParameter("num1"), and kept for further calls.
+ *
+ * A connection reuses one HttpRequest for all of its requests (see RequestDecoder), so a
+ * request is only valid until its response was created. Copy out what you need longer.
+ */
+class HttpRequest {
+  /** longest request or header line we accept */
+  static final int MAX_LINE_LENGTH = 8192;
+  /** largest body we accept */
+  static final int MAX_BODY_LENGTH = 1024 * 1024;
+  /** most headers we accept in one request */
+  static final int MAX_HEADERS = 64;
+
+  private static final byte[] GET = { 'G', 'E', 'T' };
+  private static final byte[] HTTP_1_1 = { 'H', 'T', 'T', 'P', '/', '1', '.', '1' };
+
+  private byte[] buffer;
+  private int headStart, headEnd;
+  private int methodStart, methodEnd;
+  private int pathStart; // behind the leading /
+  private int routeEnd; // the ? in front of the query or the end of the path
+  private int pathEnd;
+  private int versionStart, versionEnd;
+  // name start, name end, value start, value end for every header
+  private final int[] headerOffsets = new int[MAX_HEADERS * 4];
+  private int headerCount;
+  private int bodyStart, bodyLength;
+
+  // built on request
+  private String method, path, query, version;
+  private byte[] body;
+
+  /**
+   * Parses a complete request held in a byte array, used by tools and benchmarks,
+   * the server itself parses through RequestDecoder
+   * @param bytes request line, headers and body
+   * @return the parsed request
+   * @throws HttpException if the request is malformed or incomplete
+   */
+  public static HttpRequest parse(byte[] bytes) throws HttpException {
+    int headEnd = RequestDecoder.findHeadEnd(bytes, 0, bytes.length);
+    HttpRequest request = new HttpRequest();
+    if (headEnd < 0 || !request.parseHead(bytes, 0, headEnd)) {
+      throw new HttpException(400, "Bad Request", "Incomplete request");
+    }
+    int length = request.getContentLength();
+    if (bytes.length - headEnd < length) {
+      throw new HttpException(400, "Bad Request", "Incomplete request body");
+    }
+    request.setBody(headEnd, length);
+    return request;
+  }
+
+  /**
+   * Parses the request line and the headers in place, the bytes are not copied
+   * @param buffer receive buffer, must not change while the request is used
+   * @param start first byte of the request
+   * @param end position behind the empty line that ends the header
+   * @return false if there were only empty lines and no request
+   * @throws HttpException if the request is malformed
+   */
+  boolean parseHead(byte[] buffer, int start, int end) throws HttpException {
+    this.buffer = buffer;
+    headStart = start;
+    headEnd = end;
+    method = path = query = version = null;
+    body = null;
+    headerCount = 0;
+    bodyStart = end;
+    bodyLength = 0;
+
+    // be lenient and skip empty lines in front of a request
+    int pos = start;
+    while (pos < end && (buffer[pos] == '\r' || buffer[pos] == '\n')) {
+      pos++;
+    }
+    if (pos == end) {
+      return false;
+    }
+
+    // example request line: GET /multiply?num1=3&num2=4 HTTP/1.1
+    int lineEnd = lineEnd(buffer, pos, end);
+    if (lineEnd - pos > MAX_LINE_LENGTH) {
+      throw new HttpException(431, "Request Header Fields Too Large", "Line longer than " + MAX_LINE_LENGTH);
+    }
+    methodStart = pos;
+    methodEnd = indexOf(buffer, pos, lineEnd, ' ');
+    pathEnd = methodEnd < 0 ? -1 : indexOf(buffer, methodEnd + 1, lineEnd, ' ');
+    if (methodEnd <= pos || pathEnd < 0 || buffer[methodEnd + 1] != '/') {
+      throw new HttpException(400, "Bad Request", "Illegal request line: " + text(pos, lineEnd));
+    }
+    // everything after the leading / up to the version, e.g. multiply?num1=3&num2=4
+    pathStart = methodEnd + 2;
+    routeEnd = indexOf(buffer, pathStart, pathEnd, '?');
+    if (routeEnd < 0) {
+      routeEnd = pathEnd;
+    }
+    versionStart = pathEnd + 1;
+    versionEnd = lineEnd;
+
+    // headers until the empty line
+    pos = nextLine(buffer, lineEnd, end);
+    while (pos < end) {
+      lineEnd = lineEnd(buffer, pos, end);
+      if (lineEnd == pos) {
+        break;
+      }
+      if (lineEnd - pos > MAX_LINE_LENGTH) {
+        throw new HttpException(431, "Request Header Fields Too Large", "Line longer than " + MAX_LINE_LENGTH);
+      }
+      int colon = indexOf(buffer, pos, lineEnd, ':');
+      if (colon <= pos) {
+        throw new HttpException(400, "Bad Request", "Illegal header line: " + text(pos, lineEnd));
+      }
+      if (headerCount == MAX_HEADERS) {
+        throw new HttpException(431, "Request Header Fields Too Large", "More than " + MAX_HEADERS + " headers");
+      }
+      int i = headerCount++ * 4;
+      headerOffsets[i] = trimStart(buffer, pos, colon);
+      headerOffsets[i + 1] = trimEnd(buffer, pos, colon);
+      headerOffsets[i + 2] = trimStart(buffer, colon + 1, lineEnd);
+      headerOffsets[i + 3] = trimEnd(buffer, colon + 1, lineEnd);
+      pos = nextLine(buffer, lineEnd, end);
+    }
+
+    if (headerIndex("transfer-encoding") >= 0) {
+      throw new HttpException(501, "Not Implemented", "Transfer-Encoding on requests is not supported");
+    }
+    // validates the header right away
+    getContentLength();
+    return true;
+  }
+
+  /**
+   * @return the same request over its own copy of the bytes, stays valid while the
+   *         connection reads its next requests into the buffer, e.g. for a route that may
+   *         still run after the connection got its response (see Bulkhead)
+   */
+  HttpRequest copy() {
+    byte[] bytes = Arrays.copyOfRange(buffer, headStart, bodyStart + bodyLength);
+    HttpRequest copy = new HttpRequest();
+    try {
+      copy.parseHead(bytes, 0, headEnd - headStart);
+    } catch (HttpException e) {
+      throw new IllegalStateException("Request parsed before cannot be parsed again", e);
+    }
+    copy.setBody(bodyStart - headStart, bodyLength);
+    return copy;
+  }
+
+  /**
+   * Sets where the body is in the buffer
+   */
+  void setBody(int start, int length) {
+    bodyStart = start;
+    bodyLength = length;
+    body = null;
+  }
+
+  /**
+   * @return true if the request has the given method, compared without creating a String
+   */
+  public boolean isMethod(String name) {
+    return equalsAscii(methodStart, methodEnd, name, false);
+  }
+
+  public String getMethod() {
+    if (method == null) {
+      method = regionEquals(methodStart, methodEnd, GET) ? "GET" : text(methodStart, methodEnd);
+    }
+    return method;
+  }
+
+  /**
+   * @return the request target without the leading /, e.g. multiply?num1=3&num2=4
+   */
+  public String getPath() {
+    if (path == null) {
+      path = text(pathStart, pathEnd);
+    }
+    return path;
+  }
+
+  /**
+   * @return the part of the path after the ?, e.g. num1=3&num2=4, empty if there is none
+   */
+  public String getQuery() {
+    if (query == null) {
+      query = routeEnd < pathEnd ? text(routeEnd + 1, pathEnd) : "";
+    }
+    return query;
+  }
+
+  public String getVersion() {
+    if (version == null) {
+      version = regionEquals(versionStart, versionEnd, HTTP_1_1) ? "HTTP/1.1" : text(versionStart, versionEnd);
+    }
+    return version;
+  }
+
+  // the route for the Router is buffer[routeStart, routeEnd), the path without the query
+  byte[] getBuffer() {
+    return buffer;
+  }
+
+  int getRouteStart() {
+    return pathStart;
+  }
+
+  int getRouteEnd() {
+    return routeEnd;
+  }
+
+  /**
+   * @param name header name, case does not matter
+   * @return the header value or null if the header was not sent
+   */
+  public String getHeader(String name) {
+    int i = headerIndex(name);
+    return i < 0 ? null : text(headerOffsets[i + 2], headerOffsets[i + 3]);
+  }
+
+  /**
+   * Compares a header value without creating a String
+   * @return true if the header was sent and its value equals the given one ignoring case
+   */
+  public boolean headerEqualsIgnoreCase(String name, String value) {
+    int i = headerIndex(name);
+    return i >= 0 && equalsAscii(headerOffsets[i + 2], headerOffsets[i + 3], value, true);
+  }
+
+  /**
+   * @return number of header lines, repeated headers count once per line
+   */
+  public int getHeaderCount() {
+    return headerCount;
+  }
+
+  /**
+   * @param index of the header line, 0 to getHeaderCount() - 1
+   * @return the name as sent
+   */
+  public String getHeaderName(int index) {
+    return text(headerOffsets[index * 4], headerOffsets[index * 4 + 1]);
+  }
+
+  /**
+   * @param index of the header line, 0 to getHeaderCount() - 1
+   */
+  public String getHeaderValue(int index) {
+    return text(headerOffsets[index * 4 + 2], headerOffsets[index * 4 + 3]);
+  }
+
+  /**
+   * @return all headers with lower case names, builds a new map on every call
+   */
+  public Map<String, String> getHeaders() {
+    Map<String, String> headers = new LinkedHashMap<>();
+    for (int i = 0; i < headerCount * 4; i += 4) {
+      headers.put(text(headerOffsets[i], headerOffsets[i + 1]).toLowerCase(),
+          text(headerOffsets[i + 2], headerOffsets[i + 3]));
+    }
+    return headers;
+  }
+
+  /**
+   * @return the length of the body given in the Content-Length header, 0 if there is none
+   * @throws HttpException if the header is not a valid length or the body is too large
+   */
+  public int getContentLength() throws HttpException {
+    int i = headerIndex("content-length");
+    if (i < 0) {
+      return 0;
+    }
+    int start = headerOffsets[i + 2];
+    int end = headerOffsets[i + 3];
+    if (start == end || end - start > 10) {
+      throw new HttpException(400, "Bad Request", "Illegal Content-Length: " + text(start, end));
+    }
+    long length = 0;
+    for (int p = start; p < end; p++) {
+      if (buffer[p] < '0' || buffer[p] > '9') {
+        throw new HttpException(400, "Bad Request", "Illegal Content-Length: " + text(start, end));
+      }
+      length = length * 10 + (buffer[p] - '0');
+    }
+    if (length > MAX_BODY_LENGTH) {
+      throw new HttpException(413, "Payload Too Large", "Body is larger than " + MAX_BODY_LENGTH + " bytes");
+    }
+    return (int) length;
+  }
+
+  /**
+   * HTTP/1.1 connections stay open unless the client sends "Connection: close",
+   * HTTP/1.0 connections only stay open with "Connection: keep-alive"
+   * @return true if the client wants to keep the connection open after the response
+   */
+  public boolean isKeepAlive() {
+    if (regionEquals(versionStart, versionEnd, HTTP_1_1)) {
+      return !headerEqualsIgnoreCase("connection", "close");
+    }
+    return headerEqualsIgnoreCase("connection", "keep-alive");
+  }
+
+  /**
+   * @return a copy of the body, made on the first call
+   */
+  public byte[] getBody() {
+    if (body == null) {
+      body = Arrays.copyOfRange(buffer, bodyStart, bodyStart + bodyLength);
+    }
+    return body;
+  }
+
+  // the body without a copy is buffer[bodyOffset, bodyOffset + bodyLength)
+  int getBodyOffset() {
+    return bodyStart;
+  }
+
+  public int getBodyLength() {
+    return bodyLength;
+  }
+
+  /**
+   * @return number of name=value pairs in the query
+   */
+  public int getParameterCount() {
+    int count = 0;
+    for (int pos = routeEnd + 1; pos <= pathEnd; ) {
+      int pairEnd = pairEnd(pos);
+      if (pairEnd > pos) {
+        count++;
+      }
+      pos = pairEnd + 1;
+    }
+    return count;
+  }
+
+  public boolean hasParameter(String name) {
+    return valueStart(name) >= 0;
+  }
+
+  /**
+   * Looks up a query parameter, names and values are URL decoded (+ and %XX, UTF-8)
+   * @param name parameter name
+   * @return the value of the first parameter with that name, empty if it has no =,
+   *         null if the parameter was not sent
+   */
+  public String getParameter(String name) {
+    int valueStart = valueStart(name);
+    return valueStart < 0 ? null : decode(valueStart, pairEnd(valueStart));
+  }
+
+  /**
+   * @return the start of the value of the first parameter with the given name or -1
+   */
+  private int valueStart(String name) {
+    for (int pos = routeEnd + 1; pos <= pathEnd; ) {
+      int pairEnd = pairEnd(pos);
+      int equals = indexOf(buffer, pos, pairEnd, '=');
+      int nameEnd = equals < 0 ? pairEnd : equals;
+      if (pairEnd > pos && decodedEquals(pos, nameEnd, name)) {
+        return equals < 0 ? pairEnd : equals + 1;
+      }
+      pos = pairEnd + 1;
+    }
+    return -1;
+  }
+
+  private int pairEnd(int pos) {
+    int end = indexOf(buffer, pos, pathEnd, '&');
+    return end < 0 ? pathEnd : end;
+  }
+
+  /**
+   * Compares URL encoded bytes with a plain ASCII name without decoding them into a String
+   */
+  private boolean decodedEquals(int start, int end, String name) {
+    int n = 0;
+    for (int p = start; p < end; p++, n++) {
+      int c = buffer[p] & 0xFF;
+      if (c == '+') {
+        c = ' ';
+      } else if (c == '%' && p + 2 < end && hex(buffer[p + 1]) >= 0 && hex(buffer[p + 2]) >= 0) {
+        c = hex(buffer[p + 1]) * 16 + hex(buffer[p + 2]);
+        p += 2;
+      }
+      if (n >= name.length() || name.charAt(n) != c) {
+        return false;
+      }
+    }
+    return n == name.length();
+  }
+
+  /**
+   * URL decodes buffer[start, end), only allocates a byte array if there is something to decode
+   */
+  private String decode(int start, int end) {
+    int p = start;
+    while (p < end && buffer[p] != '+' && buffer[p] != '%' && buffer[p] >= 0) {
+      p++;
+    }
+    if (p == end) {
+      return text(start, end);
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(end - start);
+    for (p = start; p < end; p++) {
+      byte b = buffer[p];
+      if (b == '+') {
+        bytes.write(' ');
+      } else if (b == '%' && p + 2 < end && hex(buffer[p + 1]) >= 0 && hex(buffer[p + 2]) >= 0) {
+        bytes.write(hex(buffer[p + 1]) * 16 + hex(buffer[p + 2]));
+        p += 2;
+      } else {
+        bytes.write(b);
+      }
+    }
+    return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  private static int hex(byte c) {
+    if (c >= '0' && c <= '9') return c - '0';
+    if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+    if (c >= 'A' && c <= 'F') return c - 'A' + 10;
+    return -1;
+  }
+
+  /**
+   * @return the index of the header in headerOffsets or -1
+   */
+  private int headerIndex(String name) {
+    for (int i = 0; i < headerCount * 4; i += 4) {
+      if (equalsAscii(headerOffsets[i], headerOffsets[i + 1], name, true)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private boolean equalsAscii(int start, int end, String value, boolean ignoreCase) {
+    if (end - start != value.length()) {
+      return false;
+    }
+    for (int i = 0; i < value.length(); i++) {
+      char a = (char) (buffer[start + i] & 0xFF);
+      char b = value.charAt(i);
+      if (a != b && !(ignoreCase && Character.toLowerCase(a) == Character.toLowerCase(b))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean regionEquals(int start, int end, byte[] value) {
+    return Arrays.equals(buffer, start, end, value, 0, value.length);
+  }
+
+  private String text(int start, int end) {
+    return new String(buffer, start, end - start, StandardCharsets.ISO_8859_1);
+  }
+
+  private static int indexOf(byte[] buffer, int start, int end, char c) {
+    for (int i = start; i < end; i++) {
+      if (buffer[i] == c) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return end of the line starting at pos, without the \n and a \r in front of it
+   */
+  private static int lineEnd(byte[] buffer, int pos, int end) {
+    int newline = indexOf(buffer, pos, end, '\n');
+    if (newline < 0) {
+      newline = end;
+    }
+    return newline > pos && buffer[newline - 1] == '\r' ? newline - 1 : newline;
+  }
+
+  /**
+   * @return start of the line behind the one ending at lineEnd
+   */
+  private static int nextLine(byte[] buffer, int lineEnd, int end) {
+    int pos = lineEnd;
+    if (pos < end && buffer[pos] == '\r') pos++;
+    if (pos < end && buffer[pos] == '\n') pos++;
+    return pos;
+  }
+
+  private static int trimStart(byte[] buffer, int start, int end) {
+    while (start < end && (buffer[start] == ' ' || buffer[start] == '\t')) start++;
+    return start;
+  }
+
+  private static int trimEnd(byte[] buffer, int start, int end) {
+    while (end > start && (buffer[end - 1] == ' ' || buffer[end - 1] == '\t')) end--;
+    return end;
+  }
+}
@@ -0,0 +1,315 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An HTTP response: status line, headers and body.
+ *
+ * Content-Length and Connection are added when the response is written, so the
+ * client knows where the body ends and can send the next request on the same connection.
+ * 1xx, 204 and 304 responses never have a body, whatever was set is not sent, otherwise
+ * the client would take it for the start of the next response.
+ *
+ * The body is either a byte array, a region of a file or streamed by a BodyWriter. File
+ * bodies are never loaded onto the heap, they are sent with FileChannel.transferTo
+ * (sendfile on Linux) straight from the page cache to the socket. Streamed bodies are
+ * written in pooled chunks of fixed size with Transfer-Encoding: chunked, so large
+ * generated bodies are never held in memory as a whole.
+ */
+class HttpResponse {
+  /**
+   * Writes a streamed body, may run more than once if the response was copied
+   */
+  @FunctionalInterface
+  interface BodyWriter {
+    void writeBody(OutputStream out) throws IOException;
+  }
+
+  private final int status;
+  private final String reason;
+  private final Map<String, String> headers = new LinkedHashMap<>();
+  private byte[] body = new byte[0];
+  private FileChannel file = null;
+  private long filePosition = 0;
+  private long fileLength = 0;
+  private BodyWriter stream = null;
+  private boolean chunked = true;
+  private Metrics.Route route = null;
+
+  /**
+   * @param status status code, e.g. 200
+   * @param reason reason phrase, e.g. OK
+   * @param contentType value of the Content-Type header
+   */
+  public HttpResponse(int status, String reason, String contentType) {
+    this.status = status;
+    this.reason = reason;
+    headers.put("Content-Type", contentType);
+  }
+
+  /**
+   * Short way to create an HTML response
+   */
+  public static HttpResponse html(int status, String reason, String body) {
+    HttpResponse response = new HttpResponse(status, reason, "text/html; charset=utf-8");
+    response.setBody(body);
+    return response;
+  }
+
+  /**
+   * Copies a response with a byte array or streamed body, e.g. to send one shared result
+   * to several clients. The headers are copied, the body array or writer is shared and
+   * must not be changed.
+   */
+  public HttpResponse copy() {
+    if (file != null) {
+      throw new IllegalStateException("A file body can only be sent once");
+    }
+    HttpResponse copy = new HttpResponse(status, reason, headers.get("Content-Type"));
+    copy.headers.putAll(headers);
+    copy.body = body;
+    copy.stream = stream;
+    copy.chunked = chunked;
+    return copy;
+  }
+
+  /**
+   * Sets the route that created the response, the engines record the parse and write
+   * times of the request there
+   */
+  public HttpResponse setRoute(Metrics.Route route) {
+    this.route = route;
+    return this;
+  }
+
+  public Metrics.Route getRoute() {
+    return route;
+  }
+
+  public int getStatus() {
+    return status;
+  }
+
+  public String getReason() {
+    return reason;
+  }
+
+  public Map<String, String> getHeaders() {
+    return headers;
+  }
+
+  public HttpResponse setHeader(String name, String value) {
+    headers.put(name, value);
+    return this;
+  }
+
+  public byte[] getBody() {
+    return hasBody() ? body : new byte[0];
+  }
+
+  public HttpResponse setBody(byte[] body) {
+    this.body = body;
+    this.stream = null;
+    return this;
+  }
+
+  public HttpResponse setBody(String body) {
+    return setBody(body.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Uses a region of a file as body, the response closes the channel once it was written
+   * @param file open channel of the file
+   * @param position first byte to send
+   * @param length number of bytes to send
+   */
+  public HttpResponse setBody(FileChannel file, long position, long length) {
+    this.file = file;
+    this.filePosition = position;
+    this.fileLength = length;
+    this.body = new byte[0];
+    this.stream = null;
+    return this;
+  }
+
+  /**
+   * Streams the body when the response is written, the writer may flush to send what it
+   * has so far right away
+   * @param writer writes the body, runs once for every time the response is sent
+   */
+  public HttpResponse setBody(BodyWriter writer) {
+    this.stream = writer;
+    this.body = new byte[0];
+    return this;
+  }
+
+  public boolean hasStreamBody() {
+    return stream != null && hasBody();
+  }
+
+  public BodyWriter getBodyWriter() {
+    return stream;
+  }
+
+  /**
+   * Streamed bodies are sent chunked unless the client does not understand it (HTTP/1.0),
+   * then the end of the body is the end of the connection
+   */
+  public HttpResponse setChunked(boolean chunked) {
+    this.chunked = chunked;
+    return this;
+  }
+
+  public boolean isChunked() {
+    return chunked;
+  }
+
+  /**
+   * @return false if the connection has to be closed to mark the end of the body
+   */
+  public boolean hasDelimitedBody() {
+    return !hasStreamBody() || chunked;
+  }
+
+  public boolean hasFileBody() {
+    return file != null && hasBody();
+  }
+
+  /**
+   * @return false for 1xx, 204 and 304, they end with the head (RFC 9112 section 6.3)
+   */
+  public boolean hasBody() {
+    return status >= 200 && status != 204 && status != 304;
+  }
+
+  public FileChannel getFile() {
+    return file;
+  }
+
+  public long getFilePosition() {
+    return filePosition;
+  }
+
+  /**
+   * @return number of body bytes, for file bodies the length of the file region,
+   *         -1 for streamed bodies
+   */
+  public long getContentLength() {
+    if (!hasBody()) {
+      return 0;
+    }
+    if (stream != null) {
+      return -1;
+    }
+    return file != null ? fileLength : body.length;
+  }
+
+  /**
+   * Closes the file of a file body, safe to call more than once
+   */
+  public void close() {
+    if (file != null) {
+      try {
+        file.close();
+      } catch (IOException e) {
+        // nothing we can do, the response is done anyway
+      }
+    }
+  }
+
+  /**
+   * Builds the status line and headers including Content-Length (or Transfer-Encoding) and
+   * Connection, responses without a body get neither of the first two
+   * @param keepAlive whether the connection stays open after this response
+   * @return the encoded head, ending with the empty line
+   */
+  public byte[] head(boolean keepAlive) {
+    StringBuilder builder = new StringBuilder(128);
+    builder.append("HTTP/1.1 ").append(status).append(' ').append(reason).append("\r\n");
+    for (Map.Entry<String, String> header : headers.entrySet()) {
+      builder.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+    }
+    if (!hasBody()) {
+      // the head is the whole response
+    } else if (stream == null) {
+      builder.append("Content-Length: ").append(getContentLength()).append("\r\n");
+    } else if (chunked) {
+      builder.append("Transfer-Encoding: chunked\r\n");
+    } else {
+      keepAlive = false; // the end of the connection ends the body
+    }
+    builder.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n");
+    builder.append("\r\n");
+    return builder.toString().getBytes(StandardCharsets.ISO_8859_1);
+  }
+
+  /**
+   * Writes the response to the stream, does not flush so pipelined responses can be
+   * sent together
+   * @param out output stream of the connection
+   * @param channel channel of the socket used for file bodies, if null the file is copied
+   *                through the stream in small blocks
+   * @param keepAlive whether the connection stays open after this response
+   * @return number of bytes written
+   */
+  public long writeTo(OutputStream out, WritableByteChannel channel, boolean keepAlive) throws IOException {
+    byte[] head = head(keepAlive);
+    out.write(head);
+    if (!hasBody()) {
+      close();
+      return head.length;
+    }
+    if (stream != null) {
+      ChunkedOutputStream chunks = new ChunkedOutputStream(ChunkedOutputStream.to(out), chunked);
+      try {
+        stream.writeBody(chunks);
+      } catch (IOException | RuntimeException e) {
+        // no last chunk, the client must not take the broken body for a complete one
+        chunks.abort();
+        throw e instanceof IOException ? (IOException) e : new IOException("Streamed body failed", e);
+      }
+      chunks.close();
+      return head.length + chunks.getBytesWritten();
+    }
+    if (file == null) {
+      out.write(body);
+      return head.length + body.length;
+    }
+    // the head has to be on the wire before the file bytes
+    out.flush();
+    try {
+      WritableByteChannel target = channel != null ? channel : Channels.newChannel(out);
+      long position = filePosition;
+      long end = filePosition + fileLength;
+      while (position < end) {
+        long sent = file.transferTo(position, end - position, target);
+        if (sent <= 0 && position >= file.size()) {
+          throw new IOException("File got shorter while it was sent");
+        }
+        position += sent;
+      }
+    } finally {
+      close();
+    }
+    return head.length + fileLength;
+  }
+
+  /**
+   * @return the full response as bytes, closing the connection afterwards (not for file or streamed bodies)
+   */
+  public byte[] toBytes() {
+    byte[] head = head(false);
+    byte[] body = getBody();
+    byte[] bytes = new byte[head.length + body.length];
+    System.arraycopy(head, 0, bytes, 0, head.length);
+    System.arraycopy(body, 0, bytes, head.length, body.length);
+    return bytes;
+  }
+}
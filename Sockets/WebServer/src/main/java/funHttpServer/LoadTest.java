@@ -0,0 +1,258 @@
+package funHttpServer;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Small load generator to compare the execution modes of the WebServer.
+ *
+ * Starts the given number of client threads at the same moment, every client sends
+ * its requests one after the other and measures how long it takes until the full
+ * response was read. At the end throughput and latency percentiles are printed.
+ * Without keep-alive every request opens a new connection, with keep-alive every
+ * client sends all of its requests on one connection. Requests the server turned away
+ * with 503 Service Unavailable are counted as rejected, their latency is not part of the
+ * percentiles.
+ *
+ * Example (server running with: gradle FunWebServer -Pmode=pooled):
+ *   gradle LoadTest -Pclients=1000 -Prequests=10 -Ppath=/multiply?num1=3&num2=4 -Pkeepalive=true
+ */
+class LoadTest {
+  public static void main(String args[]) throws InterruptedException {
+    String host = "localhost";
+    int port = 9000;
+    int clients = 1000;
+    int requests = 10;
+    String path = "/json";
+    boolean keepAlive = false;
+
+    try {
+      if (args.length > 0) host = args[0];
+      if (args.length > 1) port = Integer.parseInt(args[1]);
+      if (args.length > 2) clients = Integer.parseInt(args[2]);
+      if (args.length > 3) requests = Integer.parseInt(args[3]);
+      if (args.length > 4) path = args[4];
+      if (args.length > 5) keepAlive = Boolean.parseBoolean(args[5]);
+    } catch (NumberFormatException e) {
+      System.out.println("Usage: LoadTest [host] [port(int)] [clients(int)] [requests per client(int)] [path] [keepalive(bool)]");
+      System.exit(1);
+    }
+
+    run(host, port, clients, requests, path, keepAlive);
+  }
+
+  /**
+   * Runs one load test and prints the results
+   * @param host server host
+   * @param port server port
+   * @param clients number of concurrent clients
+   * @param requests number of requests every client sends
+   * @param path request path, e.g. /json
+   * @param keepAlive send all requests of a client on one connection
+   */
+  public static void run(String host, int port, int clients, int requests, String path, boolean keepAlive)
+      throws InterruptedException {
+    long[] latencies = new long[clients * requests];
+    AtomicInteger next = new AtomicInteger();
+    AtomicInteger errors = new AtomicInteger();
+    AtomicInteger rejected = new AtomicInteger();
+    CountDownLatch start = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(clients);
+    byte[] request = ("GET " + path + " HTTP/1.1\r\nHost: " + host + "\r\n"
+        + (keepAlive ? "" : "Connection: close\r\n") + "\r\n").getBytes();
+
+    for (int c = 0; c < clients; c++) {
+      Thread client = new Thread(() -> {
+        try {
+          start.await();
+          if (keepAlive) {
+            sendKeepAliveRequests(host, port, request, requests, latencies, next, errors, rejected);
+          } else {
+            for (int r = 0; r < requests; r++) {
+              long begin = System.nanoTime();
+              try {
+                if (sendRequest(host, port, request) == 503) {
+                  rejected.incrementAndGet();
+                } else {
+                  latencies[next.getAndIncrement()] = System.nanoTime() - begin;
+                }
+              } catch (IOException e) {
+                errors.incrementAndGet();
+              }
+            }
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } finally {
+          done.countDown();
+        }
+      });
+      client.setDaemon(true);
+      client.start();
+    }
+
+    long begin = System.nanoTime();
+    start.countDown();
+    done.await();
+    long elapsed = System.nanoTime() - begin;
+
+    int ok = next.get();
+    long[] sorted = Arrays.copyOf(latencies, ok);
+    Arrays.sort(sorted);
+
+    System.out.println("Clients: " + clients + ", requests per client: " + requests + ", path: " + path
+        + ", keep-alive: " + keepAlive);
+    System.out.println("Successful: " + ok + ", rejected (503): " + rejected.get() + ", errors: " + errors.get());
+    System.out.printf("Elapsed: %.2f s, throughput: %.1f req/s%n", elapsed / 1e9, ok / (elapsed / 1e9));
+    if (ok > 0) {
+      System.out.printf("Latency ms  p50: %.2f  p90: %.2f  p99: %.2f  max: %.2f%n",
+          percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99), sorted[ok - 1] / 1e6);
+    }
+  }
+
+  /**
+   * Sends one request on a new connection and reads the response until the server closes it
+   * @return the status code of the response
+   */
+  private static int sendRequest(String host, int port, byte[] request) throws IOException {
+    try (Socket sock = new Socket(host, port)) {
+      OutputStream out = sock.getOutputStream();
+      out.write(request);
+      out.flush();
+      InputStream in = new BufferedInputStream(sock.getInputStream());
+      int status = readStatus(in);
+      byte[] buffer = new byte[8192];
+      while (in.read(buffer) != -1) {
+        // drain the response
+      }
+      return status;
+    }
+  }
+
+  /**
+   * Reads the status line, e.g. HTTP/1.1 200 OK
+   * @return the status code
+   */
+  private static int readStatus(InputStream in) throws IOException {
+    StringBuilder line = new StringBuilder();
+    int b;
+    while ((b = in.read()) != '\n') {
+      if (b == -1) {
+        throw new IOException("Connection closed before the status line");
+      }
+      line.append((char) b);
+    }
+    try {
+      return Integer.parseInt(line.substring(9, 12));
+    } catch (RuntimeException e) {
+      throw new IOException("Bad status line: " + line.toString().trim());
+    }
+  }
+
+  /**
+   * Sends all requests on one connection, the end of every response is found through its
+   * Content-Length header. If the server closes the connection a new one is opened.
+   */
+  private static void sendKeepAliveRequests(String host, int port, byte[] request, int requests,
+      long[] latencies, AtomicInteger next, AtomicInteger errors, AtomicInteger rejected) {
+    Socket sock = null;
+    InputStream in = null;
+    try {
+      for (int r = 0; r < requests; r++) {
+        long begin = System.nanoTime();
+        try {
+          if (sock == null) {
+            sock = new Socket(host, port);
+            in = new BufferedInputStream(sock.getInputStream());
+          }
+          OutputStream out = sock.getOutputStream();
+          out.write(request);
+          out.flush();
+          int status = readStatus(in);
+          if (!readResponse(in)) {
+            sock.close();
+            sock = null;
+          }
+          if (status == 503) {
+            rejected.incrementAndGet();
+          } else {
+            latencies[next.getAndIncrement()] = System.nanoTime() - begin;
+          }
+        } catch (IOException e) {
+          errors.incrementAndGet();
+          sock = null;
+        }
+      }
+    } finally {
+      if (sock != null) {
+        try {
+          sock.close();
+        } catch (IOException e) {
+          // ignore, the test is done
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads the headers and body of one response using its Content-Length or its chunks
+   * @return true if the server keeps the connection open
+   */
+  private static boolean readResponse(InputStream in) throws IOException {
+    int contentLength = 0;
+    boolean chunked = false;
+    boolean keepAlive = true;
+    String header;
+    while (!(header = readLine(in).toLowerCase()).isEmpty()) {
+      if (header.startsWith("content-length:")) {
+        contentLength = Integer.parseInt(header.substring(15).trim());
+      } else if (header.startsWith("transfer-encoding:") && header.contains("chunked")) {
+        chunked = true;
+      } else if (header.startsWith("connection:") && header.contains("close")) {
+        keepAlive = false;
+      }
+    }
+    if (!chunked) {
+      skip(in, contentLength);
+      return keepAlive;
+    }
+    int size;
+    while ((size = Integer.parseInt(readLine(in).trim(), 16)) > 0) {
+      skip(in, size);
+      readLine(in); // CRLF after the chunk
+    }
+    readLine(in); // empty line after the last chunk
+    return keepAlive;
+  }
+
+  private static String readLine(InputStream in) throws IOException {
+    StringBuilder line = new StringBuilder();
+    int b;
+    while ((b = in.read()) != '\n') {
+      if (b == -1) {
+        throw new IOException("Connection closed inside of the response");
+      }
+      if (b != '\r') {
+        line.append((char) b);
+      }
+    }
+    return line.toString();
+  }
+
+  private static void skip(InputStream in, int length) throws IOException {
+    if (in.readNBytes(length).length < length) {
+      throw new IOException("Connection closed inside of the response body");
+    }
+  }
+
+  private static double percentile(long[] sorted, int p) {
+    int index = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+    return sorted[Math.max(index, 0)] / 1e6;
+  }
+}
@@ -0,0 +1,282 @@
+package funHttpServer;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Counters and latency histograms of the server, shown by the /metrics route (in the
+ * Prometheus text format) and in JConsole/VisualVM as MBeans under funHttpServer.
+ *
+ * Counters are LongAdders, which keep one cell per contending thread instead of one
+ * shared value, so workers and event loops count without fighting over a cache line.
+ * Every route has histograms (see Histogram) for the three phases of a request: parse
+ * (bytes to HttpRequest), handle (the route) and write (head and body to the socket).
+ * Nothing is locked or printed while a request is served.
+ *
+ * Other parts of the server (caches, GitHub client, buffer pool, bulkheads) add their own
+ * counters as gauges, which are read only when the metrics are shown.
+ */
+class Metrics implements MetricsMXBean {
+  private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+  /**
+   * Metrics of one route, requests that match no route are counted as route "unmatched"
+   */
+  static final class Route implements RouteMetricsMXBean {
+    final String name;
+    final Histogram parse = new Histogram();
+    final Histogram handle = new Histogram();
+    final Histogram write = new Histogram();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+
+    private Route(String name) {
+      this.name = name;
+    }
+
+    /**
+     * Counts a response of the route
+     * @param status status code of the response
+     * @param nanos time the route took
+     */
+    void handled(int status, long nanos) {
+      requests.increment();
+      if (status >= 500) {
+        errors.increment();
+      }
+      handle.record(nanos);
+    }
+
+    @Override
+    public long getRequests() {
+      return requests.sum();
+    }
+
+    @Override
+    public long getErrors() {
+      return errors.sum();
+    }
+
+    @Override
+    public Map<String, Long> getParse() {
+      return summary(parse);
+    }
+
+    @Override
+    public Map<String, Long> getHandle() {
+      return summary(handle);
+    }
+
+    @Override
+    public Map<String, Long> getWrite() {
+      return summary(write);
+    }
+
+    private static Map<String, Long> summary(Histogram histogram) {
+      Map<String, Long> summary = new LinkedHashMap<>();
+      summary.put("count", histogram.getCount());
+      summary.put("mean", Math.round(histogram.getMean() / 1000));
+      summary.put("p50", histogram.getPercentile(50) / 1000);
+      summary.put("p90", histogram.getPercentile(90) / 1000);
+      summary.put("p99", histogram.getPercentile(99) / 1000);
+      summary.put("p999", histogram.getPercentile(99.9) / 1000);
+      summary.put("max", histogram.getMax() / 1000);
+      return summary;
+    }
+  }
+
+  private final LongAdder bytesIn = new LongAdder();
+  private final LongAdder bytesOut = new LongAdder();
+  private final LongAdder connectionsOpened = new LongAdder();
+  private final LongAdder connectionsClosed = new LongAdder();
+  private final Map<String, Route> routes = new ConcurrentHashMap<>();
+  private final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+
+  /** requests that matched no route */
+  final Route unmatched = route("unmatched");
+
+  /**
+   * Registers the server MBean, a second server in the same JVM shows up with the
+   * metrics of the first one
+   */
+  Metrics() {
+    register("funHttpServer:type=Server", this, MetricsMXBean.class);
+  }
+
+  /**
+   * @param name name of the route, e.g. "json"
+   * @return the metrics of the route, created (and registered as MBean) on first use
+   */
+  public Route route(String name) {
+    return routes.computeIfAbsent(name, key -> {
+      Route route = new Route(key);
+      register("funHttpServer:type=Route,name=" + key, route, RouteMetricsMXBean.class);
+      return route;
+    });
+  }
+
+  /**
+   * Adds a value that is read whenever the metrics are shown
+   * @param name name in the Prometheus style, e.g. static_cache_hits
+   */
+  public void gauge(String name, LongSupplier value) {
+    gauges.put(name, value);
+  }
+
+  /**
+   * Shows the saturation of a bulkhead, as gauges labeled with its name and as MBean
+   * funHttpServer:type=Bulkhead,name=NAME
+   */
+  public void bulkhead(Bulkhead bulkhead) {
+    String label = "{bulkhead=\"" + bulkhead.getName() + "\"}";
+    gauge("bulkhead_threads" + label, bulkhead::getThreads);
+    gauge("bulkhead_active" + label, bulkhead::getActive);
+    gauge("bulkhead_queue_capacity" + label, bulkhead::getQueueCapacity);
+    gauge("bulkhead_queued" + label, bulkhead::getQueued);
+    gauge("bulkhead_completed_total" + label, bulkhead::getCompleted);
+    gauge("bulkhead_rejected_total" + label, bulkhead::getRejected);
+    gauge("bulkhead_timeouts_total" + label, bulkhead::getTimeouts);
+    register("funHttpServer:type=Bulkhead,name=" + bulkhead.getName(), bulkhead, BulkheadMXBean.class);
+  }
+
+  public void bytesIn(long bytes) {
+    bytesIn.add(bytes);
+  }
+
+  public void bytesOut(long bytes) {
+    bytesOut.add(bytes);
+  }
+
+  public void connectionOpened() {
+    connectionsOpened.increment();
+  }
+
+  public void connectionClosed() {
+    connectionsClosed.increment();
+  }
+
+  @Override
+  public long getRequests() {
+    long requests = 0;
+    for (Route route : routes.values()) {
+      requests += route.getRequests();
+    }
+    return requests;
+  }
+
+  @Override
+  public long getErrors() {
+    long errors = 0;
+    for (Route route : routes.values()) {
+      errors += route.getErrors();
+    }
+    return errors;
+  }
+
+  @Override
+  public long getBytesIn() {
+    return bytesIn.sum();
+  }
+
+  @Override
+  public long getBytesOut() {
+    return bytesOut.sum();
+  }
+
+  @Override
+  public long getOpenConnections() {
+    // read closed first, so a connection closed in between is not counted as -1
+    long closed = connectionsClosed.sum();
+    return connectionsOpened.sum() - closed;
+  }
+
+  @Override
+  public Map<String, Long> getGauges() {
+    Map<String, Long> values = new LinkedHashMap<>();
+    for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+      values.put(gauge.getKey(), gauge.getValue().getAsLong());
+    }
+    return values;
+  }
+
+  /**
+   * @return all metrics in the Prometheus text format, durations in seconds
+   */
+  public String toText() {
+    StringBuilder text = new StringBuilder(4096);
+    text.append("# TYPE http_requests_total counter\n");
+    text.append("http_requests_total ").append(getRequests()).append('\n');
+    text.append("# TYPE http_errors_total counter\n");
+    text.append("http_errors_total ").append(getErrors()).append('\n');
+    text.append("# TYPE http_received_bytes_total counter\n");
+    text.append("http_received_bytes_total ").append(getBytesIn()).append('\n');
+    text.append("# TYPE http_sent_bytes_total counter\n");
+    text.append("http_sent_bytes_total ").append(getBytesOut()).append('\n');
+    text.append("# TYPE http_open_connections gauge\n");
+    text.append("http_open_connections ").append(getOpenConnections()).append('\n');
+
+    Map<String, Route> sorted = new TreeMap<>(routes);
+    text.append("# TYPE http_route_requests_total counter\n");
+    for (Route route : sorted.values()) {
+      text.append("http_route_requests_total{route=\"").append(route.name).append("\"} ")
+          .append(route.getRequests()).append('\n');
+    }
+    text.append("# TYPE http_route_errors_total counter\n");
+    for (Route route : sorted.values()) {
+      text.append("http_route_errors_total{route=\"").append(route.name).append("\"} ")
+          .append(route.getErrors()).append('\n');
+    }
+    text.append("# TYPE http_route_seconds summary\n");
+    for (Route route : sorted.values()) {
+      appendSummary(text, route.name, "parse", route.parse);
+      appendSummary(text, route.name, "handle", route.handle);
+      appendSummary(text, route.name, "write", route.write);
+    }
+
+    for (Map.Entry<String, Long> gauge : getGauges().entrySet()) {
+      text.append(gauge.getKey()).append(' ').append(gauge.getValue()).append('\n');
+    }
+    return text.toString();
+  }
+
+  private static void appendSummary(StringBuilder text, String route, String phase, Histogram histogram) {
+    if (histogram.getCount() == 0) {
+      return;
+    }
+    String labels = "route=\"" + route + "\",phase=\"" + phase + "\"";
+    for (double quantile : QUANTILES) {
+      text.append("http_route_seconds{").append(labels).append(",quantile=\"").append(quantile).append("\"} ")
+          .append(seconds(histogram.getPercentile(quantile * 100))).append('\n');
+    }
+    text.append("http_route_seconds_max{").append(labels).append("} ").append(seconds(histogram.getMax())).append('\n');
+    text.append("http_route_seconds_sum{").append(labels).append("} ").append(seconds(histogram.getSum())).append('\n');
+    text.append("http_route_seconds_count{").append(labels).append("} ").append(histogram.getCount()).append('\n');
+  }
+
+  private static String seconds(long nanos) {
+    return String.format(Locale.ROOT, "%.6f", nanos / 1e9);
+  }
+
+  private static <T> void register(String name, T bean, Class<T> type) {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      server.registerMBean(new StandardMBean(bean, type, true), new ObjectName(name));
+    } catch (InstanceAlreadyExistsException e) {
+      // another server in this JVM registered first
+    } catch (JMException e) {
+      System.out.println("Cannot register MBean " + name + ": " + e.getMessage());
+    }
+  }
+}
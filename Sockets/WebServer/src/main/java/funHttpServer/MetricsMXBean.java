@@ -0,0 +1,23 @@
+package funHttpServer;
+
+import java.util.Map;
+
+/**
+ * Server wide metrics as seen in JConsole or VisualVM under funHttpServer:type=Server
+ * (see Metrics). Has to be public for the JMX introspection.
+ */
+public interface MetricsMXBean {
+  long getRequests();
+
+  /** responses with a 5xx status */
+  long getErrors();
+
+  long getBytesIn();
+
+  long getBytesOut();
+
+  long getOpenConnections();
+
+  /** counters of the caches, the GitHub client and the buffer pool by name */
+  Map<String, Long> getGauges();
+}
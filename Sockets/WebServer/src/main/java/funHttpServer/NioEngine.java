@@ -0,0 +1,458 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Non-blocking server engine built on ServerSocketChannel and Selector.
+ *
+ * One acceptor thread per server socket (see WebServer.listen) accepts connections and
+ * hands them round robin to N event loops (one per core). Every event loop owns a Selector and does all reads and writes of its
+ * connections, so an idle keep-alive connection costs a SelectionKey and a small buffer
+ * instead of a blocked thread. Parsed requests are run by the same route code as the
+ * blocking modes (WebServer.handle) on a worker pool, since routes like /github block.
+ *
+ * One request per connection is handled at a time. Pipelined requests stay in the
+ * connection's decoder until the response of the previous one was written, so responses
+ * always go out in order.
+ *
+ * Streamed bodies are written by the worker into pooled chunks that the event loop sends.
+ * At most MAX_QUEUED_CHUNKS chunks of a response wait for the socket, after that the
+ * worker waits, so a slow client cannot make the server buffer a whole large body.
+ */
+class NioEngine {
+  private static final AsyncLogger LOG = AsyncLogger.LOG;
+
+  /** chunks of a streamed body that may wait for the socket before the worker has to wait */
+  static final int MAX_QUEUED_CHUNKS = 4;
+
+  private final WebServer server;
+  private final Metrics metrics;
+  private final ExecutorService workers;
+  private final EventLoop[] loops;
+
+  /**
+   * @param server the web server whose routes handle the requests
+   * @param loops number of event loop threads
+   * @param workers pool that runs the route handlers
+   */
+  NioEngine(WebServer server, int loops, ExecutorService workers) throws IOException {
+    this.server = server;
+    this.metrics = server.getMetrics();
+    this.workers = workers;
+    this.loops = new EventLoop[loops];
+    for (int i = 0; i < loops; i++) {
+      this.loops[i] = new EventLoop(i);
+    }
+  }
+
+  /**
+   * Starts the event loops and accepts connections until the server sockets are closed,
+   * the first socket on the calling thread, every other one on an acceptor thread of its own
+   * @param listeners bound server sockets, e.g. several on one port with SO_REUSEPORT
+   */
+  public void run(ServerSocketChannel[] listeners) throws IOException {
+    for (EventLoop loop : loops) {
+      loop.start();
+    }
+    for (int i = 1; i < listeners.length; i++) {
+      ServerSocketChannel listener = listeners[i];
+      int first = i % loops.length;
+      Thread acceptor = new Thread(() -> {
+        try {
+          accept(listener, first);
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }, "nio-acceptor-" + i);
+      acceptor.setDaemon(true);
+      acceptor.start();
+    }
+    accept(listeners[0], 0);
+  }
+
+  /**
+   * Accepts connections and hands them round robin to the event loops
+   * @param listener server socket of this acceptor
+   * @param next event loop of the first connection, so the acceptors do not all start
+   *             with the same loop
+   */
+  private void accept(ServerSocketChannel listener, int next) throws IOException {
+    while (listener.isOpen()) {
+      SocketChannel channel = listener.accept(); // blocking, the acceptor has nothing else to do
+      channel.configureBlocking(false);
+      channel.socket().setTcpNoDelay(true);
+      loops[next].register(channel);
+      next = (next + 1) % loops.length;
+    }
+  }
+
+  /**
+   * State of one connection, only touched by its event loop (the worker only reads the request)
+   */
+  private static class Connection {
+    final SocketChannel channel;
+    final RequestDecoder decoder = new RequestDecoder();
+    final Queue<ByteBuffer> output = new ArrayDeque<>();
+    HttpResponse fileResponse = null; // response whose file body is sent after the output queue
+    long filePosition = 0;
+    long fileEnd = 0;
+    final Queue<ByteBuffer> chunks = new ArrayDeque<>(); // pooled chunks of a streamed body
+    Semaphore chunkCredits = null; // set while a body is streamed
+    boolean streamDone = false; // the worker handed over the last chunk
+    long lastActive = System.currentTimeMillis();
+    int served = 0;
+    boolean busy = false; // a worker handles a request of this connection
+    boolean closeAfterWrite = false;
+    long parseTime = 0; // time spent parsing the current request
+    Metrics.Route route = null; // route of the response being written
+    long writeStart = 0;
+
+    Connection(SocketChannel channel) {
+      this.channel = channel;
+    }
+  }
+
+  /**
+   * One selector thread with its connections
+   */
+  private class EventLoop extends Thread {
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(16 * 1024);
+
+    EventLoop(int id) throws IOException {
+      super("nio-loop-" + id);
+      setDaemon(true);
+      selector = Selector.open();
+    }
+
+    /**
+     * Called by the acceptor, the channel is registered on the loop's own thread
+     */
+    void register(SocketChannel channel) {
+      metrics.connectionOpened();
+      execute(() -> {
+        try {
+          channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+        } catch (ClosedChannelException e) {
+          metrics.connectionClosed();
+          // client was gone before we got to it
+        }
+      });
+    }
+
+    /**
+     * Runs the task on the loop thread and wakes up the selector
+     */
+    void execute(Runnable task) {
+      tasks.add(task);
+      selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+      long lastIdleCheck = System.currentTimeMillis();
+      while (true) {
+        try {
+          selector.select(1000);
+          Runnable task;
+          while ((task = tasks.poll()) != null) {
+            task.run();
+          }
+
+          Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+          while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            Connection conn = (Connection) key.attachment();
+            try {
+              if (key.isValid() && key.isReadable()) {
+                read(key, conn);
+              }
+              if (key.isValid() && key.isWritable()) {
+                write(key, conn);
+              }
+            } catch (IOException e) {
+              close(key, conn);
+            }
+          }
+
+          long now = System.currentTimeMillis();
+          if (now - lastIdleCheck >= 1000) {
+            closeIdle(now);
+            lastIdleCheck = now;
+          }
+        } catch (IOException e) {
+          LOG.error("Event loop failed", e);
+        }
+      }
+    }
+
+    private void read(SelectionKey key, Connection conn) throws IOException {
+      readBuffer.clear();
+      int read = conn.channel.read(readBuffer);
+      if (read == -1) {
+        close(key, conn);
+        return;
+      }
+      metrics.bytesIn(read);
+      conn.lastActive = System.currentTimeMillis();
+      readBuffer.flip();
+      conn.decoder.feed(readBuffer);
+      dispatch(key, conn);
+    }
+
+    /**
+     * Hands the next complete request of the connection to a worker
+     */
+    private void dispatch(SelectionKey key, Connection conn) {
+      if (conn.busy || conn.closeAfterWrite) {
+        return;
+      }
+      HttpRequest request;
+      long parseStart = System.nanoTime();
+      try {
+        request = conn.decoder.next();
+      } catch (HttpException e) {
+        send(key, conn, server.badRequest(e), false);
+        return;
+      } catch (IOException e) {
+        close(key, conn);
+        return;
+      } finally {
+        conn.parseTime += System.nanoTime() - parseStart;
+      }
+      if (request == null) {
+        return; // wait for more bytes
+      }
+
+      conn.busy = true;
+      conn.served++;
+      boolean keepAlive = request.isKeepAlive() && conn.served < WebServer.MAX_KEEP_ALIVE_REQUESTS;
+      // stop reading while the worker runs, the client has to wait for the response anyway
+      key.interestOps(0);
+      long received = System.nanoTime();
+      try {
+        // routes that wait for an upstream (AsyncHandler) give the worker back right away
+        workers.execute(() -> server.handleAsync(request, received).thenAccept(response -> {
+          boolean keep = keepAlive && response.hasDelimitedBody();
+          if (response.hasStreamBody()) {
+            // the body writer may take long, it runs on a worker and not on the thread that
+            // completed the response (e.g. one of the HttpClient)
+            try {
+              workers.execute(() -> stream(key, conn, response, keep));
+            } catch (RejectedExecutionException e) {
+              // the request was admitted already, rather stream here than drop it
+              stream(key, conn, response, keep);
+            }
+          } else {
+            execute(() -> {
+              conn.busy = false;
+              send(key, conn, response, keep);
+            });
+          }
+        }));
+      } catch (RejectedExecutionException e) {
+        // every worker is busy and the queue is full, answer right away instead of queueing
+        conn.busy = false;
+        send(key, conn, server.rejected(), keepAlive);
+      }
+    }
+
+    /**
+     * Runs the body writer of a streamed response on the worker thread, the chunks are
+     * handed to the event loop
+     */
+    private void stream(SelectionKey key, Connection conn, HttpResponse response, boolean keepAlive) {
+      Semaphore credits = new Semaphore(MAX_QUEUED_CHUNKS);
+      execute(() -> {
+        conn.busy = false;
+        conn.chunkCredits = credits;
+        conn.streamDone = false;
+        send(key, conn, response, keepAlive);
+      });
+      ChunkedOutputStream out = new ChunkedOutputStream((buffer, start, end) -> {
+        // waits while the client has not taken the earlier chunks yet
+        credits.acquireUninterruptibly();
+        if (!conn.channel.isOpen()) {
+          ChunkedOutputStream.POOL.release(buffer);
+          throw new IOException("Connection closed while the body was streamed");
+        }
+        execute(() -> queueChunk(key, conn, ByteBuffer.wrap(buffer, start, end - start)));
+      }, response.isChunked());
+      try {
+        response.getBodyWriter().writeBody(out);
+        out.close();
+        execute(() -> {
+          conn.streamDone = true;
+          flush(key, conn);
+        });
+      } catch (IOException | RuntimeException e) {
+        // the body is broken, closing the connection is the only way to tell the client
+        out.abort();
+        if (!(e instanceof IOException)) {
+          LOG.error("Streamed body failed", e);
+        }
+        execute(() -> close(key, conn));
+      }
+    }
+
+    private void queueChunk(SelectionKey key, Connection conn, ByteBuffer chunk) {
+      if (!key.isValid()) {
+        ChunkedOutputStream.POOL.release(chunk.array());
+        conn.chunkCredits.release();
+        return;
+      }
+      conn.chunks.add(chunk);
+      flush(key, conn);
+    }
+
+    private void flush(SelectionKey key, Connection conn) {
+      try {
+        write(key, conn);
+      } catch (IOException e) {
+        close(key, conn);
+      }
+    }
+
+    /**
+     * Queues the response and tries to write it right away
+     */
+    private void send(SelectionKey key, Connection conn, HttpResponse response, boolean keepAlive) {
+      if (!key.isValid()) {
+        response.close(); // connection was closed while the worker ran
+        return;
+      }
+      conn.route = response.getRoute();
+      conn.writeStart = System.nanoTime();
+      conn.output.add(ByteBuffer.wrap(response.head(keepAlive)));
+      if (response.hasFileBody()) {
+        conn.fileResponse = response;
+        conn.filePosition = response.getFilePosition();
+        conn.fileEnd = response.getFilePosition() + response.getContentLength();
+      } else if (!response.hasStreamBody()) {
+        response.close(); // a file body of a response without body, e.g. 304
+        conn.output.add(ByteBuffer.wrap(response.getBody()));
+      }
+      conn.closeAfterWrite = !keepAlive;
+      flush(key, conn);
+    }
+
+    private void write(SelectionKey key, Connection conn) throws IOException {
+      while (!conn.output.isEmpty()) {
+        ByteBuffer buffer = conn.output.peek();
+        metrics.bytesOut(conn.channel.write(buffer));
+        if (buffer.hasRemaining()) {
+          // socket buffer is full, continue when the channel is writable again
+          key.interestOps(SelectionKey.OP_WRITE);
+          return;
+        }
+        conn.output.poll();
+      }
+      if (conn.fileResponse != null) {
+        // zero-copy: the kernel moves the file bytes to the socket as far as the socket buffer allows
+        while (conn.filePosition < conn.fileEnd) {
+          long sent = conn.fileResponse.getFile().transferTo(conn.filePosition, conn.fileEnd - conn.filePosition, conn.channel);
+          if (sent == 0 && conn.filePosition >= conn.fileResponse.getFile().size()) {
+            // the file got shorter while it was sent, the client cannot get the promised length
+            close(key, conn);
+            return;
+          }
+          if (sent == 0) {
+            key.interestOps(SelectionKey.OP_WRITE);
+            return;
+          }
+          metrics.bytesOut(sent);
+          conn.filePosition += sent;
+        }
+        conn.fileResponse.close();
+        conn.fileResponse = null;
+      }
+      if (conn.chunkCredits != null) {
+        while (!conn.chunks.isEmpty()) {
+          ByteBuffer chunk = conn.chunks.peek();
+          metrics.bytesOut(conn.channel.write(chunk));
+          if (chunk.hasRemaining()) {
+            key.interestOps(SelectionKey.OP_WRITE);
+            return;
+          }
+          conn.chunks.poll();
+          ChunkedOutputStream.POOL.release(chunk.array());
+          conn.chunkCredits.release(); // the worker may hand over the next chunk
+        }
+        if (!conn.streamDone) {
+          key.interestOps(0); // wait for the worker
+          return;
+        }
+        conn.chunkCredits = null;
+      }
+      if (conn.route != null) {
+        // the whole response is on the wire
+        conn.route.parse.record(conn.parseTime);
+        conn.route.write.record(System.nanoTime() - conn.writeStart);
+        conn.route = null;
+        conn.parseTime = 0;
+      }
+      conn.lastActive = System.currentTimeMillis();
+      if (conn.closeAfterWrite) {
+        close(key, conn);
+        return;
+      }
+      key.interestOps(SelectionKey.OP_READ);
+      // a pipelined request may already be waiting in the decoder
+      if (conn.decoder.hasBufferedBytes()) {
+        dispatch(key, conn);
+      }
+    }
+
+    /**
+     * Closes keep-alive connections that were idle for longer than the keep-alive timeout
+     */
+    private void closeIdle(long now) {
+      for (SelectionKey key : selector.keys()) {
+        Connection conn = (Connection) key.attachment();
+        if (conn != null && !conn.busy && conn.output.isEmpty() && conn.fileResponse == null && conn.chunkCredits == null
+            && now - conn.lastActive > WebServer.KEEP_ALIVE_TIMEOUT) {
+          close(key, conn);
+        }
+      }
+    }
+
+    private void close(SelectionKey key, Connection conn) {
+      if (conn.channel.isOpen()) {
+        metrics.connectionClosed();
+      }
+      key.cancel();
+      if (conn.fileResponse != null) {
+        conn.fileResponse.close();
+        conn.fileResponse = null;
+      }
+      try {
+        conn.channel.close();
+      } catch (IOException e) {
+        // nothing left to do
+      }
+      if (conn.chunkCredits != null) {
+        for (ByteBuffer chunk : conn.chunks) {
+          ChunkedOutputStream.POOL.release(chunk.array());
+        }
+        conn.chunks.clear();
+        // a worker waiting for credits sees the closed channel and stops
+        conn.chunkCredits.release(MAX_QUEUED_CHUNKS);
+      }
+    }
+  }
+}
@@ -0,0 +1,108 @@
+package funHttpServer;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Microbenchmark for request parsing.
+ *
+ * Parses the same multiply request over and over, once the old way (BufferedReader over
+ * the socket stream, substring for the path, splitQuery for the parameters, a map for the
+ * headers) and once with the RequestDecoder that parses in place into a reused
+ * HttpRequest. Prints the time and the bytes allocated per request, the allocation is
+ * measured with the per-thread counter of the HotSpot ThreadMXBean.
+ *
+ *   gradle ParserBenchmark -Piterations=2000000
+ */
+class ParserBenchmark {
+  private static final byte[] REQUEST = ("GET /multiply?num1=3&num2=4 HTTP/1.1\r\n"
+      + "Host: localhost:9000\r\n"
+      + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:109.0) Gecko/20100101 Firefox/119.0\r\n"
+      + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"
+      + "Accept-Language: en-US,en;q=0.5\r\n"
+      + "Accept-Encoding: gzip, deflate, br\r\n"
+      + "Connection: keep-alive\r\n"
+      + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+  private static final Router ROUTER = new Router()
+      .addExact("", request -> null)
+      .addExact("multiply", request -> null)
+      .addPrefix("file", request -> null);
+
+  public static void main(String args[]) throws IOException {
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+
+    RequestDecoder decoder = new RequestDecoder();
+    ByteBuffer wire = ByteBuffer.wrap(REQUEST);
+
+    System.out.println("Request: " + REQUEST.length + " bytes, " + iterations + " iterations");
+    report("old: BufferedReader + splitQuery", iterations, () -> parseOld());
+    report("new: RequestDecoder (in place)", iterations, () -> parseNew(decoder, wire));
+  }
+
+  private interface Parse {
+    int run() throws IOException;
+  }
+
+  private static void report(String name, int iterations, Parse parse) throws IOException {
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long thread = Thread.currentThread().getId();
+    int sum = 0;
+    for (int i = 0; i < iterations / 4; i++) { // warm-up so the JIT compiled the code
+      sum += parse.run();
+    }
+    long allocated = threads.getThreadAllocatedBytes(thread);
+    long begin = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      sum += parse.run();
+    }
+    long elapsed = System.nanoTime() - begin;
+    allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+    System.out.printf("%-35s %8.1f ns/request %10.1f bytes allocated/request%n",
+        name, (double) elapsed / iterations, (double) allocated / iterations);
+    if (sum == -1) {
+      System.out.println(); // keeps the JIT from removing the loop
+    }
+  }
+
+  /**
+   * What the server did before: read lines as Strings, split them, decode the query into a map
+   */
+  private static int parseOld() throws IOException {
+    BufferedReader in = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(REQUEST), StandardCharsets.UTF_8));
+    String line = in.readLine();
+    int firstSpace = line.indexOf(' ');
+    int secondSpace = line.indexOf(' ', firstSpace + 1);
+    String path = line.substring(firstSpace + 2, secondSpace);
+    Map<String, String> headers = new LinkedHashMap<>();
+    while (!(line = in.readLine()).isEmpty()) {
+      int colon = line.indexOf(':');
+      headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+    }
+    int question = path.indexOf('?');
+    Handler handler = ROUTER.find(path);
+    Map<String, String> query = WebServer.splitQuery(path.substring(question + 1));
+    boolean keepAlive = !"close".equalsIgnoreCase(headers.get("connection"));
+    return query.get("num1").length() + query.get("num2").length() + (keepAlive ? 1 : 0) + (handler != null ? 1 : 0);
+  }
+
+  /**
+   * The server now: bytes go into the decoder, route and parameters are read from the buffer
+   */
+  private static int parseNew(RequestDecoder decoder, ByteBuffer wire) throws IOException {
+    wire.rewind();
+    decoder.feed(wire);
+    HttpRequest request = decoder.next();
+    Handler handler = ROUTER.find(request);
+    // the two parameters are compared in place, only their values become Strings
+    return request.getParameter("num1").length() + request.getParameter("num2").length()
+        + (request.isKeepAlive() ? 1 : 0) + (handler != null ? 1 : 0);
+  }
+}
@@ -0,0 +1,147 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Incremental request parser, used by the blocking connections and the non-blocking engine.
+ *
+ * Received bytes (often only part of a request, sometimes several pipelined requests at
+ * once) are collected in one buffer per connection. The decoder looks for the end of the
+ * header without rescanning bytes it already looked at, parses it in place into the one
+ * HttpRequest of the connection and then waits for the body given by Content-Length.
+ * Once the buffer is big enough for the requests of a connection, decoding a request
+ * does not allocate anything.
+ *
+ * The returned request points into the buffer, so the caller must be done with it before
+ * the next fill or feed.
+ */
+class RequestDecoder {
+  /** largest header block we accept */
+  static final int MAX_HEAD_LENGTH = 4 * HttpRequest.MAX_LINE_LENGTH;
+
+  private byte[] buffer = new byte[1024];
+  private int start = 0; // first byte of the current request
+  private int end = 0; // end of the received bytes
+  private int scan = 0; // bytes before this position are known to not end the header
+  private final HttpRequest request = new HttpRequest();
+  private boolean headParsed = false; // request holds the head while we wait for the body
+  private int bodyStart = 0;
+
+  /**
+   * Adds the received bytes, the buffer is read until it has no bytes remaining
+   * @param in buffer in read mode
+   */
+  public void feed(ByteBuffer in) {
+    int length = in.remaining();
+    makeRoom(length);
+    in.get(buffer, end, length);
+    end += length;
+  }
+
+  /**
+   * Reads whatever the stream has (at least one byte) into the buffer, blocks until then
+   * @param in input stream of the connection, no need to buffer it
+   * @return number of bytes read or -1 at the end of the stream
+   */
+  public int fill(InputStream in) throws IOException {
+    makeRoom(1024);
+    int read = in.read(buffer, end, buffer.length - end);
+    if (read > 0) {
+      end += read;
+    }
+    return read;
+  }
+
+  /**
+   * Makes sure there is space for the given number of bytes behind the received ones
+   */
+  private void makeRoom(int length) {
+    if (end + length <= buffer.length) {
+      return;
+    }
+    // move the unconsumed bytes to the front first, grow only if that is not enough
+    int used = end - start;
+    if (used + length > buffer.length) {
+      buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, used + length));
+    }
+    System.arraycopy(buffer, start, buffer, 0, used);
+    end = used;
+    start = 0;
+    // the parsed head points to the old positions, parse it again
+    headParsed = false;
+    scan = 0;
+  }
+
+  /**
+   * Takes the next complete request out of the received bytes
+   * @return the request (the same object every time) or null if more bytes are needed
+   * @throws HttpException if the request is malformed
+   */
+  public HttpRequest next() throws IOException {
+    if (!headParsed) {
+      int headEnd = findHeadEnd(buffer, Math.max(scan, start), end);
+      if (headEnd < 0) {
+        // the last two bytes may be the beginning of the empty line, look at them again
+        scan = Math.max(start, end - 2);
+        if (end - start > MAX_HEAD_LENGTH) {
+          throw new HttpException(431, "Request Header Fields Too Large", "Header longer than " + MAX_HEAD_LENGTH);
+        }
+        return null;
+      }
+      if (!request.parseHead(buffer, start, headEnd)) {
+        // only empty lines, drop them and look at what follows
+        start = headEnd;
+        scan = headEnd;
+        return next();
+      }
+      headParsed = true;
+      bodyStart = headEnd;
+    }
+
+    int length = request.getContentLength();
+    if (end - bodyStart < length) {
+      return null;
+    }
+    request.setBody(bodyStart, length);
+    headParsed = false;
+    start = bodyStart + length;
+    scan = start;
+    if (start == end) {
+      // nothing pipelined behind this request, start over at the front of the buffer
+      start = 0;
+      end = 0;
+      scan = 0;
+    }
+    return request;
+  }
+
+  /**
+   * @return true if there are received bytes that do not belong to a returned request yet
+   */
+  public boolean hasBufferedBytes() {
+    return end > start;
+  }
+
+  /**
+   * Looks for the empty line (\n\n or \n\r\n) that ends the header
+   * @return the position behind the empty line or -1
+   */
+  static int findHeadEnd(byte[] buffer, int from, int end) {
+    for (int i = from; i < end; i++) {
+      if (buffer[i] != '\n') {
+        continue;
+      }
+      // the header may start with empty lines that parseHead skips, those are no end
+      if (i + 1 < end && buffer[i + 1] == '\n') {
+        return i + 2;
+      }
+      if (i + 2 < end && buffer[i + 1] == '\r' && buffer[i + 2] == '\n') {
+        return i + 3;
+      }
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,569 @@
+package funHttpServer;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reverse proxy that spreads the requests of its clients over several WebServer instances
+ * (backends), e.g. one JVM per core on one machine.
+ *
+ * Every client connection is served by a thread of a pool, like the pooled mode of the
+ * WebServer. For every request the proxy picks a backend (see Balance), takes an idle
+ * keep-alive connection to it from the backend's pool or connects, sends the request and
+ * passes the response on while it arrives, so large and streamed bodies are never held in
+ * memory. A connection the backend had closed while it was idle is replaced by a new one.
+ * A request that got no answer is tried on another backend once, if it is idempotent or
+ * never reached a backend; otherwise the client gets 502 Bad Gateway (504 after a timeout).
+ *
+ * Backends that fail are ejected for a while (see Backend). Requests, failures, ejections
+ * and the latency of every backend are at /proxy/metrics.
+ *
+ *   gradle ReverseProxy -Pport=8080 -Pbackends=localhost:9001,localhost:9002 -Pbalance=p2c
+ */
+class ReverseProxy {
+  private static final AsyncLogger LOG = AsyncLogger.LOG;
+
+  /** headers about one connection only, they are not passed on */
+  private static final Set<String> HOP_BY_HOP = Set.of("connection", "keep-alive", "proxy-connection", "te",
+      "trailer", "upgrade", "transfer-encoding");
+
+  /** backends a request is tried on before the client gets a 502 */
+  private static final int MAX_ATTEMPTS = 2;
+  private static final int MAX_HEADER_LINE = HttpRequest.MAX_LINE_LENGTH;
+  private static final int MAX_HEADERS = 100;
+
+  /**
+   * How the backend of a request is chosen
+   *
+   * ROUND_ROBIN - one after the other, ignores how busy they are
+   * LEAST       - the one with the fewest requests in flight (outstanding), so a slow
+   *               backend gets fewer requests
+   * P2C         - power of two choices: the less busy of two random ones, almost as good as
+   *               LEAST without looking at every backend and without all proxies that see
+   *               the same numbers sending to the same backend
+   */
+  enum Balance {
+    ROUND_ROBIN, LEAST, P2C;
+
+    static Balance fromString(String name) {
+      for (Balance balance : values()) {
+        if (balance.name().replace("_", "").equalsIgnoreCase(name.replace("-", "").replace("_", ""))) {
+          return balance;
+        }
+      }
+      throw new IllegalArgumentException("Unknown balance: " + name + " (use round-robin, least or p2c)");
+    }
+  }
+
+  /**
+   * The status line and headers of a backend response
+   */
+  private static class ResponseHead {
+    int status;
+    String statusLine;
+    final List<String> headers = new ArrayList<>(); // name, value, name, value ...
+    long contentLength = -1;
+    boolean chunked = false;
+    boolean close = false;
+  }
+
+  private final Backend[] backends;
+  private final Balance balance;
+  private final ExecutorService workers;
+  private final AtomicInteger next = new AtomicInteger();
+
+  public static void main(String args[]) {
+    int port = 8080;
+    List<Backend> backends = new ArrayList<>();
+    Balance balance = Balance.P2C;
+    int threads = 64;
+
+    try {
+      if (args.length > 0) port = Integer.parseInt(args[0]);
+      String list = args.length > 1 ? args[1] : "localhost:9001,localhost:9002";
+      for (String backend : list.split(",")) {
+        backends.add(new Backend(backend.trim()));
+      }
+      if (args.length > 2) balance = Balance.fromString(args[2]);
+      if (args.length > 3) threads = Integer.parseInt(args[3]);
+    } catch (IllegalArgumentException e) {
+      System.out.println("Usage: ReverseProxy [port(int)] [host:port,host:port,...] [round-robin|least|p2c] [threads(int)]");
+      System.out.println(e.getMessage());
+      System.exit(1);
+    }
+
+    System.out.println("Proxy on port " + port + " for " + backends + " (" + balance + ")");
+    new ReverseProxy(backends.toArray(new Backend[0]), balance, threads).run(port);
+  }
+
+  /**
+   * @param backends the servers behind the proxy
+   * @param balance how the backend of a request is chosen
+   * @param threads client connections served at the same time, more wait in a queue
+   */
+  ReverseProxy(Backend[] backends, Balance balance, int threads) {
+    this.backends = backends;
+    this.balance = balance;
+    this.workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(WebServer.ADMISSION_QUEUE));
+  }
+
+  /**
+   * Accepts client connections until the server socket is closed
+   */
+  public void run(int port) {
+    try {
+      ServerSocketChannel[] listeners = WebServer.listen(port, WebServer.ACCEPTORS);
+      for (int i = 1; i < listeners.length; i++) {
+        ServerSocketChannel listener = listeners[i];
+        new Thread(() -> acceptLoop(listener), "proxy-acceptor-" + i).start();
+      }
+      acceptLoop(listeners[0]);
+    } catch (IOException e) {
+      e.printStackTrace();
+    } finally {
+      workers.shutdown();
+    }
+  }
+
+  private void acceptLoop(ServerSocketChannel listener) {
+    try {
+      while (listener.isOpen()) {
+        SocketChannel channel = listener.accept();
+        try {
+          workers.execute(() -> serve(channel));
+        } catch (RejectedExecutionException e) {
+          try (SocketChannel c = channel) {
+            c.write(ByteBuffer.wrap(WebServer.overloaded().toBytes()));
+          } catch (IOException closed) {
+            // the client is gone
+          }
+        }
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Passes all requests of one client connection on until the client closes it
+   */
+  private void serve(SocketChannel channel) {
+    try (SocketChannel c = channel;
+         Socket s = c.socket();
+         InputStream in = s.getInputStream();
+         OutputStream out = new BufferedOutputStream(s.getOutputStream(), 16 * 1024)) {
+      s.setSoTimeout(WebServer.KEEP_ALIVE_TIMEOUT);
+      String clientAddress = s.getInetAddress().getHostAddress();
+      RequestDecoder decoder = new RequestDecoder();
+      int served = 0;
+      boolean keepAlive = true;
+      while (keepAlive) {
+        HttpRequest request;
+        try {
+          request = decoder.next();
+          while (request == null) {
+            if (decoder.fill(in) < 0) {
+              return;
+            }
+            request = decoder.next();
+          }
+        } catch (HttpException e) {
+          // the stream position is unknown after a bad request, answer and close
+          HttpResponse.html(e.getStatus(), e.getReason(), "<html>" + e.getMessage() + "</html>")
+              .writeTo(out, null, false);
+          break;
+        }
+        served++;
+        keepAlive = request.isKeepAlive() && served < WebServer.MAX_KEEP_ALIVE_REQUESTS;
+        if (request.getPath().equals("proxy/metrics")) {
+          new HttpResponse(200, "OK", "text/plain; version=0.0.4; charset=utf-8").setBody(metricsText())
+              .writeTo(out, null, keepAlive);
+        } else {
+          keepAlive = forward(request, out, clientAddress, keepAlive);
+        }
+        if (!decoder.hasBufferedBytes()) {
+          out.flush();
+        }
+      }
+      out.flush();
+    } catch (SocketTimeoutException e) {
+      // idle client connection
+    } catch (IOException e) {
+      LOG.debug("Client connection failed: {}", e.getMessage());
+    }
+  }
+
+  /**
+   * Picks the backend for a request
+   * @param exclude backend that just failed the request, null for the first attempt
+   */
+  Backend pick(Backend exclude) {
+    long now = System.currentTimeMillis();
+    Backend[] candidates = new Backend[backends.length];
+    int n = 0;
+    for (Backend backend : backends) {
+      if (backend != exclude && backend.isAvailable(now)) {
+        candidates[n++] = backend;
+      }
+    }
+    if (n == 0) {
+      // all ejected: trying one is better than answering 502 without trying
+      for (Backend backend : backends) {
+        if (backend != exclude || backends.length == 1) {
+          candidates[n++] = backend;
+        }
+      }
+    }
+    if (n == 1) {
+      return candidates[0];
+    }
+    switch (balance) {
+    case P2C:
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      int i = random.nextInt(n);
+      int j = random.nextInt(n - 1);
+      if (j >= i) {
+        j++;
+      }
+      return candidates[i].getOutstanding() <= candidates[j].getOutstanding() ? candidates[i] : candidates[j];
+    case LEAST:
+      // ties go round robin, otherwise an idle proxy would always pick the first one
+      int start = Math.floorMod(next.getAndIncrement(), n);
+      Backend best = candidates[start];
+      for (int k = 1; k < n; k++) {
+        Backend backend = candidates[(start + k) % n];
+        if (backend.getOutstanding() < best.getOutstanding()) {
+          best = backend;
+        }
+      }
+      return best;
+    default:
+      return candidates[Math.floorMod(next.getAndIncrement(), n)];
+    }
+  }
+
+  /**
+   * Sends the request to a backend and the response to the client
+   * @return whether the client connection stays open
+   */
+  private boolean forward(HttpRequest request, OutputStream client, String clientAddress, boolean keepAlive)
+      throws IOException {
+    boolean head = request.isMethod("HEAD");
+    boolean idempotent = request.isMethod("GET") || head || request.isMethod("OPTIONS") || request.isMethod("PUT")
+        || request.isMethod("DELETE");
+    boolean http10 = !request.getVersion().equals("HTTP/1.1");
+    Backend backend = pick(null);
+    IOException failure = null;
+    for (int attempt = 0; attempt < MAX_ATTEMPTS; ) {
+      long start = System.nanoTime();
+      backend.begin();
+      Backend.Connection connection = null;
+      boolean sent = false;
+      boolean answered = false;
+      boolean relayed = false;
+      try {
+        connection = backend.acquire();
+        writeRequest(connection.out, request, backend.getName(), clientAddress);
+        sent = true;
+        // wait for the first byte, it tells a pooled connection the backend had closed from
+        // a backend that started to answer
+        connection.in.mark(1);
+        if (connection.in.read() >= 0) {
+          answered = true;
+          connection.in.reset();
+        }
+        ResponseHead response = readHead(connection.in);
+        while (response != null && response.status >= 100 && response.status < 200 && response.status != 101) {
+          response = readHead(connection.in); // 100 Continue and the like, the final answer follows
+        }
+        if (response == null) {
+          throw new EOFException("Backend closed the connection");
+        }
+        if (response.status == 101) {
+          throw new IOException("Protocol upgrades are not supported");
+        }
+        boolean body = !head && response.status != 204 && response.status != 304;
+        boolean untilClose = body && !response.chunked && response.contentLength < 0;
+        // chunked bodies are passed on as they are, HTTP/1.0 clients get them decoded
+        boolean dechunk = body && response.chunked && http10;
+        keepAlive = keepAlive && !untilClose && !dechunk;
+
+        relayed = true;
+        writeHead(client, response, dechunk, keepAlive);
+        if (body) {
+          relayBody(response, connection.in, client, dechunk);
+        }
+        backend.release(connection, !response.close && !untilClose);
+        long nanos = System.nanoTime() - start;
+        if (response.status >= 502 && response.status <= 504) {
+          backend.failed(nanos);
+        } else {
+          backend.succeeded(nanos);
+        }
+        return keepAlive;
+      } catch (IOException e) {
+        if (connection != null) {
+          connection.close();
+        }
+        // a pooled connection closed by the backend before it answered or a client that
+        // went away says nothing about the backend's health
+        boolean stale = connection != null && connection.reused && !answered && !(e instanceof SocketTimeoutException);
+        if (relayed || stale) {
+          backend.aborted();
+        } else {
+          backend.failed(System.nanoTime() - start);
+        }
+        if (relayed) {
+          throw e; // the client has part of the response, only closing tells it something is wrong
+        }
+        failure = e;
+        if (sent && !idempotent && !stale) {
+          break; // the backend may have done it already
+        }
+        if (!stale) {
+          // a stale connection is simply replaced, any other failure counts as an attempt
+          attempt++;
+          backend = pick(backend);
+        }
+      }
+    }
+    LOG.warn("No backend answered {} /{}", request.getMethod(), request.getPath(), failure);
+    HttpResponse response = failure instanceof SocketTimeoutException
+        ? HttpResponse.html(504, "Gateway Timeout", "<html>The server did not answer in time</html>")
+        : HttpResponse.html(502, "Bad Gateway", "<html>The server is not reachable</html>");
+    response.writeTo(client, null, keepAlive);
+    return keepAlive;
+  }
+
+  /**
+   * Sends the request with its own hop-by-hop headers replaced and X-Forwarded-For added
+   */
+  private static void writeRequest(OutputStream out, HttpRequest request, String host, String clientAddress)
+      throws IOException {
+    StringBuilder head = new StringBuilder(512);
+    head.append(request.getMethod()).append(" /").append(request.getPath()).append(" HTTP/1.1\r\n");
+    String forwardedFor = clientAddress;
+    boolean hasHost = false;
+    for (int i = 0; i < request.getHeaderCount(); i++) {
+      String name = request.getHeaderName(i);
+      String lower = name.toLowerCase(Locale.ROOT);
+      if (HOP_BY_HOP.contains(lower)) {
+        continue;
+      }
+      if (lower.equals("x-forwarded-for")) {
+        forwardedFor = request.getHeaderValue(i) + ", " + clientAddress;
+        continue;
+      }
+      hasHost |= lower.equals("host");
+      head.append(name).append(": ").append(request.getHeaderValue(i)).append("\r\n");
+    }
+    if (!hasHost) {
+      head.append("Host: ").append(host).append("\r\n"); // HTTP/1.0 clients may leave it out
+    }
+    head.append("X-Forwarded-For: ").append(forwardedFor).append("\r\n");
+    head.append("Connection: keep-alive\r\n\r\n");
+    out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+    out.write(request.getBuffer(), request.getBodyOffset(), request.getBodyLength());
+    out.flush();
+  }
+
+  /**
+   * Reads the status line and headers of a response
+   * @return null if the backend closed the connection before sending anything
+   */
+  private static ResponseHead readHead(InputStream in) throws IOException {
+    String line = readLine(in);
+    if (line == null) {
+      return null;
+    }
+    ResponseHead head = new ResponseHead();
+    String[] parts = line.split(" ", 3);
+    if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+      throw new IOException("Not an HTTP response: " + line);
+    }
+    try {
+      head.status = Integer.parseInt(parts[1]);
+    } catch (NumberFormatException e) {
+      throw new IOException("Not an HTTP response: " + line);
+    }
+    head.statusLine = "HTTP/1.1 " + parts[1] + (parts.length > 2 ? " " + parts[2] : "");
+    boolean http10 = parts[0].equals("HTTP/1.0");
+    boolean keepAliveHeader = false;
+    while (!(line = requireLine(in)).isEmpty()) {
+      int colon = line.indexOf(':');
+      if (colon <= 0) {
+        throw new IOException("Illegal header line: " + line);
+      }
+      if (head.headers.size() >= MAX_HEADERS * 2) {
+        throw new IOException("Too many headers");
+      }
+      String name = line.substring(0, colon).trim();
+      String value = line.substring(colon + 1).trim();
+      String lower = name.toLowerCase(Locale.ROOT);
+      if (lower.equals("content-length")) {
+        try {
+          head.contentLength = Long.parseLong(value);
+        } catch (NumberFormatException e) {
+          throw new IOException("Illegal Content-Length: " + value);
+        }
+      } else if (lower.equals("transfer-encoding")) {
+        head.chunked = value.toLowerCase(Locale.ROOT).endsWith("chunked");
+      } else if (lower.equals("connection")) {
+        head.close |= value.equalsIgnoreCase("close");
+        keepAliveHeader |= value.equalsIgnoreCase("keep-alive");
+      }
+      head.headers.add(name);
+      head.headers.add(value);
+    }
+    head.close |= http10 && !keepAliveHeader;
+    return head;
+  }
+
+  /**
+   * Writes the status line and the end-to-end headers of the response to the client
+   */
+  private static void writeHead(OutputStream out, ResponseHead response, boolean dechunk, boolean keepAlive)
+      throws IOException {
+    StringBuilder head = new StringBuilder(512);
+    head.append(response.statusLine).append("\r\n");
+    for (int i = 0; i < response.headers.size(); i += 2) {
+      String lower = response.headers.get(i).toLowerCase(Locale.ROOT);
+      // a chunked body is passed on chunked, so its Transfer-Encoding stays
+      if (HOP_BY_HOP.contains(lower) && !(lower.equals("transfer-encoding") && !dechunk)) {
+        continue;
+      }
+      head.append(response.headers.get(i)).append(": ").append(response.headers.get(i + 1)).append("\r\n");
+    }
+    head.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n\r\n");
+    out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+  }
+
+  /**
+   * Copies the body while it arrives: Content-Length bytes, the chunks up to the last one
+   * or everything until the backend closes the connection
+   * @param dechunk send the data of the chunks without the chunk framing
+   */
+  private static void relayBody(ResponseHead response, InputStream in, OutputStream out, boolean dechunk)
+      throws IOException {
+    byte[] buffer = new byte[16 * 1024];
+    if (!response.chunked) {
+      long remaining = response.contentLength < 0 ? Long.MAX_VALUE : response.contentLength;
+      while (remaining > 0) {
+        int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+        if (read < 0) {
+          if (response.contentLength < 0) {
+            return; // the end of the connection is the end of the body
+          }
+          throw new EOFException("Backend closed the connection in the middle of the body");
+        }
+        out.write(buffer, 0, read);
+        remaining -= read;
+      }
+      return;
+    }
+    while (true) {
+      String sizeLine = requireLine(in);
+      long size;
+      try {
+        int semicolon = sizeLine.indexOf(';');
+        size = Long.parseLong((semicolon < 0 ? sizeLine : sizeLine.substring(0, semicolon)).trim(), 16);
+      } catch (NumberFormatException e) {
+        throw new IOException("Illegal chunk size: " + sizeLine);
+      }
+      if (!dechunk) {
+        out.write((sizeLine + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+      }
+      if (size == 0) {
+        // trailer lines up to the empty line
+        String trailer;
+        do {
+          trailer = requireLine(in);
+          if (!dechunk) {
+            out.write((trailer + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+          }
+        } while (!trailer.isEmpty());
+        return;
+      }
+      while (size > 0) {
+        int read = in.read(buffer, 0, (int) Math.min(buffer.length, size));
+        if (read < 0) {
+          throw new EOFException("Backend closed the connection in the middle of a chunk");
+        }
+        out.write(buffer, 0, read);
+        size -= read;
+      }
+      if (!requireLine(in).isEmpty()) {
+        throw new IOException("Chunk does not end with CRLF");
+      }
+      if (!dechunk) {
+        out.write('\r');
+        out.write('\n');
+      }
+    }
+  }
+
+  private static String requireLine(InputStream in) throws IOException {
+    String line = readLine(in);
+    if (line == null) {
+      throw new EOFException("Backend closed the connection in the middle of the response");
+    }
+    return line;
+  }
+
+  /**
+   * @return the line without CRLF (or LF), null at the end of the stream
+   */
+  private static String readLine(InputStream in) throws IOException {
+    StringBuilder line = new StringBuilder(64);
+    int c;
+    while ((c = in.read()) != '\n') {
+      if (c < 0) {
+        if (line.length() == 0) {
+          return null;
+        }
+        throw new EOFException("Backend closed the connection in the middle of a line");
+      }
+      if (line.length() >= MAX_HEADER_LINE) {
+        throw new IOException("Line longer than " + MAX_HEADER_LINE + " bytes");
+      }
+      line.append((char) c);
+    }
+    int length = line.length();
+    if (length > 0 && line.charAt(length - 1) == '\r') {
+      line.setLength(length - 1);
+    }
+    return line.toString();
+  }
+
+  /**
+   * @return the values of all backends in the Prometheus text format
+   */
+  private String metricsText() {
+    StringBuilder text = new StringBuilder(2048);
+    for (Backend backend : backends) {
+      backend.appendMetrics(text);
+    }
+    return text.toString();
+  }
+}
@@ -0,0 +1,24 @@
+package funHttpServer;
+
+import java.util.Map;
+
+/**
+ * Metrics of one route under funHttpServer:type=Route,name=ROUTE (see Metrics.Route).
+ * The phases are summaries of the histograms in microseconds: count, mean, p50, p90,
+ * p99, p999 and max.
+ */
+public interface RouteMetricsMXBean {
+  long getRequests();
+
+  /** responses with a 5xx status */
+  long getErrors();
+
+  /** time to parse the request */
+  Map<String, Long> getParse();
+
+  /** time the route took to create the response */
+  Map<String, Long> getHandle();
+
+  /** time to send the response */
+  Map<String, Long> getWrite();
+}
@@ -0,0 +1,219 @@
+package funHttpServer;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Finds the handler for a request path.
+ *
+ * Exact routes (e.g. "multiply") are kept in a hash table, prefix routes (e.g. "file"
+ * for everything below /file/) in a trie with one node per path segment. A lookup hashes
+ * the route once and otherwise walks the segments of the path, so it costs O(length of
+ * the path) no matter how many routes are registered, and the longest matching prefix
+ * wins instead of whichever route happens to be checked first.
+ *
+ * Routes are matched without the query and ignore case, the handler still gets the
+ * request with the original path. Lookups work directly on the bytes of the request
+ * line, no String is created for the path.
+ */
+class Router {
+  /**
+   * One path segment in the prefix trie
+   */
+  private static class Node {
+    final Table<Node> children = new Table<>();
+    Handler handler = null; // set if a prefix route ends at this node
+  }
+
+  private final Table<Handler> exact = new Table<>();
+  private final Node prefixes = new Node();
+  private int size = 0;
+
+  /**
+   * Registers a route for exactly one path
+   * @param path path without leading /, e.g. "multiply" or "" for the root page
+   * @param handler creates the responses
+   */
+  public Router addExact(String path, Handler handler) {
+    if (exact.put(bytes(path), handler) == null) {
+      size++;
+    }
+    return this;
+  }
+
+  /**
+   * Registers a route for a path and everything below it
+   * @param prefix path without leading /, e.g. "file" matches file/a.txt and file/www/b.html
+   * @param handler creates the responses
+   */
+  public Router addPrefix(String prefix, Handler handler) {
+    Node node = prefixes;
+    for (String segment : prefix.split("/")) {
+      if (!segment.isEmpty()) {
+        byte[] key = bytes(segment);
+        Node child = node.children.get(key, 0, key.length);
+        if (child == null) {
+          child = new Node();
+          node.children.put(key, child);
+        }
+        node = child;
+      }
+    }
+    if (node.handler == null) {
+      size++;
+    }
+    node.handler = handler;
+    return this;
+  }
+
+  /**
+   * Finds the handler for a request path
+   * @param path request path without leading /, may contain a query, e.g. multiply?num1=3
+   * @return the handler of the exact route, else of the longest matching prefix route, or null
+   */
+  public Handler find(String path) {
+    byte[] bytes = path.getBytes(StandardCharsets.ISO_8859_1);
+    int end = 0;
+    while (end < bytes.length && bytes[end] != '?') {
+      end++;
+    }
+    return find(bytes, 0, end);
+  }
+
+  /**
+   * Finds the handler for the route of a parsed request
+   */
+  public Handler find(HttpRequest request) {
+    return find(request.getBuffer(), request.getRouteStart(), request.getRouteEnd());
+  }
+
+  /**
+   * Finds the handler for a route given as bytes
+   * @param buffer bytes of the request line
+   * @param start first byte of the route (behind the leading /)
+   * @param end end of the route (the ? of the query or the end of the path)
+   */
+  public Handler find(byte[] buffer, int start, int end) {
+    Handler handler = exact.get(buffer, start, end);
+    if (handler != null) {
+      return handler;
+    }
+
+    // walk the trie segment by segment and remember the deepest handler on the way
+    Node node = prefixes;
+    Handler best = node.handler;
+    int segmentStart = start;
+    while (segmentStart < end) {
+      int segmentEnd = segmentStart;
+      while (segmentEnd < end && buffer[segmentEnd] != '/') {
+        segmentEnd++;
+      }
+      if (segmentEnd > segmentStart) {
+        node = node.children.get(buffer, segmentStart, segmentEnd);
+        if (node == null) {
+          break;
+        }
+        if (node.handler != null) {
+          best = node.handler;
+        }
+      }
+      segmentStart = segmentEnd + 1;
+    }
+    return best;
+  }
+
+  /**
+   * @return number of registered routes
+   */
+  public int size() {
+    return size;
+  }
+
+  private static byte[] bytes(String key) {
+    return key.toLowerCase().getBytes(StandardCharsets.ISO_8859_1);
+  }
+
+  /**
+   * Small open addressing hash table with lower case byte keys, looked up by a region of a
+   * byte array without copying it. Only changed while routes are registered at startup.
+   */
+  private static class Table<V> {
+    private byte[][] keys = new byte[8][];
+    private Object[] values = new Object[8];
+    private int count = 0;
+
+    /**
+     * @return the value for the (case insensitive) key in buffer[start, end) or null
+     */
+    @SuppressWarnings("unchecked")
+    V get(byte[] buffer, int start, int end) {
+      int mask = keys.length - 1;
+      for (int i = hash(buffer, start, end) & mask; keys[i] != null; i = (i + 1) & mask) {
+        if (matches(keys[i], buffer, start, end)) {
+          return (V) values[i];
+        }
+      }
+      return null;
+    }
+
+    /**
+     * @return the value that was replaced or null
+     */
+    @SuppressWarnings("unchecked")
+    V put(byte[] key, V value) {
+      if ((count + 1) * 2 > keys.length) {
+        grow();
+      }
+      int mask = keys.length - 1;
+      int i = hash(key, 0, key.length) & mask;
+      for (; keys[i] != null; i = (i + 1) & mask) {
+        if (matches(keys[i], key, 0, key.length)) {
+          V old = (V) values[i];
+          values[i] = value;
+          return old;
+        }
+      }
+      keys[i] = key;
+      values[i] = value;
+      count++;
+      return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void grow() {
+      byte[][] oldKeys = keys;
+      Object[] oldValues = values;
+      keys = new byte[oldKeys.length * 2][];
+      values = new Object[oldKeys.length * 2];
+      count = 0;
+      for (int i = 0; i < oldKeys.length; i++) {
+        if (oldKeys[i] != null) {
+          put(oldKeys[i], (V) oldValues[i]);
+        }
+      }
+    }
+
+    private static int hash(byte[] buffer, int start, int end) {
+      int h = 0;
+      for (int i = start; i < end; i++) {
+        h = 31 * h + lower(buffer[i]);
+      }
+      return h ^ (h >>> 16);
+    }
+
+    private static boolean matches(byte[] key, byte[] buffer, int start, int end) {
+      if (key.length != end - start) {
+        return false;
+      }
+      for (int i = 0; i < key.length; i++) {
+        if (key[i] != lower(buffer[start + i])) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private static byte lower(byte b) {
+      return b >= 'A' && b <= 'Z' ? (byte) (b + 32) : b;
+    }
+  }
+}
@@ -0,0 +1,97 @@
+package funHttpServer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Microbenchmark for the route lookup.
+ *
+ * Registers the real routes of the WebServer plus many generated ones (exact routes and
+ * prefix routes) and compares the Router with the old way of routing, a chain of
+ * request.contains(...) checks in registration order. Prints the average time per lookup
+ * for requests that hit the first, a middle and the last registered route.
+ *
+ *   gradle RouterBenchmark -Proutes=200
+ */
+class RouterBenchmark {
+  private static final Handler NOOP = request -> null;
+
+  public static void main(String args[]) {
+    int routes = args.length > 0 ? Integer.parseInt(args[0]) : 120;
+
+    Router router = new Router();
+    List<String> chain = new ArrayList<>(); // tokens of the contains() chain, in order
+    String[] real = { "json", "random", "file/", "multiply?", "github?", "currentGrade?", "cashier?" };
+    for (String token : real) {
+      chain.add(token);
+      if (token.endsWith("/")) {
+        router.addPrefix(token.substring(0, token.length() - 1), NOOP);
+      } else {
+        router.addExact(token.replace("?", ""), NOOP);
+      }
+    }
+    for (int i = 0; router.size() < routes; i++) {
+      if (i % 4 == 0) {
+        router.addPrefix("static/assets" + i, NOOP);
+        chain.add("static/assets" + i + "/");
+      } else {
+        router.addExact("api/v1/resource" + i, NOOP);
+        chain.add("api/v1/resource" + i + "?");
+      }
+    }
+
+    String[] requests = {
+        "multiply?num1=3&num2=4", // early route
+        toRequest(chain.get(chain.size() / 2)), // middle route
+        toRequest(chain.get(chain.size() - 1)), // last route
+        "does/not/exist?x=1" // miss
+    };
+
+    System.out.println("Registered routes: " + router.size());
+    for (String request : requests) {
+      double trie = measure(() -> router.find(request) != null);
+      double contains = measure(() -> containsChain(chain, request));
+      System.out.printf("%-45s router: %7.1f ns   contains-chain: %8.1f ns%n", request, trie, contains);
+    }
+  }
+
+  private static String toRequest(String token) {
+    return token.endsWith("/") ? token + "logo.png" : token + "id=42";
+  }
+
+  /**
+   * The routing of the old createResponse: check every route in order
+   */
+  private static boolean containsChain(List<String> chain, String request) {
+    for (String token : chain) {
+      if (request.contains(token)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private interface Lookup {
+    boolean run();
+  }
+
+  /**
+   * @return average nanoseconds per lookup after a warm-up
+   */
+  private static double measure(Lookup lookup) {
+    int found = 0;
+    for (int i = 0; i < 200_000; i++) { // warm-up so the JIT compiled the code
+      if (lookup.run()) found++;
+    }
+    int iterations = 2_000_000;
+    long begin = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      if (lookup.run()) found++;
+    }
+    long elapsed = System.nanoTime() - begin;
+    if (found == -1) {
+      System.out.println(); // keeps the JIT from removing the loop
+    }
+    return (double) elapsed / iterations;
+  }
+}
@@ -0,0 +1,107 @@
+package funHttpServer;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent calls for the same key into one call.
+ *
+ * The first caller for a key starts the call, everybody who asks for the same key while
+ * it runs gets the same result (or the same failure) instead of starting a call of their
+ * own. Once the call completed the key is free again, results are not kept, that is what
+ * the caches are for. A call that takes longer than the timeout fails for all waiting
+ * callers with a TimeoutException and the next caller starts a new one.
+ *
+ * @param <K> key of the call, e.g. the normalized query
+ * @param <V> result of the call, shared by all callers so it should not be changed
+ */
+class SingleFlight<K, V> {
+  private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+  private final long timeout;
+
+  private final AtomicLong calls = new AtomicLong();
+  private final AtomicLong coalesced = new AtomicLong();
+  private final AtomicLong timeouts = new AtomicLong();
+
+  /**
+   * @param timeout time in ms after which a call fails for everybody waiting on it
+   */
+  SingleFlight(long timeout) {
+    this.timeout = timeout;
+  }
+
+  /**
+   * Runs the call for the key or joins the one that is already running
+   * @param key key of the call
+   * @param call starts the call, only run by the first caller
+   * @return completes with the shared result, exceptionally if the call failed or timed out
+   */
+  public CompletableFuture<V> run(K key, Supplier<CompletableFuture<V>> call) {
+    CompletableFuture<V> flight = new CompletableFuture<>();
+    CompletableFuture<V> running = inFlight.putIfAbsent(key, flight);
+    if (running != null) {
+      coalesced.incrementAndGet();
+      // a copy, so a caller cannot complete the shared future for the others
+      return running.copy();
+    }
+
+    calls.incrementAndGet();
+    // the key is free again as soon as the flight ended, whichever way
+    flight.orTimeout(timeout, TimeUnit.MILLISECONDS).whenComplete((result, e) -> {
+      inFlight.remove(key, flight);
+      if (e instanceof TimeoutException) {
+        timeouts.incrementAndGet();
+      }
+    });
+    try {
+      call.get().whenComplete((result, e) -> {
+        if (e != null) {
+          flight.completeExceptionally(e);
+        } else {
+          flight.complete(result);
+        }
+      });
+    } catch (RuntimeException e) {
+      flight.completeExceptionally(e);
+    }
+    return flight.copy();
+  }
+
+  /**
+   * @return number of calls that were started
+   */
+  public long getCalls() {
+    return calls.get();
+  }
+
+  /**
+   * @return number of callers that joined a running call instead of starting one
+   */
+  public long getCoalesced() {
+    return coalesced.get();
+  }
+
+  /**
+   * @return number of calls that timed out
+   */
+  public long getTimeouts() {
+    return timeouts.get();
+  }
+
+  /**
+   * @return number of calls running right now
+   */
+  public int getInFlight() {
+    return inFlight.size();
+  }
+
+  @Override
+  public String toString() {
+    return "SingleFlight[inFlight=" + getInFlight() + ", calls=" + getCalls() + ", coalesced=" + getCoalesced()
+        + ", timeouts=" + getTimeouts() + "]";
+  }
+}
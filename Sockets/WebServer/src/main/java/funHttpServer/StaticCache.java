@@ -0,0 +1,166 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory cache of ready-to-send response bodies (e.g. the rendered root page).
+ *
+ * Entries are kept in least recently used order and the oldest ones are evicted once
+ * the cached bytes grow over the budget. A WatchService thread watches the directory
+ * the bodies are built from and drops the whole cache on any change, the pages depend
+ * on the directory listing so a new or removed file changes them as well.
+ *
+ * The cached arrays are shared between requests and must not be changed by callers.
+ */
+class StaticCache {
+  /**
+   * Builds the body for a key on a cache miss
+   */
+  interface Loader {
+    byte[] load() throws IOException;
+  }
+
+  private final long maxBytes;
+  private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long bytes = 0;
+  // incremented on every invalidation, a load that started before it is not stored
+  private long generation = 0;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong invalidations = new AtomicLong();
+
+  /**
+   * @param maxBytes budget for the cached bodies
+   */
+  StaticCache(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Returns the cached body or loads and caches it
+   * @param key name of the entry, e.g. www/root.html
+   * @param loader builds the body if it is not cached
+   * @return the body, shared and not to be modified
+   */
+  public byte[] get(String key, Loader loader) throws IOException {
+    long loadGeneration;
+    synchronized (this) {
+      byte[] body = entries.get(key);
+      if (body != null) {
+        hits.incrementAndGet();
+        return body;
+      }
+      loadGeneration = generation;
+    }
+    misses.incrementAndGet();
+
+    // load outside of the lock, two threads may load the same key at the same time
+    // which is fine for small static files
+    byte[] body = loader.load();
+
+    synchronized (this) {
+      if (loadGeneration == generation && body.length <= maxBytes) {
+        byte[] old = entries.put(key, body);
+        if (old != null) {
+          bytes -= old.length;
+        }
+        bytes += body.length;
+        evict();
+      }
+    }
+    return body;
+  }
+
+  /**
+   * Removes least recently used entries until the cache fits into the budget
+   */
+  private void evict() {
+    Iterator<Map.Entry<String, byte[]>> it = entries.entrySet().iterator();
+    while (bytes > maxBytes && it.hasNext()) {
+      bytes -= it.next().getValue().length;
+      it.remove();
+      evictions.incrementAndGet();
+    }
+  }
+
+  /**
+   * Drops all entries, loads that are running right now are not stored
+   */
+  public synchronized void invalidateAll() {
+    entries.clear();
+    bytes = 0;
+    generation++;
+    invalidations.incrementAndGet();
+  }
+
+  /**
+   * Starts a daemon thread that invalidates the cache whenever something in the
+   * directory is created, changed or deleted
+   * @param directory the directory to watch, e.g. www/
+   */
+  public void watch(Path directory) throws IOException {
+    WatchService watcher = FileSystems.getDefault().newWatchService();
+    directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+
+    Thread thread = new Thread(() -> {
+      try {
+        while (true) {
+          WatchKey key = watcher.take();
+          // the events themselves do not matter, every change can change the pages
+          key.pollEvents();
+          invalidateAll();
+          if (!key.reset()) {
+            break; // directory is gone
+          }
+        }
+      } catch (InterruptedException | ClosedWatchServiceException e) {
+        // stop watching
+      }
+    }, "static-cache-watcher");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  public long getInvalidations() {
+    return invalidations.get();
+  }
+
+  public synchronized long getBytes() {
+    return bytes;
+  }
+
+  public synchronized int getSize() {
+    return entries.size();
+  }
+
+  @Override
+  public String toString() {
+    return "StaticCache[entries=" + getSize() + ", bytes=" + getBytes() + ", hits=" + getHits()
+        + ", misses=" + getMisses() + ", evictions=" + getEvictions() + ", invalidations=" + getInvalidations() + "]";
+  }
+}
@@ -0,0 +1,173 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Client for the upstream REST API behind the /github route.
+ *
+ * All requests go through one JDK HttpClient, so connections (and the TLS sessions) to the
+ * upstream are reused instead of opening a new URLConnection for every request. Requests
+ * run asynchronously and the body is read in one piece into a String.
+ *
+ * Successful responses are cached by URL. For ttl ms a cached body is returned without
+ * asking the upstream at all, after that the request carries If-None-Match with the ETag
+ * of the cached body and a 304 Not Modified just renews the cached entry. GitHub does not
+ * count those 304 answers against the rate limit.
+ */
+class UpstreamClient {
+  /**
+   * The upstream answered with something else than 200 (or 304 for a cached body)
+   */
+  static class UpstreamException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final int status;
+
+    UpstreamException(String url, int status) {
+      super("GET " + url + " returned " + status);
+      this.status = status;
+    }
+
+    public int getStatus() {
+      return status;
+    }
+  }
+
+  /**
+   * One cached response body
+   */
+  private static class Entry {
+    final String body;
+    final String etag; // null if the upstream sent none
+    volatile long expires;
+
+    Entry(String body, String etag, long expires) {
+      this.body = body;
+      this.etag = etag;
+      this.expires = expires;
+    }
+  }
+
+  private final HttpClient client;
+  private final Duration timeout;
+  private final long ttl;
+  private final int maxEntries;
+  // least recently used first, evicted once there are more than maxEntries
+  private final LinkedHashMap<String, Entry> cache = new LinkedHashMap<>(16, 0.75f, true);
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong revalidations = new AtomicLong();
+  private final AtomicLong fetches = new AtomicLong();
+
+  /**
+   * @param timeout longest time to wait for a connection and for a response
+   * @param ttl time in ms a cached body is used without asking the upstream
+   * @param maxEntries number of cached bodies
+   */
+  UpstreamClient(Duration timeout, long ttl, int maxEntries) {
+    this.client = HttpClient.newBuilder()
+        .version(HttpClient.Version.HTTP_1_1)
+        .connectTimeout(timeout)
+        .followRedirects(HttpClient.Redirect.NORMAL)
+        .build();
+    this.timeout = timeout;
+    this.ttl = ttl;
+    this.maxEntries = maxEntries;
+  }
+
+  /**
+   * Gets the body of a URL, from the cache if it is fresh
+   * @param url the URL to GET
+   * @return completes with the body or exceptionally (UpstreamException, IOException,
+   *         HttpTimeoutException) if the upstream did not answer with 200
+   */
+  public CompletableFuture<String> get(String url) {
+    Entry cached;
+    synchronized (cache) {
+      cached = cache.get(url);
+    }
+    if (cached != null && cached.expires > System.currentTimeMillis()) {
+      hits.incrementAndGet();
+      return CompletableFuture.completedFuture(cached.body);
+    }
+
+    // java.net.http types are written out, the server has its own HttpRequest and HttpResponse
+    java.net.http.HttpRequest.Builder request = java.net.http.HttpRequest.newBuilder(URI.create(url))
+        .timeout(timeout)
+        .header("Accept", "application/vnd.github+json")
+        .header("User-Agent", "ser321-FunWebServer")
+        .GET();
+    if (cached != null && cached.etag != null) {
+      request.header("If-None-Match", cached.etag);
+    }
+    fetches.incrementAndGet();
+
+    return client.sendAsync(request.build(), java.net.http.HttpResponse.BodyHandlers.ofString())
+        .thenApply(response -> {
+          long expires = System.currentTimeMillis() + ttl;
+          if (response.statusCode() == 304 && cached != null) {
+            revalidations.incrementAndGet();
+            cached.expires = expires;
+            put(url, cached);
+            return cached.body;
+          }
+          if (response.statusCode() != 200) {
+            throw new CompletionException(new UpstreamException(url, response.statusCode()));
+          }
+          String etag = response.headers().firstValue("ETag").orElse(null);
+          put(url, new Entry(response.body(), etag, expires));
+          return response.body();
+        });
+  }
+
+  private void put(String url, Entry entry) {
+    synchronized (cache) {
+      cache.put(url, entry);
+      Iterator<Map.Entry<String, Entry>> it = cache.entrySet().iterator();
+      while (cache.size() > maxEntries && it.hasNext()) {
+        it.next();
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * @return requests answered from the cache without asking the upstream
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * @return requests answered by the upstream with 304 Not Modified
+   */
+  public long getRevalidations() {
+    return revalidations.get();
+  }
+
+  /**
+   * @return requests sent to the upstream
+   */
+  public long getFetches() {
+    return fetches.get();
+  }
+
+  @Override
+  public String toString() {
+    int size;
+    synchronized (cache) {
+      size = cache.size();
+    }
+    return "UpstreamClient[entries=" + size + ", hits=" + getHits() + ", fetches=" + getFetches()
+        + ", revalidations=" + getRevalidations() + "]";
+  }
+}
@@ -4,10 +4,21 @@ localhost:9000/ and show you the root.html webpage from the www/root.html folder
 You can also do some other simple GET requests:
 1) /random shows you a random picture (well random from the set defined)
 2) json shows you the response as JSON for /random instead the html page
-3) /file/filename shows you the raw file (not as HTML)
+3) /file/filename sends the raw file (not as HTML) with its Content-Type, streamed from disk,
+   or only the parts asked for with a Range header (see ByteRanges)
 4) /multiply?num1=3&num2=4 multiplies the two inputs and responses with the result
 5) /github?query=users/amehlhase316/repos (or other GitHub repo owners) will lead to receiving
    JSON which will for now only be printed in the console. See the todo below
+6) POST /multiply/batch, /currentGrade/batch and /cashier/batch compute many inputs sent as JSON
+   array or one JSON object per line in one request, see Batch
+
+The server can run in four modes (see ExecutionMode): serial (one client at a time),
+pooled (fixed thread pool), virtual (one virtual thread per connection, Java 21+) and
+nio (non-blocking event loops, see NioEngine). With -Dacceptors=n every mode accepts on
+n sockets of the same port (SO_REUSEPORT), each with its own accept thread.
+
+Every route is a handler method registered in the Router (see the "router" field),
+add a new route there.
 
 The reading of the request is done "manually", meaning no library that helps making things a 
 little easier is used. This is done so you see exactly how to pars the request and 
@@ -22,52 +33,463 @@ import java.net.*;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Random;
 import java.util.Map;
 import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
 import org.json.*;
 
 class WebServer {
+  /** time in ms an idle keep-alive connection stays open, change with -DkeepAlive.timeout=ms */
+  static final int KEEP_ALIVE_TIMEOUT = Integer.getInteger("keepAlive.timeout", 5000);
+  /** requests served on one connection before it is closed, change with -DkeepAlive.max=n */
+  static final int MAX_KEEP_ALIVE_REQUESTS = Integer.getInteger("keepAlive.max", 100);
+
+  /** request path logging that does not wait for the console, see AsyncLogger */
+  private static final AsyncLogger LOG = AsyncLogger.LOG;
+
+  /** byte budget of the www/ page cache, change with -Dcache.bytes=n */
+  static final long CACHE_BYTES = Long.getLong("cache.bytes", 8 * 1024 * 1024);
+
+  /** REST API behind /github, change with -Dgithub.url=http://localhost:9200/ e.g. for the GitHubStub */
+  static final String GITHUB_URL = System.getProperty("github.url", "https://api.github.com/");
+  /** time in ms a GitHub answer is used without asking GitHub again, change with -Dgithub.ttl=ms */
+  static final long GITHUB_TTL = Long.getLong("github.ttl", 60000);
+  /** time in ms the clients wait for one GitHub query, change with -Dgithub.timeout=ms */
+  static final long GITHUB_TIMEOUT = Long.getLong("github.timeout", 10000);
+
+  /** connections (pooled) or requests (nio) that may wait for a worker, change with -Dadmission.queue=n */
+  static final int ADMISSION_QUEUE = Integer.getInteger("admission.queue", 256);
+  /** most requests in the routes at the same time, change with -Dadmission.max=n */
+  static final int ADMISSION_MAX = Integer.getInteger("admission.max", 256);
+  /** latency in ms above which fewer requests are let in, change with -Dadmission.latency=ms */
+  static final long ADMISSION_LATENCY = Long.getLong("admission.latency", 1000);
+
+  /** listening sockets on the port, each with its own accept thread, change with -Dacceptors=n */
+  static final int ACCEPTORS = Integer.getInteger("acceptors", 1);
+
+  /** threads of the bulkheads of the cheap routes that only compute */
+  static final int COMPUTE_THREADS = Runtime.getRuntime().availableProcessors();
+
+  private ExecutionMode mode = ExecutionMode.SERIAL;
+
+  /** request counts and latencies, see /metrics */
+  private final Metrics metrics = new Metrics();
+  /** metrics of every route by its handler, only written while the router is built */
+  private final Map<Handler, Metrics.Route> routeMetrics = new IdentityHashMap<>();
+
+  /** requests turned away before a route was looked up (full worker queue) */
+  private final Metrics.Route rejected = metrics.route("rejected");
+
+  /** adaptive limit of the requests in the routes, the others get a 503 */
+  private final AdmissionController admission = new AdmissionController(ADMISSION_MAX, ADMISSION_LATENCY);
+
+  /** rendered pages from www/, dropped whenever something in www/ changes */
+  private final StaticCache cache = new StaticCache(CACHE_BYTES);
+
+  /** shared connections to GitHub and the cached answers */
+  private final UpstreamClient upstream = new UpstreamClient(Duration.ofSeconds(20), GITHUB_TTL, 256);
+
+  /** running GitHub queries, identical queries that arrive meanwhile wait for the same one */
+  private final SingleFlight<String, HttpResponse> githubFlights = new SingleFlight<>(GITHUB_TIMEOUT);
+
   public static void main(String args[]) {
-    WebServer server = new WebServer(9000);
+    int port = 9000; // default port
+    ExecutionMode mode = ExecutionMode.SERIAL; // default: one client at a time
+    int threads = Runtime.getRuntime().availableProcessors() * 4; // default pool size
+
+    try {
+      if (args.length > 0) {
+        port = Integer.parseInt(args[0]);
+      }
+      if (args.length > 1) {
+        mode = ExecutionMode.fromString(args[1]);
+      }
+      if (args.length > 2) {
+        threads = Integer.parseInt(args[2]);
+      }
+    } catch (IllegalArgumentException e) {
+      // NumberFormatException is an IllegalArgumentException too
+      System.out.println("Usage: WebServer [port(int)] [serial|pooled|virtual|nio] [threads(int)]");
+      System.out.println(e.getMessage());
+      System.exit(1);
+    }
+
+    System.out.println("Starting on port " + port + " in " + mode + " mode");
+    WebServer server = new WebServer(port, mode, threads);
   }
 
   /**
-   * Main thread
+   * Main thread, handles one connection at a time
    * @param port to listen on
    */
   public WebServer(int port) {
-    ServerSocket server = null;
-    Socket sock = null;
-    InputStream in = null;
-    OutputStream out = null;
+    this(port, ExecutionMode.SERIAL, 1);
+  }
+
+  /**
+   * Main thread, accepts connections and hands them to the executor of the given mode
+   * @param port to listen on
+   * @param mode how accepted connections are run
+   * @param threads number of worker threads for the pooled mode
+   */
+  public WebServer(int port, ExecutionMode mode, int threads) {
+    this.mode = mode;
+    registerGauges();
+    try {
+      cache.watch(Paths.get("www"));
+    } catch (IOException e) {
+      System.out.println("Cannot watch www/, pages are cached until restart: " + e.getMessage());
+    }
+    ServerSocketChannel[] listeners = null;
+    ExecutorService executor = mode.createExecutor(threads, ADMISSION_QUEUE);
+    if (executor instanceof ThreadPoolExecutor) {
+      metrics.gauge("worker_queue_length", () -> ((ThreadPoolExecutor) executor).getQueue().size());
+    }
 
     try {
-      server = new ServerSocket(port);
-      while (true) {
-        sock = server.accept();
-        out = sock.getOutputStream();
-        in = sock.getInputStream();
-        byte[] response = createResponse(in);
-        out.write(response);
-        out.flush();
-        in.close();
-        out.close();
-        sock.close();
+      listeners = listen(port, ACCEPTORS);
+      if (mode == ExecutionMode.NIO) {
+        // event loops do the socket work, the executor only runs the route handlers
+        new NioEngine(this, Runtime.getRuntime().availableProcessors(), executor).run(listeners);
+        return;
       }
+      // one accept loop per listening socket, the first one runs on this thread
+      for (int i = 1; i < listeners.length; i++) {
+        ServerSocketChannel listener = listeners[i];
+        Thread acceptor = new Thread(() -> acceptLoop(listener, executor), "acceptor-" + i);
+        acceptor.start();
+      }
+      acceptLoop(listeners[0], executor);
     } catch (IOException e) {
       e.printStackTrace();
     } finally {
-      if (sock != null) {
+      if (executor != null) {
+        executor.shutdown();
+      }
+      if (listeners != null) {
+        for (ServerSocketChannel listener : listeners) {
+          try {
+            listener.close();
+          } catch (IOException e) {
+            e.printStackTrace();
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Opens the listening sockets of the server.
+   *
+   * With one socket all new connections of the port queue in one accept queue and one
+   * thread takes them out. With SO_REUSEPORT every socket gets an accept queue of its own
+   * and the kernel spreads the incoming connections over them (by a hash of the client
+   * address and port), so every accept thread has its own queue and lock.
+   *
+   * Without SO_REUSEPORT (e.g. Windows) all accept threads share one socket.
+   * @param port to listen on
+   * @param count number of accept threads
+   * @return count sockets, they are all the same socket if SO_REUSEPORT is not supported
+   */
+  static ServerSocketChannel[] listen(int port, int count) throws IOException {
+    ServerSocketChannel[] listeners = new ServerSocketChannel[Math.max(1, count)];
+    boolean reusePort = false;
+    for (int i = 0; i < listeners.length; i++) {
+      if (i > 0 && !reusePort) {
+        listeners[i] = listeners[0];
+        continue;
+      }
+      // opened as a channel so accepted sockets have a SocketChannel for zero-copy file sends
+      ServerSocketChannel listener = ServerSocketChannel.open();
+      if (listeners.length > 1 && listener.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+        // every socket needs the option before the bind, the first one too
+        listener.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        reusePort = true;
+      }
+      listener.bind(new InetSocketAddress(port));
+      listeners[i] = listener;
+    }
+    if (listeners.length > 1 && !reusePort) {
+      System.out.println("SO_REUSEPORT is not supported, " + listeners.length + " accept threads share one socket");
+    }
+    return listeners;
+  }
+
+  /**
+   * Accepts connections and hands them to the executor until the socket is closed
+   * @param listener listening socket of this accept thread
+   * @param executor runs the connections, null to handle them on this thread (serial)
+   */
+  private void acceptLoop(ServerSocketChannel listener, ExecutorService executor) {
+    try {
+      while (listener.isOpen()) {
+        SocketChannel sock = listener.accept();
+        long accepted = System.nanoTime();
+        if (executor == null) {
+          handleConnection(sock, accepted);
+        } else {
+          try {
+            executor.execute(() -> handleConnection(sock, accepted));
+          } catch (RejectedExecutionException e) {
+            reject(sock);
+          }
+        }
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Answers a connection that found the worker queue full with a 503 right on the
+   * accept thread, without waiting for the request
+   */
+  private void reject(SocketChannel channel) {
+    HttpResponse response = rejected();
+    try (SocketChannel c = channel) {
+      c.configureBlocking(false);
+      // a fresh socket buffer takes the whole response, the write does not block
+      metrics.bytesOut(c.write(ByteBuffer.wrap(response.toBytes())));
+      c.shutdownOutput();
+      // closing with unread request bytes would send a reset, which may discard the 503
+      // before the client read it
+      c.read(ByteBuffer.allocate(4096));
+    } catch (IOException e) {
+      // the client is gone, nothing to tell it
+    }
+  }
+
+  /**
+   * @return a 503 that tells the client to come back later, for requests the server has
+   *         no room for
+   */
+  static HttpResponse overloaded() {
+    return HttpResponse.html(503, "Service Unavailable", "<html>The server is busy, please try again later</html>")
+        .setHeader("Retry-After", Integer.toString(AdmissionController.RETRY_AFTER));
+  }
+
+  /**
+   * Counts a request or connection that was turned away because the worker queue was full
+   */
+  HttpResponse rejected() {
+    HttpResponse response = overloaded();
+    rejected.handled(response.getStatus(), 0);
+    return response.setRoute(rejected);
+  }
+
+  /**
+   * Serves all requests of one connection until the client closes it, sends
+   * "Connection: close", stays idle longer than the keep-alive timeout or reached the
+   * maximum number of requests per connection.
+   * Runs on the accept thread (serial) or on a worker thread (pooled, virtual).
+   * @param channel accepted client connection (blocking)
+   * @param accepted System.nanoTime() of the accept, the time the connection waited for a
+   *                 worker counts for the admission control of its first request
+   */
+  private void handleConnection(SocketChannel channel, long accepted) {
+    metrics.connectionOpened();
+    try (SocketChannel c = channel;
+         Socket s = c.socket();
+         InputStream in = s.getInputStream();
+         OutputStream out = new BufferedOutputStream(s.getOutputStream())) {
+      s.setSoTimeout(KEEP_ALIVE_TIMEOUT);
+      // one receive buffer and one request object for all requests of the connection
+      RequestDecoder decoder = new RequestDecoder();
+      int served = 0;
+      boolean keepAlive = true;
+      while (keepAlive) {
+        HttpResponse response;
+        long parseStart = System.nanoTime();
+        long parseTime = 0; // only the parsing, not the waiting for bytes
         try {
-          server.close();
-        } catch (IOException e) {
-          // TODO Auto-generated catch block
-          e.printStackTrace();
+          HttpRequest request = decoder.next();
+          while (request == null) {
+            parseTime += System.nanoTime() - parseStart;
+            int read = decoder.fill(in);
+            if (read < 0) {
+              return; // client closed the connection
+            }
+            metrics.bytesIn(read);
+            parseStart = System.nanoTime();
+            request = decoder.next();
+          }
+          parseTime += System.nanoTime() - parseStart;
+          served++;
+          // in serial mode an open connection would block every other client, so we close it
+          keepAlive = request.isKeepAlive() && mode != ExecutionMode.SERIAL && served < MAX_KEEP_ALIVE_REQUESTS;
+          response = handle(request, served == 1 ? accepted : System.nanoTime());
+          keepAlive = keepAlive && response.hasDelimitedBody();
+        } catch (HttpException e) {
+          // the stream position is unknown after a bad request, answer and close
+          keepAlive = false;
+          response = badRequest(e);
         }
+        long writeStart = System.nanoTime();
+        metrics.bytesOut(response.writeTo(out, channel, keepAlive));
+        // pipelined requests that are already buffered get their responses in one write
+        if (!decoder.hasBufferedBytes() && in.available() == 0) {
+          out.flush();
+        }
+        response.getRoute().parse.record(parseTime);
+        response.getRoute().write.record(System.nanoTime() - writeStart);
       }
+      out.flush();
+    } catch (SocketTimeoutException e) {
+      // idle keep-alive connection, just close it
+    } catch (IOException e) {
+      LOG.warn("Connection failed", e);
+    } finally {
+      metrics.connectionClosed();
+    }
+  }
+
+  /**
+   * Answers a request that could not be parsed, counted as unmatched
+   */
+  HttpResponse badRequest(HttpException e) {
+    HttpResponse response = HttpResponse.html(e.getStatus(), e.getReason(), "<html>" + e.getMessage() + "</html>");
+    metrics.unmatched.handled(response.getStatus(), 0);
+    return response.setRoute(metrics.unmatched);
+  }
+
+  /**
+   * Runs the routes for a request, used by the blocking engines
+   * @param request the parsed request
+   * @param received System.nanoTime() when the request arrived, the time since then counts
+   *                 for the admission control
+   * @return the response, 500 if a route crashed, 503 if the server is at its limit
+   */
+  HttpResponse handle(HttpRequest request, long received) {
+    long start = System.nanoTime();
+    Handler handler = findHandler(request);
+    if (!isLimited(handler)) {
+      return handle(request, handler, start);
+    }
+    if (!admission.tryAcquire()) {
+      return measured(overloaded(), handler, start);
     }
+    try {
+      return handle(request, handler, start);
+    } finally {
+      admission.release(System.nanoTime() - received);
+    }
+  }
+
+  private HttpResponse handle(HttpRequest request, Handler handler, long start) {
+    boolean http11 = request.getVersion().equals("HTTP/1.1");
+    String encoding = Compression.negotiate(request.getHeader("Accept-Encoding"));
+    HttpResponse response;
+    try {
+      response = forClient(createResponse(request, handler), http11, encoding);
+    } catch (RuntimeException e) {
+      // a route crashed (e.g. missing parameter), answer instead of dropping the connection
+      LOG.error("Route crashed: {}", request.getPath(), e);
+      response = HttpResponse.html(500, "Internal Server Error", "<html>ERROR: " + e + "</html>");
+    }
+    return measured(response, handler, start);
+  }
+
+  /**
+   * Runs the routes for a request without waiting for routes that complete later
+   * (see AsyncHandler), used by the nio engine
+   * @param request the parsed request
+   * @param received System.nanoTime() when the request was read, the time it waited for
+   *                 a worker counts for the admission control
+   * @return completes with the response, never exceptionally
+   */
+  CompletableFuture<HttpResponse> handleAsync(HttpRequest request, long received) {
+    long start = System.nanoTime();
+    Handler handler = findHandler(request);
+    if (!isLimited(handler)) {
+      return handleAsync(request, handler, start);
+    }
+    if (!admission.tryAcquire()) {
+      return CompletableFuture.completedFuture(measured(overloaded(), handler, start));
+    }
+    return handleAsync(request, handler, start).whenComplete((response, e) -> admission.release(System.nanoTime() - received));
+  }
+
+  private CompletableFuture<HttpResponse> handleAsync(HttpRequest request, Handler handler, long start) {
+    if (!(handler instanceof AsyncHandler)) {
+      return CompletableFuture.completedFuture(handle(request, handler, start));
+    }
+    // read everything needed from the request now, it is reused for the next one
+    boolean http11 = request.getVersion().equals("HTTP/1.1");
+    String encoding = Compression.negotiate(request.getHeader("Accept-Encoding"));
+    CompletableFuture<HttpResponse> response;
+    try {
+      String path = request.getPath();
+      response = ((AsyncHandler) handler).handleAsync(request).thenApply(r -> forClient(r, http11, encoding)).exceptionally(e -> {
+        LOG.error("Route crashed: {}", path, e);
+        return HttpResponse.html(500, "Internal Server Error", "<html>ERROR: " + e.getCause() + "</html>");
+      });
+    } catch (RuntimeException e) {
+      LOG.error("Route crashed: {}", request.getPath(), e);
+      response = CompletableFuture.completedFuture(
+          HttpResponse.html(500, "Internal Server Error", "<html>ERROR: " + e + "</html>"));
+    }
+    return response.thenApply(r -> measured(r, handler, start));
+  }
+
+  /**
+   * @return whether the request counts for the admission control, requests that match no
+   *         route are cheap, /metrics must answer most when the server is overloaded and
+   *         routes in a bulkhead are limited by its threads, queue and timeout (a slow
+   *         GitHub would otherwise lower the limit for the cheap routes too)
+   */
+  private boolean isLimited(Handler handler) {
+    return handler != null && handler != metricsHandler && !(handler instanceof Bulkhead.Isolated);
+  }
+
+  /**
+   * @return the handler of the route or null if no route matches (or it is no GET or POST)
+   */
+  private Handler findHandler(HttpRequest request) {
+    if (request.isMethod("GET")) {
+      return router.find(request);
+    }
+    return request.isMethod("POST") ? postRouter.find(request) : null;
+  }
+
+  /**
+   * Counts the response for its route, the engines add the parse and write times
+   * @param start System.nanoTime() when the route was looked up
+   */
+  private HttpResponse measured(HttpResponse response, Handler handler, long start) {
+    Metrics.Route route = handler != null ? routeMetrics.get(handler) : metrics.unmatched;
+    route.handled(response.getStatus(), System.nanoTime() - start);
+    return response.setRoute(route);
+  }
+
+  /**
+   * Compresses text bodies if the client accepts it (see Compression). HTTP/1.0 clients do
+   * not know chunked bodies, they get streamed bodies unframed and the connection is
+   * closed after them.
+   */
+  private static HttpResponse forClient(HttpResponse response, boolean http11, String encoding) {
+    Compression.encode(response, encoding);
+    if (!http11) {
+      response.setChunked(false);
+    }
+    return response;
   }
 
   /**
@@ -82,137 +504,289 @@ class WebServer {
 
   private Random random = new Random();
 
-  /**
-   * Reads in socket stream and generates a response
-   * @param inStream HTTP input stream from socket
-   * @return the byte encoded HTTP response
-   */
-  public byte[] createResponse(InputStream inStream) {
-
-    byte[] response = null;
-    BufferedReader in = null;
-
-    try {
+  private final Handler metricsHandler = this::metrics;
 
-      // Read from socket's input stream. Must use an
-      // InputStreamReader to bridge from streams to a reader
-      in = new BufferedReader(new InputStreamReader(inStream, "UTF-8"));
+  /** own threads and queues for the slow /github and the cheap computing routes */
+  private final Bulkhead githubBulkhead = bulkhead("github", 4, 8, GITHUB_TIMEOUT + 2000);
+  private final Bulkhead multiplyBulkhead = bulkhead("multiply", COMPUTE_THREADS, 256, 1000);
+  private final Bulkhead currentGradeBulkhead = bulkhead("currentGrade", COMPUTE_THREADS, 256, 1000);
+  private final Bulkhead cashierBulkhead = bulkhead("cashier", COMPUTE_THREADS, 256, 1000);
 
-      // Get header and save the request from the GET line:
-      // example GET format: GET /index.html HTTP/1.1
+  /**
+   * All GET routes of the server, see the comment at the top for what they do. The slow
+   * /github and the cheap computing routes run in their own bulkheads, so waiting for
+   * GitHub does not take the threads of the others.
+   */
+  private final Router router = new Router()
+      .addExact("", metered("root", this::root))
+      .addExact("json", metered("json", this::json))
+      .addExact("random", metered("random", this::randomPage))
+      .addPrefix("file", metered("file", this::file))
+      .addExact("multiply", metered("multiply", multiplyBulkhead.wrap(this::multiply)))
+      .addExact("github", metered("github", githubBulkhead.wrap((AsyncHandler) this::github)))
+      .addExact("currentGrade", metered("currentGrade", currentGradeBulkhead.wrap(this::currentGrade)))
+      .addExact("cashier", metered("cashier", cashierBulkhead.wrap(this::cashier)))
+      .addExact("metrics", metered("metrics", metricsHandler));
 
-      String request = null;
+  /**
+   * All POST routes, the batch variants of the computing routes (see Batch). They share
+   * the bulkhead of their single route.
+   */
+  private final Router postRouter = new Router()
+      .addExact("multiply/batch", metered("multiplyBatch",
+          multiplyBulkhead.wrap(request -> Batch.run(request, Batch.MULTIPLY, Batch::multiply))))
+      .addExact("currentGrade/batch", metered("currentGradeBatch",
+          currentGradeBulkhead.wrap(request -> Batch.run(request, Batch.CURRENT_GRADE, Batch::currentGrade))))
+      .addExact("cashier/batch", metered("cashierBatch",
+          cashierBulkhead.wrap(request -> Batch.run(request, Batch.CASHIER, Batch::cashier))));
 
-      boolean done = false;
-      while (!done) {
-        String line = in.readLine();
+  /**
+   * Creates the bulkhead of a route (see Bulkhead) and shows it in the metrics, the
+   * defaults can be changed per route, e.g. -Dbulkhead.github.threads=8
+   * @param threads threads of the route
+   * @param queue requests that may wait for them, more are answered with 503
+   * @param timeout time in ms until a request is answered with 503
+   */
+  private Bulkhead bulkhead(String name, int threads, int queue, long timeout) {
+    Bulkhead bulkhead = Bulkhead.configured(name, threads, queue, timeout);
+    metrics.bulkhead(bulkhead);
+    return bulkhead;
+  }
 
-        System.out.println("Received: " + line);
+  /**
+   * Gives the handler its own metrics under the name of the route
+   */
+  private Handler metered(String name, Handler handler) {
+    routeMetrics.put(handler, metrics.route(name));
+    return handler;
+  }
 
-        // find end of header("\n\n")
-        if (line == null || line.equals(""))
-          done = true;
-        // parse GET format ("GET <path> HTTP/1.1")
-        else if (line.startsWith("GET")) {
-          int firstSpace = line.indexOf(" ");
-          int secondSpace = line.indexOf(" ", firstSpace + 1);
+  /**
+   * Generates the response for a parsed request
+   * @param httpRequest the request read from the socket
+   * @return the HTTP response
+   */
+  public HttpResponse createResponse(HttpRequest httpRequest) {
+    return createResponse(httpRequest, findHandler(httpRequest));
+  }
 
-          // extract the request, basically everything after the GET up to HTTP/1.1
-          request = line.substring(firstSpace + 2, secondSpace);
-        }
+  private HttpResponse createResponse(HttpRequest httpRequest, Handler handler) {
+    // only GET requests are supported, and POST for the batch routes
+    // example request line: GET /index.html HTTP/1.1
+    if (handler == null && !httpRequest.isMethod("GET")) {
+      return HttpResponse.html(400, "Bad Request", "<html>Illegal request: no GET</html>");
+    }
 
-      }
-      System.out.println("FINISHED PARSING HEADER\n");
+    if (handler == null) {
+      // if the request is not recognized at all
+      return HttpResponse.html(400, "Bad Request", "I am not sure what you want me to do...");
+    }
 
-      // Generate an appropriate response to the user
-      if (request == null) {
-        response = "<html>Illegal request: no GET</html>".getBytes();
-      } else {
-        // create output buffer
-        StringBuilder builder = new StringBuilder();
-        // NOTE: output from buffer is at the end
+    try {
+      return handler.handle(httpRequest);
+    } catch (IOException e) {
+      LOG.error("Route failed: {}", httpRequest.getPath(), e);
+      return HttpResponse.html(500, "Internal Server Error", "<html>ERROR: " + e.getMessage() + "</html>");
+    }
+  }
 
-        if (request.length() == 0) {
-          // shows the default directory page
+  /**
+   * Shows the default directory page (root.html with the list of files in www/)
+   */
+  private HttpResponse root(HttpRequest httpRequest) throws IOException {
+    // the rendered page comes from the cache, only a miss reads root.html and lists www/
+    return cachedPage(httpRequest, "www/root.html", "text/html; charset=utf-8", () -> {
+      // opens the root.html file
+      String template = new String(readFileInBytes(new File("www/root.html")), StandardCharsets.UTF_8);
+      // performs a template replacement in the page
+      return template.replace("${links}", buildFileList()).getBytes(StandardCharsets.UTF_8);
+    });
+  }
 
-          // opens the root.html file
-          String page = new String(readFileInBytes(new File("www/root.html")));
-          // performs a template replacement in the page
-          page = page.replace("${links}", buildFileList());
+  /**
+   * Shows the JSON of a random image and sets the header name for that image
+   */
+  private HttpResponse json(HttpRequest httpRequest) throws IOException {
+    HttpResponse response = null;
+    StringBuilder builder = new StringBuilder();
 
-          // Generate response
-          builder.append("HTTP/1.1 200 OK\n");
-          builder.append("Content-Type: text/html; charset=utf-8\n");
-          builder.append("\n");
-          builder.append(page);
+    // pick a index from the map
+    int index = random.nextInt(_images.size());
 
-        } else if (request.equalsIgnoreCase("json")) {
-          // shows the JSON of a random image and sets the header name for that image
+    // pull out the information
+    String header = (String) _images.keySet().toArray()[index];
+    String url = _images.get(header);
 
-          // pick a index from the map
-          int index = random.nextInt(_images.size());
+    // Generate response
+    response = new HttpResponse(200, "OK", "application/json; charset=utf-8");
+    builder.append("{");
+    builder.append("\"header\":\"").append(header).append("\",");
+    builder.append("\"image\":\"").append(url).append("\"");
+    builder.append("}");
 
-          // pull out the information
-          String header = (String) _images.keySet().toArray()[index];
-          String url = _images.get(header);
+    return finish(response, builder);
+  }
 
-          // Generate response
-          builder.append("HTTP/1.1 200 OK\n");
-          builder.append("Content-Type: application/json; charset=utf-8\n");
-          builder.append("\n");
-          builder.append("{");
-          builder.append("\"header\":\"").append(header).append("\",");
-          builder.append("\"image\":\"").append(url).append("\"");
-          builder.append("}");
+  /**
+   * Opens the random image page
+   */
+  private HttpResponse randomPage(HttpRequest httpRequest) throws IOException {
+    // open the index.html (or take it from the cache)
+    File file = new File("www/index.html");
+    return cachedPage(httpRequest, "www/index.html", "text/html; charset=utf-8", () -> readFileInBytes(file));
+  }
 
-        } else if (request.equalsIgnoreCase("random")) {
-          // opens the random image page
+  /**
+   * Answers with a cached page, compressed if the client accepts it. The compressed
+   * variants are cached next to the page (key;gzip, key;deflate), so every page is
+   * compressed only once until www/ changes.
+   */
+  private HttpResponse cachedPage(HttpRequest httpRequest, String key, String contentType, StaticCache.Loader loader)
+      throws IOException {
+    HttpResponse response = new HttpResponse(200, "OK", contentType).setHeader("Vary", "Accept-Encoding");
+    byte[] page = cache.get(key, loader);
+    String encoding = Compression.negotiate(httpRequest.getHeader("Accept-Encoding"));
+    if (encoding == null || page.length < Compression.THRESHOLD) {
+      return response.setBody(page);
+    }
+    byte[] compressed = cache.get(key + ";" + encoding, () -> Compression.compress(page, encoding));
+    return response.setHeader("Content-Encoding", encoding).setBody(compressed);
+  }
 
-          // open the index.html
-          File file = new File("www/index.html");
+  /**
+   * Shows the metrics of the server in the Prometheus text format
+   */
+  private HttpResponse metrics(HttpRequest httpRequest) throws IOException {
+    return new HttpResponse(200, "OK", "text/plain; version=0.0.4; charset=utf-8").setBody(metrics.toText());
+  }
 
-          // Generate response
-          builder.append("HTTP/1.1 200 OK\n");
-          builder.append("Content-Type: text/html; charset=utf-8\n");
-          builder.append("\n");
-          builder.append(new String(readFileInBytes(file)));
+  /**
+   * Makes the counters of the caches, the GitHub client and the chunk buffers part of the metrics
+   */
+  private void registerGauges() {
+    metrics.gauge("static_cache_hits_total", cache::getHits);
+    metrics.gauge("static_cache_misses_total", cache::getMisses);
+    metrics.gauge("static_cache_evictions_total", cache::getEvictions);
+    metrics.gauge("static_cache_invalidations_total", cache::getInvalidations);
+    metrics.gauge("static_cache_bytes", cache::getBytes);
+    metrics.gauge("github_cache_hits_total", upstream::getHits);
+    metrics.gauge("github_revalidations_total", upstream::getRevalidations);
+    metrics.gauge("github_fetches_total", upstream::getFetches);
+    metrics.gauge("github_flight_calls_total", githubFlights::getCalls);
+    metrics.gauge("github_flight_coalesced_total", githubFlights::getCoalesced);
+    metrics.gauge("github_flight_timeouts_total", githubFlights::getTimeouts);
+    metrics.gauge("github_flights_in_flight", githubFlights::getInFlight);
+    metrics.gauge("chunk_buffers_allocated_total", ChunkedOutputStream.POOL::getAllocated);
+    metrics.gauge("admission_limit", admission::getLimit);
+    metrics.gauge("admission_in_flight", admission::getInFlight);
+    metrics.gauge("admission_admitted_total", admission::getAdmitted);
+    metrics.gauge("admission_rejected_total", admission::getRejected);
+  }
 
-        } else if (request.contains("file/")) {
-          // tries to find the specified file and shows it or shows an error
+  Metrics getMetrics() {
+    return metrics;
+  }
 
-          // take the path and clean it. try to open the file
-          File file = new File(request.replace("file/", ""));
+  /**
+   * Tries to find the specified file and sends it or shows an error
+   */
+  private HttpResponse file(HttpRequest httpRequest) throws IOException {
+    HttpResponse response = null;
+    StringBuilder builder = new StringBuilder();
+    String request = httpRequest.getPath();
+
+    // take the path and clean it. try to open the file
+    String name = URLDecoder.decode(request.replace("file/", ""), "UTF-8");
+    File file = new File(name);
+    Path root = Paths.get("").toAbsolutePath().normalize();
+    Path path = file.toPath().toAbsolutePath().normalize();
+    String encoding = Compression.negotiate(httpRequest.getHeader("Accept-Encoding"));
+
+    // Generate response
+    if (!path.startsWith(root)) { // no ../ out of the server directory
+      response = new HttpResponse(403, "Forbidden", "text/html; charset=utf-8");
+      builder.append("Access denied: " + name);
+    } else if (file.isFile()) { // success
+      long length = file.length();
+      long lastModified = file.lastModified();
+      // strong tag of this version of the file, the compressed variants get their own
+      String etag = "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+      ByteRanges ranges = ByteRanges.ifRange(httpRequest.getHeader("If-Range"), etag, lastModified)
+          ? ByteRanges.parse(httpRequest.getHeader("Range"), length) : null;
+
+      if (ranges != null) {
+        // ranges are counted in the bytes of the file, never compressed
+        response = partial(path, contentType(file.getName()), length, ranges).setHeader("ETag", etag);
+      } else if (encoding != null && Compression.isCompressible(contentType(file.getName()))
+          && length >= Compression.THRESHOLD && length <= Compression.MAX_FILE) {
+        // text files are compressed once and cached, the key changes when the file does
+        String key = path + ":" + lastModified + ":" + length + ";" + encoding;
+        byte[] compressed = cache.get(key, () -> Compression.compress(Files.readAllBytes(path), encoding));
+        response = new HttpResponse(200, "OK", contentType(file.getName()))
+            .setHeader("Content-Encoding", encoding).setHeader("Vary", "Accept-Encoding")
+            .setHeader("ETag", etag.substring(0, etag.length() - 1) + "-" + encoding + "\"");
+        response.setBody(compressed);
+      } else {
+        // the body is streamed from the file when the response is written, never read into memory
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        response = new HttpResponse(200, "OK", contentType(file.getName()))
+            .setHeader("ETag", etag).setHeader("Accept-Ranges", "bytes");
+        response.setBody(channel, 0, channel.size());
+      }
+      response.setHeader("Last-Modified", ByteRanges.httpDate(lastModified));
+    } else { // failure
+      response = new HttpResponse(404, "Not Found", "text/html; charset=utf-8");
+      builder.append("File not found: " + file);
+    }
 
-          // Generate response
-          if (file.exists()) { // success
-            builder.append("HTTP/1.1 200 OK\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n");
-            builder.append("\n");
-            builder.append("Would theoretically be a file but removed this part, you do not have to do anything with it for the assignment");
-          } else { // failure
-            builder.append("HTTP/1.1 404 Not Found\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n");
-            builder.append("\n");
-            builder.append("File not found: " + file);
-          }
-        } else if (request.contains("multiply?")) {
-          // This multiplies two numbers, there is NO error handling, so when
-          // wrong data is given this just crashes
+    return finish(response, builder);
+  }
 
-          Map<String, String> query_pairs = new LinkedHashMap<String, String>();
-          // extract path parameters
-          String parameters = request.replace("multiply?", "");
+  /**
+   * Answers a Range request of a file (see ByteRanges). A single range is sent like a whole
+   * file with transferTo from its position, several ranges as multipart/byteranges with
+   * positional reads, so a range costs its own length and not the file's. 416 if no range
+   * lies within the file.
+   */
+  private static HttpResponse partial(Path path, String contentType, long length, ByteRanges ranges)
+      throws IOException {
+    if (!ranges.isSatisfiable()) {
+      return HttpResponse.html(416, "Range Not Satisfiable", "<html>Range not satisfiable</html>")
+          .setHeader("Content-Range", ByteRanges.unsatisfied(length));
+    }
+    HttpResponse response;
+    if (ranges.size() == 1) {
+      FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+      response = new HttpResponse(206, "Partial Content", contentType)
+          .setHeader("Content-Range", ranges.contentRange(0));
+      response.setBody(channel, ranges.first(0), ranges.length(0));
+    } else {
+      response = new HttpResponse(206, "Partial Content", ranges.multipartType());
+      response.setBody(out -> {
+        // opened on every write, the writer runs again for a copied response
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+          ranges.writeMultipart(out, channel, contentType);
+        }
+      });
+    }
+    return response.setHeader("Accept-Ranges", "bytes");
+  }
 
-          if (!parameters.equals("")) {
-            query_pairs = splitQuery(request.replace("multiply?", ""));
-          }
+  /**
+   * Multiplies two numbers, e.g. /multiply?num1=3&num2=4
+   */
+  private HttpResponse multiply(HttpRequest httpRequest) throws IOException {
+    HttpResponse response = null;
+    StringBuilder builder = new StringBuilder();
 
-          System.out.println("query_pairs: " + query_pairs);
+    // This multiplies two numbers, there is NO error handling, so when
+    // wrong data is given this just crashes
 
+    // the parameters are read straight from the request line, see HttpRequest.getParameter
 
-          // extract required fields from parameters
-          Integer num1 = null; // Integer.parseInt(query_pairs.get("num1"));
-          Integer num2 = null; // Integer.parseInt(query_pairs.get("num2"));
+    // extract required fields from parameters
+    Integer num1 = null; // Integer.parseInt(query_pairs.get("num1"));
+    Integer num2 = null; // Integer.parseInt(query_pairs.get("num2"));
 
 //          // do math
 //          Integer result = num1 * num2;
@@ -249,320 +823,306 @@ class WebServer {
 ////            valid = 0;
 ////          }
 
-          // TODO: Include error handling here with a correct error code and
-          // a response that makes sense
-
-          if (query_pairs.size() == 0 || !query_pairs.containsKey("num1") || !query_pairs.containsKey("num2")) {
-            builder.append("HTTP/1.1 400 Bad Request\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n");
-            builder.append("\n");
-            builder.append("Error Code 400: Please enter two query parameters, e.g. num1=1&num2=2\n");
-          } else {
-            try {
-              num1 = Integer.parseInt(query_pairs.get("num1"));
-              num2 = Integer.parseInt(query_pairs.get("num2"));
-
-              // do math
-              Integer result = num1 * num2;
-
-              // Generate response
-              builder.append("HTTP/1.1 200 OK\n");
-              builder.append("Content-Type: text/html; charset=utf-8\n");
-              builder.append("\n");
-              builder.append("Result is: " + result);
-            } catch (NumberFormatException e) {
-              builder.append("HTTP/1.1 406 Not Acceptable\n");
-              builder.append("Content-Type: text/html; charset=utf-8\n");
-              builder.append("\n");
-              builder.append("Error Code 406: Please enter integer values only.\n");
-            }
-          }
+    // TODO: Include error handling here with a correct error code and
+    // a response that makes sense
 
-        } else if (request.contains("github?")) {
-          // pulls the query from the request and runs it with GitHub's REST API
-          // check out https://docs.github.com/rest/reference/
-          //
-          // HINT: REST is organized by nesting topics. Figure out the biggest one first,
-          //     then drill down to what you care about
-          // "Owner's repo is named RepoName. Example: find RepoName's contributors" translates to
-          //     "/repos/OWNERNAME/REPONAME/contributors"
+    if (!httpRequest.hasParameter("num1") || !httpRequest.hasParameter("num2")) {
+      response = new HttpResponse(400, "Bad Request", "text/html; charset=utf-8");
+      builder.append("Error Code 400: Please enter two query parameters, e.g. num1=1&num2=2\n");
+    } else {
+      try {
+        num1 = Integer.parseInt(httpRequest.getParameter("num1"));
+        num2 = Integer.parseInt(httpRequest.getParameter("num2"));
+
+        // do math
+        Integer result = num1 * num2;
+
+        // Generate response
+        response = new HttpResponse(200, "OK", "text/html; charset=utf-8");
+        builder.append("Result is: " + result);
+      } catch (NumberFormatException e) {
+        response = new HttpResponse(406, "Not Acceptable", "text/html; charset=utf-8");
+        builder.append("Error Code 406: Please enter integer values only.\n");
+      }
+    }
 
-          Map<String, String> query_pairs = new LinkedHashMap<String, String>();
+    return finish(response, builder);
+  }
 
-          String parameters = request.replace("github?", "");
+  /**
+   * Runs the query with GitHub's REST API, e.g. /github?query=users/amehlhase316/repos
+   */
+  private CompletableFuture<HttpResponse> github(HttpRequest httpRequest) {
+    // pulls the query from the request and runs it with GitHub's REST API
+    // check out https://docs.github.com/rest/reference/
+    //
+    // HINT: REST is organized by nesting topics. Figure out the biggest one first,
+    //     then drill down to what you care about
+    // "Owner's repo is named RepoName. Example: find RepoName's contributors" translates to
+    //     "/repos/OWNERNAME/REPONAME/contributors"
+
+    String query = httpRequest.getParameter("query");
+    String[] queryParam = query == null ? new String[0] : query.split("/");
+
+    // check the query before anything is sent to GitHub
+    if (queryParam.length != 3 || !queryParam[0].equals("users") || !queryParam[2].equals("repos")) {
+      return CompletableFuture.completedFuture(HttpResponse.html(400, "Bad Request",
+          "Please enter query, e.g. query=users/OWNERNAME/repos\n"));
+    }
 
-          if (!parameters.equals("")) {
-            query_pairs = splitQuery(request.replace("github?", ""));
+    // GitHub logins ignore case, so users/Foo/repos and users/foo/repos are the same query
+    String key = "users/" + queryParam[1].toLowerCase() + "/repos";
+
+    // no thread waits for GitHub, the response is built once the JSON arrived. Clients
+    // asking for the same query meanwhile share the request to GitHub and the parsed result
+    return githubFlights.run(key, () -> upstream.get(GITHUB_URL + key)
+        .exceptionally(e -> {
+          LOG.warn("Exception in url request: {}", e.getMessage());
+          return "";
+        })
+        .thenApply(this::githubResponse))
+        .handle((response, e) -> {
+          if (e == null) {
+            // every client gets its own copy of the shared response
+            return response.copy();
           }
+          Throwable cause = e.getCause() != null ? e.getCause() : e;
+          if (cause instanceof TimeoutException) {
+            return HttpResponse.html(504, "Gateway Timeout", "GitHub did not answer in time, please try again.\n");
+          }
+          throw new CompletionException(cause);
+        });
+  }
 
-          String[] queryParam = query_pairs.get("query").split("/");
-          System.out.println("Query size: " + queryParam.length);
-
-          String json = fetchURL("https://api.github.com/" + query_pairs.get("query"));
-          System.out.println("JSON: " + json);
-          System.out.println("JSON size: " + json.length());
+  /**
+   * Lists the repositories in the JSON that GitHub sent for /github
+   * @param json the answer of GitHub, empty if the request failed
+   */
+  private HttpResponse githubResponse(String json) {
+    HttpResponse response = null;
+    StringBuilder builder = new StringBuilder();
+    LOG.debug("JSON size: {}", json.length());
 
 //          builder.append("HTTP/1.1 200 OK\n");
 //          builder.append("Content-Type: text/html; charset=utf-8\n");
 //          builder.append("\n");
 //          builder.append("Check the todos mentioned in the Java source file");
-          // TODO: Parse the JSON returned by your fetch and create an appropriate
-          // response based on what the assignment document asks for
-
-          if (query_pairs.size() == 0) {
-            builder.append("HTTP/1.1 400 Bad Request\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n");
-            builder.append("\n");
-            builder.append("Please enter query, e.g. query=users/OWNERNAME/repos\n");
-          } else if (queryParam.length != 3) {
-            builder.append("HTTP/1.1 400 Bad Request\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n");
-            builder.append("\n");
-            builder.append("Please enter query, e.g. query=users/OWNERNAME/repos\n");
-          } else if (!queryParam[0].equals("users") || !queryParam[2].equals("repos")) {
-            builder.append("HTTP/1.1 400 Bad Request\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n");
-            builder.append("\n");
-            builder.append("Please enter query, e.g. query=users/OWNERNAME/repos\n");
-          } else if (json.length() < 1) {
-            builder.append("HTTP/1.1 404 Not Found\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n");
-            builder.append("\n");
-            builder.append("Github could not be found. Please try again.\n");
-          } else {
-            JSONArray gitHubArray = new JSONArray(json);
-
-            if (gitHubArray.length() == 0) {
-              builder.append("HTTP/1.1 204 No Content\n");
-              builder.append("Content-Type: text/html; charset=utf-8\n");
-              builder.append("\n");
-              builder.append("This github does not have public repositories.\n");
-            } else {
-              builder.append("HTTP/1.1 200 OK\n");
-              builder.append("Content-Type: text/html; charset=utf-8\n");
-              builder.append("\n");
-
-              for (int i = 0; i < gitHubArray.length(); i++) {
-                JSONObject newRepo = gitHubArray.getJSONObject(i);
-
-                String repoName = newRepo.getString("full_name");
-                int repoID = newRepo.getInt("id");
-                String login = newRepo.getJSONObject("owner").getString("login");
-
-                builder.append("Repository " + i + " - fullname: " + repoName + " id: " + repoID + " login: " + login + "\n");
-                builder.append("\n");
-              }
-            }
-          }
-        } else if (request.contains("currentGrade?")) {
-          // This uses the points earned on assignments, quizzes, and the exam in SER321 to
-          // calculate the individuals overall grade in the class.
+    // TODO: Parse the JSON returned by your fetch and create an appropriate
+    // response based on what the assignment document asks for
+
+    if (json.length() < 1) {
+      response = new HttpResponse(404, "Not Found", "text/html; charset=utf-8");
+      builder.append("Github could not be found. Please try again.\n");
+    } else {
+      JSONArray gitHubArray = new JSONArray(json);
 
-          Map<String, String> query_pairs = new LinkedHashMap<String, String>();
-          // extract path parameters
-          String parameters = request.replace("currentGrade?", "");
+      if (gitHubArray.length() == 0) {
+        // 200 and not 204 No Content, a 204 cannot carry the message
+        response = new HttpResponse(200, "OK", "text/html; charset=utf-8");
+        builder.append("This github does not have public repositories.\n");
+      } else {
+        response = new HttpResponse(200, "OK", "text/html; charset=utf-8");
+
+        // the list can be long, so it is written straight to the client in chunks instead of
+        // collecting it in the builder first
+        response.setBody(out -> {
+          Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+          for (int i = 0; i < gitHubArray.length(); i++) {
+            JSONObject newRepo = gitHubArray.getJSONObject(i);
+
+            String repoName = newRepo.getString("full_name");
+            int repoID = newRepo.getInt("id");
+            String login = newRepo.getJSONObject("owner").getString("login");
 
-          if (!parameters.equals("")) {
-            query_pairs = splitQuery(parameters);
+            writer.write("Repository " + i + " - fullname: " + repoName + " id: " + repoID + " login: " + login + "\n");
+            writer.write("\n");
           }
+          writer.flush();
+        });
+      }
+    }
 
-          System.out.println("query_pairs: " + query_pairs);
-
-          // extract required fields from parameters
-          Double assignment = null; // Integer.parseInt(query_pairs.get("assign"));
-          Double quiz = null; // Integer.parseInt(query_pairs.get("quiz"));
-          Double exam = null; // Integer.parseInt(query_pairs.get("exam"));
-
-          Double assignTotal = 600.0;
-          Double quizTotal = 100.0;
-          Double examTotal = 300.0;
-
-          // TODO: Include error handling here with a correct error code and
-          // a response that makes sense
-
-          if (query_pairs.size() == 0) {
-            builder.append("HTTP/1.1 400 Bad Request\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n");
-            builder.append("\n");
-            builder.append("Please enter at least the assignment and quiz parameters, e.g. assign=540&quiz=85\n");
-          } else if (!query_pairs.containsKey("assign")) {
-            builder.append("HTTP/1.1 400 Bad Request\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n");
-            builder.append("\n");
-            builder.append("Please enter the assignment parameter, e.g. assign=540\n");
-          } else if (!query_pairs.containsKey("quiz")) {
-            builder.append("HTTP/1.1 400 Bad Request\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n");
-            builder.append("\n");
-            builder.append("Please enter the quiz parameter, e.g. quiz=85\n");
-          } else {
-              try {
-                assignment = Double.parseDouble(query_pairs.get("assign"));
-                quiz = Double.parseDouble(query_pairs.get("quiz"));
-
-                if (!query_pairs.containsKey("exam")) {
-                  exam = 0.0;
-                } else {
-                  exam = Double.parseDouble(query_pairs.get("exam"));
-                }
-
-                // do math
-                Double grade = ((assignment / assignTotal * 60.0) + (quiz / quizTotal * 10.0) + (exam / examTotal * 30.0));
-
-                String letterGrade = "";
-                if (grade >= 97.0) {
-                  letterGrade = "A+";
-                } else if (grade >= 93.0) {
-                  letterGrade = "A";
-                } else if (grade >= 90.0) {
-                  letterGrade = "A-";
-                } else if (grade >= 87.0) {
-                  letterGrade = "B+";
-                } else if (grade >= 83.0) {
-                  letterGrade = "B";
-                } else if (grade >= 80.0) {
-                  letterGrade = "B-";
-                } else if (grade >= 77.0) {
-                  letterGrade = "C+";
-                } else if (grade >= 73.0) {
-                  letterGrade = "C";
-                } else if (grade >= 70.0) {
-                  letterGrade = "C-";
-                } else if (grade >= 67.0) {
-                  letterGrade = "D+";
-                } else if (grade >= 63.0) {
-                  letterGrade = "D";
-                } else if (grade >= 60.0) {
-                  letterGrade = "D-";
-                } else {
-                  letterGrade = "F";
-                }
-
-                // Generate response
-                builder.append("HTTP/1.1 200 OK\n");
-                builder.append("Content-Type: text/html; charset=utf-8\n");
-                builder.append("\n");
-                builder.append("Calculation is: " + grade + "     CURRENT GRADE: " + letterGrade + "\n");
-              } catch (NumberFormatException e) {
-                builder.append("HTTP/1.1 406 Not Acceptable\n");
-                builder.append("Content-Type: text/html; charset=utf-8\n");
-                builder.append("\n");
-                builder.append("Please enter number values only.\n");
-              }
-            }
-        } else if (request.contains("cashier?")) {
-          // This calculates the change that needs to be given to a customer based on the total and the amount paid
-          // to the cashier.
+    return finish(response, builder);
+  }
 
-          Map<String, String> query_pairs = new LinkedHashMap<String, String>();
-          // extract path parameters
-          String parameters = request.replace("cashier?", "");
+  /**
+   * Calculates the current grade in SER321, e.g. /currentGrade?assign=540&quiz=85&exam=250
+   */
+  private HttpResponse currentGrade(HttpRequest httpRequest) throws IOException {
+    HttpResponse response = null;
+    StringBuilder builder = new StringBuilder();
+
+    // This uses the points earned on assignments, quizzes, and the exam in SER321 to
+    // calculate the individuals overall grade in the class.
+
+    // the parameters are read straight from the request line, see HttpRequest.getParameter
+
+    // extract required fields from parameters
+    Double assignment = null; // Integer.parseInt(query_pairs.get("assign"));
+    Double quiz = null; // Integer.parseInt(query_pairs.get("quiz"));
+    Double exam = null; // Integer.parseInt(query_pairs.get("exam"));
+
+    Double assignTotal = 600.0;
+    Double quizTotal = 100.0;
+    Double examTotal = 300.0;
+
+    // TODO: Include error handling here with a correct error code and
+    // a response that makes sense
+
+    if (httpRequest.getParameterCount() == 0) {
+      response = new HttpResponse(400, "Bad Request", "text/html; charset=utf-8");
+      builder.append("Please enter at least the assignment and quiz parameters, e.g. assign=540&quiz=85\n");
+    } else if (!httpRequest.hasParameter("assign")) {
+      response = new HttpResponse(400, "Bad Request", "text/html; charset=utf-8");
+      builder.append("Please enter the assignment parameter, e.g. assign=540\n");
+    } else if (!httpRequest.hasParameter("quiz")) {
+      response = new HttpResponse(400, "Bad Request", "text/html; charset=utf-8");
+      builder.append("Please enter the quiz parameter, e.g. quiz=85\n");
+    } else {
+        try {
+          assignment = Double.parseDouble(httpRequest.getParameter("assign"));
+          quiz = Double.parseDouble(httpRequest.getParameter("quiz"));
 
-          if (!parameters.equals("")) {
-            query_pairs = splitQuery(request.replace("cashier?", ""));
+          if (!httpRequest.hasParameter("exam")) {
+            exam = 0.0;
+          } else {
+            exam = Double.parseDouble(httpRequest.getParameter("exam"));
           }
 
-          System.out.println("query_pairs: " + query_pairs);
-
-          // extract required fields from parameters
-          Double price = null; // Integer.parseInt(query_pairs.get("num1"));
-          Double paid = null; // Integer.parseInt(query_pairs.get("num2"));
-
-          // TODO: Include error handling here with a correct error code and
-          // a response that makes sense
-
-          if (query_pairs.size() == 0) {
-            builder.append("HTTP/1.1 400 Bad Request\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n");
-            builder.append("\n");
-            builder.append("Please enter the price and paid parameters, e.g. price=21.50&paid=22.00\n");
-          } else if (!query_pairs.containsKey("price")) {
-            builder.append("HTTP/1.1 400 Bad Request\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n");
-            builder.append("\n");
-            builder.append("Please enter the price parameter, e.g. price=23.23\n");
-          } else if (!query_pairs.containsKey("paid")) {
-            builder.append("HTTP/1.1 400 Bad Request\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n");
-            builder.append("\n");
-            builder.append("Please enter the paid parameter, e.g. paid=24.00\n");
+          // do math
+          Double grade = ((assignment / assignTotal * 60.0) + (quiz / quizTotal * 10.0) + (exam / examTotal * 30.0));
+
+          String letterGrade = "";
+          if (grade >= 97.0) {
+            letterGrade = "A+";
+          } else if (grade >= 93.0) {
+            letterGrade = "A";
+          } else if (grade >= 90.0) {
+            letterGrade = "A-";
+          } else if (grade >= 87.0) {
+            letterGrade = "B+";
+          } else if (grade >= 83.0) {
+            letterGrade = "B";
+          } else if (grade >= 80.0) {
+            letterGrade = "B-";
+          } else if (grade >= 77.0) {
+            letterGrade = "C+";
+          } else if (grade >= 73.0) {
+            letterGrade = "C";
+          } else if (grade >= 70.0) {
+            letterGrade = "C-";
+          } else if (grade >= 67.0) {
+            letterGrade = "D+";
+          } else if (grade >= 63.0) {
+            letterGrade = "D";
+          } else if (grade >= 60.0) {
+            letterGrade = "D-";
           } else {
-            try {
-              price = Double.parseDouble(query_pairs.get("price"));
-              paid = Double.parseDouble(query_pairs.get("paid"));
-
-              if (price < 0 || paid < 0) {
-                builder.append("HTTP/1.1 200 OK\n");
-                builder.append("Content-Type: text/html; charset=utf-8\n");
-                builder.append("\n");
-                builder.append("The payment is not enough, please try again!\n");
-              } else {
-                // do math
-                double change = Math.round((paid.doubleValue() - price.doubleValue()) * 100.0) / 100.0;
-                System.out.println("Change: " + change);
-
-                if (change < 0) {
-                  // Generate response
-                  builder.append("HTTP/1.1 200 OK\n");
-                  builder.append("Content-Type: text/html; charset=utf-8\n");
-                  builder.append("\n");
-                  builder.append("The payment is not enough, please try again!\n");
-                } else {
-                  double dollars = Math.floor(change);
-                  System.out.println("Dollars: " + dollars);
-                  double coins = change - dollars;
-                  System.out.println("Coins: " + coins);
-
-                  int quarters = (int)(coins / 0.25);
-                  if (quarters > 0) {
-                    coins = coins - (quarters * 0.25);
-                  }
-                  int dimes = (int)(coins / 0.10);
-                  if (dimes > 0) {
-                    coins = coins - (dimes * 0.10);
-                  }
-                  int nickels = (int)(coins / 0.05);
-                  if (nickels > 0.0) {
-                    coins = coins - (nickels * 0.05);
-                  }
-                  int pennies = (int)(coins / 0.01);
-                  if (pennies > 0.0) {
-                    coins = coins - (pennies * 0.01);
-                  }
-
-                  // Generate response
-                  builder.append("HTTP/1.1 200 OK\n");
-                  builder.append("Content-Type: text/html; charset=utf-8\n");
-                  builder.append("\n");
-                  builder.append("The change is: " + change + "     DISTRIBUTE COINS:  Quarters - " + quarters + " Dimes - " +
-                          dimes + " Nickels - " + nickels + " Pennies - " + pennies + "\n");
-                }
-              }
-            } catch (NumberFormatException e) {
-              builder.append("HTTP/1.1 406 Not Acceptable\n");
-              builder.append("Content-Type: text/html; charset=utf-8\n");
-              builder.append("\n");
-              builder.append("Please enter number values only.\n");
-            }
+            letterGrade = "F";
           }
 
+          // Generate response
+          response = new HttpResponse(200, "OK", "text/html; charset=utf-8");
+          builder.append("Calculation is: " + grade + "     CURRENT GRADE: " + letterGrade + "\n");
+        } catch (NumberFormatException e) {
+          response = new HttpResponse(406, "Not Acceptable", "text/html; charset=utf-8");
+          builder.append("Please enter number values only.\n");
+        }
+      }
+
+    return finish(response, builder);
+  }
+
+  /**
+   * Calculates the change and the coins to give back, e.g. /cashier?price=21.50&paid=22.00
+   */
+  private HttpResponse cashier(HttpRequest httpRequest) throws IOException {
+    HttpResponse response = null;
+    StringBuilder builder = new StringBuilder();
+
+    // This calculates the change that needs to be given to a customer based on the total and the amount paid
+    // to the cashier.
+
+    // the parameters are read straight from the request line, see HttpRequest.getParameter
+
+    // extract required fields from parameters
+    Double price = null; // Integer.parseInt(query_pairs.get("num1"));
+    Double paid = null; // Integer.parseInt(query_pairs.get("num2"));
+
+    // TODO: Include error handling here with a correct error code and
+    // a response that makes sense
+
+    if (httpRequest.getParameterCount() == 0) {
+      response = new HttpResponse(400, "Bad Request", "text/html; charset=utf-8");
+      builder.append("Please enter the price and paid parameters, e.g. price=21.50&paid=22.00\n");
+    } else if (!httpRequest.hasParameter("price")) {
+      response = new HttpResponse(400, "Bad Request", "text/html; charset=utf-8");
+      builder.append("Please enter the price parameter, e.g. price=23.23\n");
+    } else if (!httpRequest.hasParameter("paid")) {
+      response = new HttpResponse(400, "Bad Request", "text/html; charset=utf-8");
+      builder.append("Please enter the paid parameter, e.g. paid=24.00\n");
+    } else {
+      try {
+        price = Double.parseDouble(httpRequest.getParameter("price"));
+        paid = Double.parseDouble(httpRequest.getParameter("paid"));
+
+        if (price < 0 || paid < 0) {
+          response = new HttpResponse(200, "OK", "text/html; charset=utf-8");
+          builder.append("The payment is not enough, please try again!\n");
         } else {
-          // if the request is not recognized at all
+          // do math
+          double change = Math.round((paid.doubleValue() - price.doubleValue()) * 100.0) / 100.0;
+          LOG.debug("Change: {}", change);
+
+          if (change < 0) {
+            // Generate response
+            response = new HttpResponse(200, "OK", "text/html; charset=utf-8");
+            builder.append("The payment is not enough, please try again!\n");
+          } else {
+            double dollars = Math.floor(change);
+            double coins = change - dollars;
+            LOG.debug("Dollars: {}, coins: {}", dollars, coins);
 
-          builder.append("HTTP/1.1 400 Bad Request\n");
-          builder.append("Content-Type: text/html; charset=utf-8\n");
-          builder.append("\n");
-          builder.append("I am not sure what you want me to do...");
-        }
+            int quarters = (int)(coins / 0.25);
+            if (quarters > 0) {
+              coins = coins - (quarters * 0.25);
+            }
+            int dimes = (int)(coins / 0.10);
+            if (dimes > 0) {
+              coins = coins - (dimes * 0.10);
+            }
+            int nickels = (int)(coins / 0.05);
+            if (nickels > 0.0) {
+              coins = coins - (nickels * 0.05);
+            }
+            int pennies = (int)(coins / 0.01);
+            if (pennies > 0.0) {
+              coins = coins - (pennies * 0.01);
+            }
 
-        // Output
-        response = builder.toString().getBytes();
+            // Generate response
+            response = new HttpResponse(200, "OK", "text/html; charset=utf-8");
+            builder.append("The change is: " + change + "     DISTRIBUTE COINS:  Quarters - " + quarters + " Dimes - " +
+                    dimes + " Nickels - " + nickels + " Pennies - " + pennies + "\n");
+          }
+        }
+      } catch (NumberFormatException e) {
+        response = new HttpResponse(406, "Not Acceptable", "text/html; charset=utf-8");
+        builder.append("Please enter number values only.\n");
       }
-    } catch (IOException e) {
-      e.printStackTrace();
-      response = ("<html>ERROR: " + e.getMessage() + "</html>").getBytes();
     }
 
+    return finish(response, builder);
+  }
+
+  /**
+   * Puts the text collected in the builder into the response, file and cached
+   * responses already carry their body
+   */
+  private static HttpResponse finish(HttpResponse response, StringBuilder builder) {
+    if (builder.length() > 0) {
+      response.setBody(builder.toString());
+    }
     return response;
   }
 
@@ -586,6 +1146,33 @@ class WebServer {
     return query_pairs;
   }
 
+  /**
+   * Guesses the Content-Type from the file name, text types are sent as UTF-8
+   * @param filename name of the file
+   * @return the content type, application/octet-stream if it is unknown
+   */
+  public static String contentType(String filename) {
+    String type = URLConnection.guessContentTypeFromName(filename);
+    if (type == null) {
+      String lower = filename.toLowerCase();
+      if (lower.endsWith(".css")) {
+        type = "text/css";
+      } else if (lower.endsWith(".js")) {
+        type = "application/javascript";
+      } else if (lower.endsWith(".json")) {
+        type = "application/json";
+      } else if (lower.endsWith(".md") || lower.endsWith(".java") || lower.endsWith(".gradle")) {
+        type = "text/plain";
+      } else {
+        return "application/octet-stream";
+      }
+    }
+    if (type.startsWith("text/") || type.equals("application/json") || type.equals("application/javascript")) {
+      type += "; charset=utf-8";
+    }
+    return type;
+  }
+
   /**
    * Builds an HTML file list from the www directory
    * @return HTML string output of file list
@@ -635,39 +1222,20 @@ class WebServer {
 
   /**
    *
-   * a method to make a web request. Note that this method will block execution
-   * for up to 20 seconds while the request is being satisfied. Better to use a
-   * non-blocking request.
+   * a method to make a web request. The request goes through the shared UpstreamClient,
+   * so it reuses open connections and cached answers. Note that this method still blocks
+   * for up to 20 seconds, the /github route uses upstream.get() directly and does not wait.
    * 
    * @param aUrl the String indicating the query url for the OMDb api search
-   * @return the String result of the http request.
+   * @return the String result of the http request, empty if it failed.
    *
    **/
   public String fetchURL(String aUrl) {
-    StringBuilder sb = new StringBuilder();
-    URLConnection conn = null;
-    InputStreamReader in = null;
     try {
-      URL url = new URL(aUrl);
-      conn = url.openConnection();
-      if (conn != null)
-        conn.setReadTimeout(20 * 1000); // timeout in 20 seconds
-      if (conn != null && conn.getInputStream() != null) {
-        in = new InputStreamReader(conn.getInputStream(), Charset.defaultCharset());
-        BufferedReader br = new BufferedReader(in);
-        if (br != null) {
-          int ch;
-          // read the next character until end of reader
-          while ((ch = br.read()) != -1) {
-            sb.append((char) ch);
-          }
-          br.close();
-        }
-      }
-      in.close();
+      return upstream.get(aUrl).get();
     } catch (Exception ex) {
-      System.out.println("Exception in url request:" + ex.getMessage());
+      LOG.warn("Exception in url request: {}", ex.getMessage());
+      return "";
     }
-    return sb.toString();
   }
 }
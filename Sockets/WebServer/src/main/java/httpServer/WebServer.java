@@ -2,115 +2,282 @@ package httpServer;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 class WebServer {
 
+    // text files between these sizes are sent compressed if the client accepts it
+    private static final long MIN_COMPRESS = 1024;
+    private static final long MAX_COMPRESS = 1024 * 1024;
+
+    // listening sockets on the port, each with its own accept thread, change with -Dacceptors=n
+    private static final int ACCEPTORS = Integer.getInteger("acceptors", 1);
+
+    /** compressed files by path, size, modification time and coding, at most 64,
+        synchronized since every accept thread serves its own clients */
+    private final Map<String, byte[]> compressed = Collections.synchronizedMap(
+            new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+            return size() > 64;
+        }
+    });
+
     // 
     public static void main(String args[]) {
         if (args.length != 1) {
             System.out.println("Usage: WebServer <port>");
             System.exit(1);
         }
-        
+
         WebServer server = new WebServer(Integer.parseInt(args[0]));
     }
 
     public WebServer(int port) {
-        
-        ServerSocket    server = null;
-        Socket          sock = null;
-        InputStream     in = null;
-        OutputStream    out = null;
+
+        ServerSocketChannel[] listeners = null;
 
         //*** Open the server socket on the specified port
         //*** Loop forever accepting socket requests
-        //***   Get the response bytes from createResponse
-        //***   Write the bytes to the socket's output stream
-        //***   close streams and socket appropriatels
+        //***   Read the request and send the response straight to the socket's channel
+        //***   close streams and socket appropriately
+        try {
+            listeners = listen(port, ACCEPTORS);
+            // one accept loop per listening socket, the first one runs on this thread
+            for (int i = 1; i < listeners.length; i++) {
+                ServerSocketChannel listener = listeners[i];
+                new Thread(() -> acceptLoop(listener), "acceptor-" + i).start();
+            }
+            acceptLoop(listeners[0]);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (listeners != null) {
+                for (ServerSocketChannel listener : listeners) {
+                    try {
+                        listener.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
     }
 
+    /** Opens count listening sockets on the port. With SO_REUSEPORT each one has
+        its own accept queue and the kernel spreads the new connections over them,
+        without it (e.g. Windows) all accept threads share one socket.
+    */
+    static ServerSocketChannel[] listen(int port, int count) throws IOException {
+        ServerSocketChannel[] listeners = new ServerSocketChannel[Math.max(1, count)];
+        boolean reusePort = false;
+        for (int i = 0; i < listeners.length; i++) {
+            if (i > 0 && !reusePort) {
+                listeners[i] = listeners[0];
+                continue;
+            }
+            // a channel instead of a ServerSocket, so every accepted socket has a
+            // SocketChannel we can hand to FileChannel.transferTo
+            ServerSocketChannel listener = ServerSocketChannel.open();
+            if (listeners.length > 1
+                    && listener.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                // has to be set on every socket before the bind
+                listener.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                reusePort = true;
+            }
+            listener.bind(new InetSocketAddress(port));
+            listeners[i] = listener;
+        }
+        if (listeners.length > 1 && !reusePort) {
+            System.out.println("SO_REUSEPORT is not supported, "
+                    + listeners.length + " accept threads share one socket");
+        }
+        return listeners;
+    }
 
-    public byte[] createResponse(InputStream inStream) {
+    /** Serves one client after the other from one listening socket until it is closed */
+    private void acceptLoop(ServerSocketChannel server) {
+        while (server.isOpen()) {
+            try (SocketChannel sock = server.accept()) {
+                sendResponse(sock.socket().getInputStream(), sock);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
 
-        byte[] response = null;
-        BufferedReader in = null;
 
-        try {
+    /** Reads the request and sends the response. Files are never loaded into memory,
+        they are streamed with FileChannel.transferTo (sendfile on Linux) from disk
+        to the socket.
+    */
+    public void sendResponse(InputStream inStream, SocketChannel out) throws IOException {
 
-            // Read from socket's input stream.  Must use an
-            // InputStreamReader to bridge from streams to a reader
-            in = new BufferedReader(
-                        new InputStreamReader(inStream, "UTF-8"));
+        BufferedReader in = null;
+
+        // Read from socket's input stream.  Must use an
+        // InputStreamReader to bridge from streams to a reader
+        in = new BufferedReader(
+                    new InputStreamReader(inStream, "UTF-8"));
 
-            // Get header and save the filename from the GET line:
-            //    example GET format: GET /index.html HTTP/1.1
+        // Get header and save the filename from the GET line:
+        //    example GET format: GET /index.html HTTP/1.1
 
-            String filename = null;
+        String filename = null;
+        String acceptEncoding = null;
 
-            boolean done = false;
-            while (!done) {
-                String line = in.readLine();
+        boolean done = false;
+        while (!done) {
+            String line = in.readLine();
 
 System.out.println("Received: " + line);
-                if (line == null || line.equals(""))
-                    done = true;
+            if (line == null || line.equals(""))
+                done = true;
 
-                else if (line.startsWith("GET")) {
-                    int firstSpace = line.indexOf(" ");
-                    int secondSpace = line.indexOf(" ", firstSpace+1);
+            else if (line.startsWith("GET")) {
+                int firstSpace = line.indexOf(" ");
+                int secondSpace = line.indexOf(" ", firstSpace+1);
 
-                    // skipt the leading / (our docroot is the current dir)
-                    filename = line.substring(firstSpace+2, secondSpace);
-                }
+                // skipt the leading / (our docroot is the current dir)
+                filename = line.substring(firstSpace+2, secondSpace);
+            }
 
+            else if (line.toLowerCase().startsWith("accept-encoding:")) {
+                acceptEncoding = line.substring(line.indexOf(':') + 1).trim();
             }
+
+        }
 System.out.println("FINISHED\n");
 
 
-            // Generate an appropriate response to the user
-            if (filename == null) {
-                response =
-                    "<html>Illegal request: no GET</html>".getBytes();
-            } else {
-            
-                File file = new File(filename);
-                if (!file.exists()) {
-                    response = ("<html>File not found: " +
-                                filename + "</html>").getBytes();
-                } else {
-                    response = readFileInBytes(file);
+        // Generate an appropriate response to the user
+        if (filename == null) {
+            sendText(out, "400 Bad Request",
+                    "<html>Illegal request: no GET</html>");
+            return;
+        }
+
+        File file = new File(filename);
+        if (!file.isFile()) {
+            sendText(out, "404 Not Found",
+                    "<html>File not found: " + filename + "</html>");
+            return;
+        }
+
+        // text files are compressed once, later requests get them from memory
+        String encoding = negotiate(acceptEncoding);
+        if (encoding != null && contentType(filename).startsWith("text/")
+                && file.length() >= MIN_COMPRESS && file.length() <= MAX_COMPRESS) {
+            String key = file.getCanonicalPath() + ":" + file.length() + ":" + file.lastModified() + ";" + encoding;
+            byte[] body = compressed.get(key);
+            if (body == null) {
+                body = compress(file, encoding);
+                compressed.put(key, body);
+            }
+            writeFully(out, header("200 OK", contentType(filename), body.length,
+                    "Content-Encoding: " + encoding + "\r\nVary: Accept-Encoding\r\n"));
+            writeFully(out, body);
+            return;
+        }
+
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            long length = channel.size();
+            writeFully(out, header("200 OK", contentType(filename), length));
+
+            // the kernel copies the file to the socket, no byte[] on the heap
+            long position = 0;
+            while (position < length) {
+                long sent = channel.transferTo(position, length - position, out);
+                if (sent <= 0 && position >= channel.size()) {
+                    throw new IOException("File got shorter while it was sent");
                 }
+                position += sent;
             }
         }
-        catch (IOException e) {
-            e.printStackTrace();
-            response = ("<html>ERROR: " +
-                        e.getMessage() + "</html>").getBytes();
+    }
+
+    /** Picks gzip (preferred) or deflate from Accept-Encoding, null if neither is accepted */
+    static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
         }
+        String result = null;
+        for (String part : acceptEncoding.toLowerCase().split(",")) {
+            String coding = part.split(";")[0].trim();
+            if (part.replace(" ", "").matches(".*;q=0(\\.0*)?")) {
+                continue; // q=0 means not acceptable
+            }
+            if (coding.equals("gzip")) {
+                return "gzip";
+            }
+            if (coding.equals("deflate")) {
+                result = "deflate";
+            }
+        }
+        return result;
+    }
 
-        return response;
+    /** Reads and compresses the whole file */
+    private static byte[] compress(File file, String encoding) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (InputStream fileIn = new FileInputStream(file);
+             OutputStream zip = encoding.equals("gzip") ? new GZIPOutputStream(bytes) : new DeflaterOutputStream(bytes)) {
+            fileIn.transferTo(zip);
+        }
+        return bytes.toByteArray();
     }
 
-    /** Read bytes from a file and return them in the byte array.
-        We read in blocks of 512 bytes for efficiency.
-    */
-    public static byte[] readFileInBytes(File f)
+    /** Sends a small HTML response */
+    private static void sendText(SocketChannel out, String status, String html)
         throws IOException {
 
-        FileInputStream file = new FileInputStream(f);
-        ByteArrayOutputStream data = new ByteArrayOutputStream(file.available());
+        byte[] body = html.getBytes(StandardCharsets.UTF_8);
+        writeFully(out, header(status, "text/html; charset=utf-8", body.length));
+        writeFully(out, body);
+    }
 
-        byte buffer[] = new byte[512];
-        int numRead = file.read(buffer);
-        while (numRead > 0) {
-            data.write(buffer, 0, numRead);
-            numRead = file.read(buffer);
-        }
-        file.close();
+    /** Builds the status line and headers, the connection is closed after the response */
+    private static byte[] header(String status, String contentType, long length) {
+        return header(status, contentType, length, "");
+    }
 
-        byte[] result =  data.toByteArray();
-        data.close();
+    /** Same with more header lines, each ending with CRLF */
+    private static byte[] header(String status, String contentType, long length, String extra) {
+        return ("HTTP/1.1 " + status + "\r\n" +
+                "Content-Type: " + contentType + "\r\n" +
+                "Content-Length: " + length + "\r\n" +
+                extra +
+                "Connection: close\r\n" +
+                "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    }
 
-        return result;
+    private static void writeFully(SocketChannel out, byte[] bytes)
+        throws IOException {
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    /** Guesses the Content-Type from the file name */
+    public static String contentType(String filename) {
+        String type = URLConnection.guessContentTypeFromName(filename);
+        if (type == null) {
+            return "application/octet-stream";
+        }
+        if (type.startsWith("text/")) {
+            type += "; charset=utf-8";
+        }
+        return type;
     }
 }